@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.bench;
+
+import com.auxeanne.data.AbstractRecord;
+import com.auxeanne.data.FieldIndexing;
+import com.auxeanne.data.Records;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import org.eclipse.persistence.config.EntityManagerProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the core Records operations on embedded in-memory Derby. Each
+ * operation processes "size" records.
+ *
+ * Run with : mvn -Pbenchmark test-compile exec:exec
+ *
+ * @author Jean-Michel Tanguy
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordsBenchmark {
+
+    private static final String PU = "JAVADB_EMBEDDED_TEST_PU";
+    private static final int PAGE = 100;
+
+    /**
+     * database with "size" records to read, update and link
+     */
+    @State(Scope.Benchmark)
+    public static class Database {
+
+        @Param({"100", "1000"})
+        int size;
+
+        EntityManagerFactory emf;
+        Records records;
+        BenchRecord root;
+        List<BenchRecord> recordList;
+        int round = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            HashMap<String, String> properties = new HashMap<>();
+            properties.put(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT, "BENCH");
+            emf = Persistence.createEntityManagerFactory(PU, properties);
+            records = new Records(emf);
+            root = new BenchRecord("root", 0);
+            records.save(root);
+            recordList = create(size, "read");
+            records.save(recordList);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            emf.close();
+        }
+    }
+
+    /**
+     * new saved records for the operations consuming them, removed after each
+     * invocation so the tables keep their size
+     */
+    @State(Scope.Thread)
+    public static class Fresh {
+
+        Database db;
+        BenchRecord parent;
+        List<BenchRecord> recordList;
+
+        @Setup(Level.Invocation)
+        public void setUp(Database db) {
+            this.db = db;
+            parent = new BenchRecord("parent", 0);
+            recordList = create(db.size, "fresh");
+            db.records.save(parent);
+            db.records.save(recordList);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            List<BenchRecord> list = new ArrayList<>(recordList);
+            list.add(parent);
+            removeSaved(db, list);
+        }
+    }
+
+    /**
+     * records created by the measured operation, removed after each
+     * invocation so the tables keep their size
+     */
+    @State(Scope.Thread)
+    public static class Created {
+
+        List<BenchRecord> recordList;
+
+        @TearDown(Level.Invocation)
+        public void tearDown(Database db) {
+            removeSaved(db, recordList);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // BENCHMARKS
+    //--------------------------------------------------------------------------
+    @Benchmark
+    public List<BenchRecord> saveBatch(Database db, Created created) {
+        created.recordList = create(db.size, "saved");
+        db.records.save(created.recordList);
+        return created.recordList;
+    }
+
+    @Benchmark
+    public List<BenchRecord> update(Database db) {
+        //-- changing the indexed values on each round
+        db.round++;
+        for (BenchRecord record : db.recordList) {
+            record.setAmount(new BigDecimal(db.round));
+        }
+        db.records.save(db.recordList);
+        return db.recordList;
+    }
+
+    @Benchmark
+    public List<BenchRecord> indexQuery(Database db) {
+        return db.records.query(BenchRecord.class).indexEqualTo("label", "read 7").getList();
+    }
+
+    @Benchmark
+    public void linkRelink(Database db) {
+        BenchRecord[] array = db.recordList.toArray(new BenchRecord[db.recordList.size()]);
+        db.records.link(db.root).with(array).save();
+        db.records.link(db.root).with(array).remove();
+    }
+
+    @Benchmark
+    public void hierarchyInsert(Database db, Fresh fresh) {
+        BenchRecord[] array = fresh.recordList.toArray(new BenchRecord[fresh.recordList.size()]);
+        db.records.link(fresh.parent).asParentOf(array).save();
+    }
+
+    @Benchmark
+    public void remove(Database db, Fresh fresh) {
+        db.records.remove(fresh.recordList);
+    }
+
+    @Benchmark
+    public int pagedRead(Database db) {
+        int count = 0;
+        BenchRecord last = null;
+        List<BenchRecord> page;
+        do {
+            page = (last == null)
+                    ? db.records.query(BenchRecord.class).indexEqualTo("kind", "read").orderByInsert().setMaxResults(PAGE).getList()
+                    : db.records.query(BenchRecord.class).indexEqualTo("kind", "read").orderByInsert().setMaxResults(PAGE).after(last).getList();
+            count += page.size();
+            last = (page.isEmpty()) ? null : page.get(page.size() - 1);
+        } while (page.size() == PAGE);
+        return count;
+    }
+
+    @Benchmark
+    public List<BenchRecord> sortedTopN(Database db) {
+        return db.records.query(BenchRecord.class).orderByIndexedField("amount").setMaxResults(PAGE).getList();
+    }
+
+    @Benchmark
+    public List<BenchRecord> filteredSortedTopN(Database db) {
+        //-- the filter on the sorted field lets the query start from its index rows
+        return db.records.query(BenchRecord.class).indexGreaterThanOrEqualTo("amount", 0).reverseByIndexedField("amount").setMaxResults(PAGE).getList();
+    }
+
+    //--------------------------------------------------------------------------
+    // DATA
+    //--------------------------------------------------------------------------
+    private static void removeSaved(Database db, List<BenchRecord> list) {
+        if (list != null) {
+            //-- skipping the records already removed by the operation
+            List<BenchRecord> saved = new ArrayList<>();
+            for (BenchRecord record : list) {
+                if (record.getId() != null && record.getId() > 0) {
+                    saved.add(record);
+                }
+            }
+            db.records.remove(saved);
+        }
+    }
+
+    private static List<BenchRecord> create(int size, String kind) {
+        List<BenchRecord> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            BenchRecord record = new BenchRecord(kind + " " + (i % 10), i);
+            record.setKind(kind);
+            list.add(record);
+        }
+        return list;
+    }
+
+    /**
+     * record with string and numeric indexes
+     */
+    public static class BenchRecord extends AbstractRecord {
+
+        @FieldIndexing
+        private String kind;
+        @FieldIndexing
+        private String label;
+        @FieldIndexing
+        private BigDecimal amount;
+        private String comment = "benchmark record with some unindexed content";
+
+        public BenchRecord() {
+        }
+
+        public BenchRecord(String label, int amount) {
+            this.label = label;
+            this.amount = new BigDecimal(amount);
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public void setKind(String kind) {
+            this.kind = kind;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public void setLabel(String label) {
+            this.label = label;
+        }
+
+        public BigDecimal getAmount() {
+            return amount;
+        }
+
+        public void setAmount(BigDecimal amount) {
+            this.amount = amount;
+        }
+
+        public String getComment() {
+            return comment;
+        }
+
+        public void setComment(String comment) {
+            this.comment = comment;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.ctrl.IdAllocator;
+import com.auxeanne.data.ctrl.Record;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import javax.persistence.EntityManagerFactory;
+import org.eclipse.persistence.exceptions.TransactionException;
+
+/**
+ * <p>
+ * Saving large amounts of records with several threads, each batch being saved
+ * in its own transaction by its own entity manager from the same factory. The
+ * persistence context of a batch is released with its entity manager.</p>
+ * <p>
+ * Atomicity is per batch : if a batch fails, the loading stops and the
+ * batches already saved are kept.</p>
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class BulkLoader {
+
+    /**
+     * default number of records saved in a transaction
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /**
+     * default number of ids reserved at once while loading
+     */
+    public static final int DEFAULT_ID_BLOCK_SIZE = 10000;
+
+    private final EntityManagerFactory emf;
+    private final Supplier<Records> recordsFactory;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int idBlockSize = DEFAULT_ID_BLOCK_SIZE;
+    private Consumer<Progress> progressListener = null;
+
+    /**
+     *
+     * @param emf entity manager factory
+     */
+    public BulkLoader(EntityManagerFactory emf) {
+        this(emf, () -> new Records(emf));
+    }
+
+    /**
+     *
+     * @param emf entity manager factory
+     * @param tenantId tenant key
+     */
+    public BulkLoader(EntityManagerFactory emf, String tenantId) {
+        this(emf, () -> new Records(emf, tenantId));
+    }
+
+    /**
+     * loading with configured Records (codec, audit...), one instance being
+     * created by thread
+     *
+     * @param emf entity manager factory
+     * @param recordsFactory new Records using the entity manager factory
+     */
+    public BulkLoader(EntityManagerFactory emf, Supplier<Records> recordsFactory) {
+        this.emf = emf;
+        this.recordsFactory = recordsFactory;
+    }
+
+    /**
+     * @param batchSize number of records saved in a transaction
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param threads number of threads saving the batches, and of database
+     * connections used
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param idBlockSize number of ids reserved at once while loading, the
+     * unused ids of the last block being lost. Not used when the id allocator
+     * of the persistence unit is enabled, its blocks growing with the load.
+     */
+    public void setIdBlockSize(int idBlockSize) {
+        this.idBlockSize = idBlockSize;
+    }
+
+    /**
+     * @param progressListener called by the loading threads after each saved
+     * batch
+     */
+    public void setProgressListener(Consumer<Progress> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * saving the records of a stream
+     *
+     * @param <T> POJOs must extend DefaultRecord
+     * @param stream records to save
+     * @return final progress
+     */
+    public <T extends Record> Progress load(Stream<T> stream) {
+        return load(stream.iterator());
+    }
+
+    /**
+     * saving the records of an iterator, read by the calling thread. At most
+     * two batches per thread are waiting to be saved.
+     *
+     * @param <T> POJOs must extend DefaultRecord
+     * @param iterator records to save
+     * @return final progress
+     */
+    public <T extends Record> Progress load(Iterator<T> iterator) {
+        long start = System.nanoTime();
+        AtomicLong recordCount = new AtomicLong();
+        AtomicLong batchCount = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        //-- fewer accesses to the id table with blocks reserved for this loading,
+        //-- unless the id allocator of the persistence unit is in charge
+        IdAllocator idAllocator = (IdAllocator.of(emf) == null) ? IdAllocator.create(emf, idBlockSize, idBlockSize) : null;
+        ThreadLocal<Records> workerRecords = ThreadLocal.withInitial(() -> {
+            Records records = recordsFactory.get();
+            records.setLocalIdAllocator(idAllocator);
+            return records;
+        });
+        Semaphore pending = new Semaphore(threads * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new LoaderThreadFactory());
+        try {
+            while (failure.get() == null && iterator.hasNext()) {
+                List<T> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && iterator.hasNext()) {
+                    batch.add(iterator.next());
+                }
+                pending.acquire();
+                pool.execute(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            workerRecords.get().save(batch);
+                            Progress progress = new Progress(recordCount.addAndGet(batch.size()), batchCount.incrementAndGet(), System.nanoTime() - start);
+                            if (progressListener != null) {
+                                progressListener.accept(progress);
+                            }
+                        }
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                    } finally {
+                        pending.release();
+                    }
+                });
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, ex);
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, ex);
+            }
+        }
+        if (failure.get() != null) {
+            throw new TransactionException("Bulk load stopped after " + recordCount.get() + " records saved.", failure.get());
+        }
+        return new Progress(recordCount.get(), batchCount.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * daemon threads, so an abandoned loader does not prevent the JVM exit
+     */
+    private static class LoaderThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger loaderCount = new AtomicInteger();
+        private final int loader = loaderCount.incrementAndGet();
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BulkLoader-" + loader + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * progress of a loading
+     */
+    public static class Progress {
+
+        private final long recordCount;
+        private final long batchCount;
+        private final long elapsedNanos;
+
+        Progress(long recordCount, long batchCount, long elapsedNanos) {
+            this.recordCount = recordCount;
+            this.batchCount = batchCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return number of records saved
+         */
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * @return number of batches saved
+         */
+        public long getBatchCount() {
+            return batchCount;
+        }
+
+        /**
+         * @return time since the start of the loading, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        /**
+         * @return records saved per second since the start of the loading
+         */
+        public double getRecordsPerSecond() {
+            return (elapsedNanos == 0) ? 0 : recordCount * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return recordCount + " records in " + batchCount + " batches, " + getElapsedMillis() + "ms (" + Math.round(getRecordsPerSecond()) + " records/s)";
+        }
+    }
+
+}
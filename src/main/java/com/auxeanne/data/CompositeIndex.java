@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Indexing 2 or 3 fields of the record class together, in a single row.</p>
+ * <p>A query filtering on the first field and on another field of the index is served by one lookup instead of one
+ * sub query per field. The first field should be the most selective one, typically filtered with equality.</p>
+ * <p>Filters which do not match a composite index use the indexes of FieldIndexing, so the fields should also be
+ * annotated with it when they are filtered alone.</p>
+ * <p>The rows are written when records are saved. After adding the annotation to a class already holding records,
+ * Records.rebuildComposites must be run once, otherwise the filters matching the index miss the existing records.</p>
+ * 
+ * @author Jean-Michel Tanguy
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE) 
+@Repeatable(CompositeIndexes.class)
+public @interface CompositeIndex {
+    
+    /**
+     * fields of the index, first field being the leading one
+     * @return field names
+     */
+    String[] value();
+    
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>Making the words of the field searchable.</p>
+ * <p>The text of the field is split into lower case words without accents, stored in a token table on save. Queries
+ * searchAll and searchAny then use this table instead of scanning the records.</p>
+ * <p>Collections and arrays are searchable by their elements, other values by their text.</p>
+ * <p>Records saved before the field was made searchable have no tokens: run Records.rebuildTokens once for their
+ * class.</p>
+ * 
+ * @author Jean-Michel Tanguy
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD) 
+public @interface FieldSearchable {
+    
+    /**
+     * storing also the beginnings of the words, from 3 characters, so a search 
+     * can match the beginning of a word at the cost of more rows
+     * @return true to store the prefixes
+     */
+    boolean prefixes() default false;
+    
+}
@@ -18,7 +18,12 @@ package com.auxeanne.data;
 import com.auxeanne.data.ctrl.DatabaseController;
 import com.auxeanne.data.db.Preference;
 import com.auxeanne.data.ctrl.AuditLogger;
+import com.auxeanne.data.ctrl.AuditWriter;
+import com.auxeanne.data.ctrl.PreferenceCache;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.transaction.UserTransaction;
@@ -30,6 +35,8 @@ import org.eclipse.persistence.config.EntityManagerProperties;
  * POJO can be stored which is handy for global configuration.</p>
  * <p>
  * Multi tenant is supported.</p>
+ * <p>
+ * Values can be cached by tenant and key with enableCache.</p>
  *
  * @author Jean-Michel Tanguy
  */
@@ -144,6 +151,17 @@ public class Preferences {
      * @return mapped object or null if key does not exist
      */
     public <T> T get(String key, Class<T> target) {
+        PreferenceCache cache = getReadCache();
+        if (cache != null) {
+            String tenant = getTenant();
+            PreferenceCache.Entry entry = cache.get(tenant, key);
+            if (entry == null) {
+                long version = cache.getVersion();
+                Preference preference = getPreference(key);
+                entry = cache.put(tenant, key, (preference == null) ? null : preference.getValue(), version);
+            }
+            return entry.getValue(target, (content) -> mc.fromWrapper(content, target));
+        }
         Preference preference = getPreference(key);
         if (preference == null) {
             return null;
@@ -153,6 +171,63 @@ public class Preferences {
 
     }
 
+    /**
+     * retrieving stored preferences for provided keys, with a single query for
+     * the keys not cached
+     *
+     * @param keys preference keys
+     * @return values by key in the order of the keys, without the keys which
+     * do not exist
+     */
+    public Map<String, String> getAll(String... keys) {
+        return getAll(String.class, keys);
+    }
+
+    /**
+     * mapping the preferences to objects with fields annotated @RecordContent,
+     * with a single query for the keys not cached
+     *
+     * @param <T> Returned values match the target class
+     * @param target class of the objects to map
+     * @param keys preference keys
+     * @return mapped objects by key in the order of the keys, without the keys
+     * which do not exist
+     */
+    public <T> Map<String, T> getAll(Class<T> target, String... keys) {
+        PreferenceCache cache = getReadCache();
+        String tenant = getTenant();
+        Map<String, PreferenceCache.Entry> entryMap = new LinkedHashMap<>();
+        List<String> missingList = new ArrayList<>();
+        for (String key : keys) {
+            PreferenceCache.Entry entry = (cache == null) ? null : cache.get(tenant, key);
+            entryMap.put(key, entry);
+            if (entry == null && !missingList.contains(key)) {
+                missingList.add(key);
+            }
+        }
+        Map<String, T> valueMap = new LinkedHashMap<>();
+        if (!missingList.isEmpty()) {
+            long version = (cache == null) ? 0 : cache.getVersion();
+            Map<String, byte[]> contentMap = getPreferences(missingList);
+            for (String key : missingList) {
+                byte[] content = contentMap.get(key);
+                if (cache != null) {
+                    entryMap.put(key, cache.put(tenant, key, content, version));
+                } else if (content != null) {
+                    valueMap.put(key, mc.fromWrapper(content, target));
+                }
+            }
+        }
+        Map<String, T> resultMap = new LinkedHashMap<>();
+        entryMap.forEach((key, entry) -> {
+            T value = (entry == null) ? valueMap.get(key) : entry.getValue(target, (content) -> mc.fromWrapper(content, target));
+            if (value != null) {
+                resultMap.put(key, value);
+            }
+        });
+        return resultMap;
+    }
+
     /**
      * storing object fields annotated @RecordContent as preference
      *
@@ -165,21 +240,37 @@ public class Preferences {
     }
     
     private void save(String key, byte[] value) {
+        PreferenceCache cache = PreferenceCache.of(mc.getEntityManagerFactory());
         mc.transaction(() -> {
             Preference preference = getPreference(key);
+            String tenant = getTenant();
             if (preference == null) {
                 preference = new Preference(key, value);
-                Object tenant = mc.getTransactionEntityManager().getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
                 if (tenant != null) {
-                    preference.setTenant(tenant.toString());
+                    preference.setTenant(tenant);
                 }
                 mc.getTransactionEntityManager().persist(preference);
             } else {
                 preference.setValue(value);
             }
             auditor.logPreference(key, value);
+            //-- dropping the key once the transaction is over, reads loading the old value meanwhile are not cached
+            if (cache != null) {
+                Runnable invalidate = () -> cache.invalidate(tenant, key);
+                mc.afterTransaction(invalidate, invalidate);
+            }
         });
     }
+
+    /**
+     * cache serving the reads, bypassed while the controller has uncommitted
+     * writes
+     *
+     * @return cache of the persistence unit, or null
+     */
+    private PreferenceCache getReadCache() {
+        return mc.isTransactionPending() ? null : PreferenceCache.of(mc.getEntityManagerFactory());
+    }
     
 
     /**
@@ -189,9 +280,9 @@ public class Preferences {
      * @return entity
      */
     private Preference getPreference(String key) {
-        Object tenant = mc.getTransactionEntityManager().getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
+        String tenant = getTenant();
         if (tenant != null) {
-            List<Preference> list = mc.getTransactionEntityManager().createQuery("SELECT p FROM Preference p WHERE p.key = :key and p.tenant = :tenant").setParameter("key", key).setParameter("tenant", tenant.toString()).setMaxResults(1).getResultList();
+            List<Preference> list = mc.getTransactionEntityManager().createQuery("SELECT p FROM Preference p WHERE p.key = :key and p.tenant = :tenant").setParameter("key", key).setParameter("tenant", tenant).setMaxResults(1).getResultList();
             return (list.isEmpty()) ? null : list.get(0);
         } else {
             List<Preference> list = mc.getTransactionEntityManager().createQuery("SELECT p FROM Preference p WHERE p.key = :key").setParameter("key", key).setMaxResults(1).getResultList();
@@ -199,6 +290,67 @@ public class Preferences {
         }
     }
 
+    /**
+     * reading the stored values of many keys with a single query
+     *
+     * @param keyList preference keys
+     * @return stored values by key, without the keys which do not exist
+     */
+    private Map<String, byte[]> getPreferences(List<String> keyList) {
+        String tenant = getTenant();
+        Map<String, byte[]> contentMap = new LinkedHashMap<>();
+        for (int i = 0; i < keyList.size(); i += Records.PARAMETER_PAGING) {
+            List<String> page = keyList.subList(i, Math.min(i + Records.PARAMETER_PAGING, keyList.size()));
+            List<Preference> list;
+            if (tenant != null) {
+                list = mc.getTransactionEntityManager().createQuery("SELECT p FROM Preference p WHERE p.key IN :keys and p.tenant = :tenant", Preference.class).setParameter("keys", page).setParameter("tenant", tenant).getResultList();
+            } else {
+                list = mc.getTransactionEntityManager().createQuery("SELECT p FROM Preference p WHERE p.key IN :keys", Preference.class).setParameter("keys", page).getResultList();
+            }
+            //-- first one wins, as with a single key
+            list.forEach((preference) -> contentMap.putIfAbsent(preference.getKey(), preference.getValue()));
+        }
+        return contentMap;
+    }
+
+    /**
+     * @return tenant of the entity manager, or null
+     */
+    private String getTenant() {
+        Object tenant = mc.getTransactionEntityManager().getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
+        return (tenant == null) ? null : tenant.toString();
+    }
+
+    /**
+     * Enabling the cache of preferences for the persistence unit, shared by
+     * all the instances. Writes from this JVM drop the cached key once their
+     * transaction is committed or rolled back, the time to live bounding how
+     * long the writes of other nodes are missed.
+     *
+     * @param maxEntries max number of cached keys
+     * @param ttlMillis time to live of the entries in milliseconds, 0 for no
+     * expiration
+     * @return cache of the persistence unit, with its statistics
+     */
+    public PreferenceCache enableCache(int maxEntries, long ttlMillis) {
+        return PreferenceCache.enable(mc.getEntityManagerFactory(), maxEntries, ttlMillis);
+    }
+
+    /**
+     * disabling the cache of preferences for the persistence unit
+     */
+    public void disableCache() {
+        PreferenceCache.disable(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * @return cache of preferences of the persistence unit, or null if not
+     * enabled
+     */
+    public PreferenceCache getCache() {
+        return PreferenceCache.of(mc.getEntityManagerFactory());
+    }
+
     /**
      * enabling auditing
      *
@@ -208,6 +360,18 @@ public class Preferences {
         auditor = new AuditLogger(mc, user);
     }
 
+    /**
+     * Enabling auditing with logs written in background, in their own
+     * transactions, once the audited transaction is committed.
+     *
+     * @param user name used for auditing logs
+     * @param durability FLUSH_ON_COMMIT to wait for the logs to be written,
+     * EVENTUAL to return at once
+     */
+    public void enableAudit(String user, AuditWriter.Durability durability) {
+        auditor = new AuditLogger(mc, user, durability);
+    }
+
     /**
      * disabling audit for better performances
      */
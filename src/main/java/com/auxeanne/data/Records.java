@@ -16,31 +16,56 @@
 package com.auxeanne.data;
 
 import com.auxeanne.data.ctrl.Record;
+import com.auxeanne.data.db.RecordComposite;
+import com.auxeanne.data.db.RecordCompositePK;
 import com.auxeanne.data.db.RecordIndex;
 import com.auxeanne.data.db.RecordIndexPK;
 import com.auxeanne.data.db.RecordLink;
 import com.auxeanne.data.db.RecordLinkPK;
 import com.auxeanne.data.db.RecordPath;
 import com.auxeanne.data.db.RecordPathPK;
+import com.auxeanne.data.db.RecordToken;
+import com.auxeanne.data.db.RecordTokenPK;
 import com.auxeanne.data.ctrl.DatabaseController;
 import com.auxeanne.data.db.RecordWrapper;
 import com.auxeanne.data.db.RecordType;
 import com.auxeanne.data.ctrl.AuditLogger;
+import com.auxeanne.data.ctrl.AuditWriter;
 import com.auxeanne.data.ctrl.FluentLink;
 import com.auxeanne.data.ctrl.FluentQuery;
 import com.auxeanne.data.ctrl.FluentQuery.QueryBuilder;
+import com.auxeanne.data.ctrl.IndexPlan.Composite;
+import com.auxeanne.data.ctrl.IndexPlan.IndexedField;
+import com.auxeanne.data.ctrl.IndexPlan.SearchableField;
 import com.auxeanne.data.ctrl.IndexQueryManager;
 import com.auxeanne.data.ctrl.ParameterManager;
-import java.lang.reflect.Field;
+import com.auxeanne.data.ctrl.PreparedRecordQuery;
+import com.auxeanne.data.ctrl.IdAllocator;
+import com.auxeanne.data.ctrl.LinkCache;
+import com.auxeanne.data.ctrl.MetadataRegistry;
+import com.auxeanne.data.ctrl.RecordCache;
+import com.auxeanne.data.ctrl.RecordCodec;
+import com.auxeanne.data.ctrl.Tokenizer;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
 import javax.transaction.UserTransaction;
+import org.eclipse.persistence.annotations.BatchFetchType;
 import org.eclipse.persistence.config.EntityManagerProperties;
+import org.eclipse.persistence.config.QueryHints;
 import org.eclipse.persistence.queries.CursoredStream;
 
 /**
@@ -78,7 +103,19 @@ public class Records {
      * some databases limit the number of parameter to bind to a statement (ex:
      * PostgreSql)
      */
-    protected static final int PARAMETER_PAGING = 32000;
+    public static final int PARAMETER_PAGING = 32000;
+
+    /**
+     * default number of records from which remove uses set based delete
+     * statements
+     */
+    public static final int DEFAULT_BULK_REMOVE_THRESHOLD = 1000;
+
+    /**
+     * number of ids per DELETE statement, large IN lists being poorly
+     * optimized by some databases (ex: Derby scanning the table)
+     */
+    private static final int BULK_PAGING = 1000;
 
     /**
      * default auditor is silent and must be activated with auditAs
@@ -95,6 +132,23 @@ public class Records {
      */
     private final ParameterManager pm = new ParameterManager();
 
+    /**
+     * number of index writes avoided on update as the indexed value did not
+     * change
+     */
+    private long skippedIndexWrites = 0;
+
+    /**
+     * number of records from which remove uses set based delete statements
+     */
+    private int bulkRemoveThreshold = DEFAULT_BULK_REMOVE_THRESHOLD;
+
+    /**
+     * allocator used by this instance only (ex: bulk loading), instead of the
+     * one of the persistence unit
+     */
+    private IdAllocator localIdAllocator = null;
+
     /**
      * Setting the controller with : container managed entity manager and bean
      * managed transaction (BMT). Resource must be JTA. Typically used in JSF
@@ -184,21 +238,30 @@ public class Records {
     public <T extends Record> void save(List<T> list) {
         if (list != null) {
             mc.transaction(() -> {
+                // loading current indexes of updated records to write only the changes
+                Map<RecordIndexPK, RecordIndex> indexMap = findIndexes(list);
+                Map<Long, Set<String>> tokenMap = findTokens(list);
+                Map<RecordCompositePK, RecordComposite> compositeMap = findComposites(list);
                 list.stream().filter((record) -> (record != null)).forEach((record) -> {
                     Long recordId = record.getId();
                     if (recordId == null) {
                         // persisting new record
                         RecordWrapper wrapper = createRecordWrapper(record);
-                        indexRecord(true, record);
+                        indexRecord(true, record, indexMap);
+                        tokenRecord(true, record, tokenMap);
+                        compositeRecord(true, record, compositeMap);
                         auditor.logCreateRecord(wrapper);
                     } else {
                         // using reference as only SET is necesssary
                         RecordWrapper wrapper = mc.getTransactionEntityManager().getReference(RecordWrapper.class, recordId); // getReference creating two queries including RecordType
                         wrapper.setData(mc.toWrapper(record));
+                        invalidateCache(recordId);
  ////                       if (record.isDocumentChanged()) {
  ////                           wrapper.setDocument(record.getDocument());
  ////                       }
-                        indexRecord(false, record);
+                        indexRecord(false, record, indexMap);
+                        tokenRecord(false, record, tokenMap);
+                        compositeRecord(false, record, compositeMap);
                         auditor.logUpdateRecord(wrapper, false); ////record.isDocumentChanged());
                     }
                 });
@@ -207,58 +270,342 @@ public class Records {
     }
 
     /**
-     * parsing record to extract indexed fields
+     * loading the current indexes of the records to update
+     *
+     * @param list records to save
+     * @return current indexes mapped by key
+     */
+    private <T extends Record> Map<RecordIndexPK, RecordIndex> findIndexes(List<T> list) {
+        Map<RecordIndexPK, RecordIndex> indexMap = new HashMap<>();
+        List<Long> idList = list.stream()
+                .filter((record) -> (record != null && record.getId() != null))
+                .filter((record) -> (!mc.getIndexPlan(record.getClass()).getFieldList().isEmpty()))
+                .map((record) -> record.getId())
+                .collect(Collectors.toList());
+        //-- reading by max batch of PARAMETER_PAGING
+        for (int start = 0; start < idList.size(); start += PARAMETER_PAGING) {
+            List<Long> page = idList.subList(start, Math.min(idList.size(), start + PARAMETER_PAGING));
+            List<RecordIndex> indexList = mc.getTransactionEntityManager()
+                    .createNamedQuery("RecordIndex.findFromIdList", RecordIndex.class)
+                    .setParameter("list", page)
+                    //-- wrappers are read in one go, they are needed by the update anyway
+                    .setHint(QueryHints.BATCH, "r.recordWrapper")
+                    .setHint(QueryHints.BATCH_TYPE, BatchFetchType.IN)
+                    .getResultList();
+            for (RecordIndex ri : indexList) {
+                indexMap.put(ri.getRecordIndexPK(), ri);
+            }
+        }
+        return indexMap;
+    }
+
+    /**
+     * loading the current composite indexes of the records to update
+     *
+     * @param list records to save
+     * @return current composite indexes mapped by key
+     */
+    private <T extends Record> Map<RecordCompositePK, RecordComposite> findComposites(List<T> list) {
+        Map<RecordCompositePK, RecordComposite> compositeMap = new HashMap<>();
+        List<Long> idList = list.stream()
+                .filter((record) -> (record != null && record.getId() != null))
+                .filter((record) -> (!mc.getIndexPlan(record.getClass()).getCompositeList().isEmpty()))
+                .map((record) -> record.getId())
+                .collect(Collectors.toList());
+        //-- reading by max batch of PARAMETER_PAGING
+        for (int start = 0; start < idList.size(); start += PARAMETER_PAGING) {
+            List<Long> page = idList.subList(start, Math.min(idList.size(), start + PARAMETER_PAGING));
+            List<RecordComposite> compositeList = mc.getTransactionEntityManager()
+                    .createNamedQuery("RecordComposite.findFromIdList", RecordComposite.class)
+                    .setParameter("list", page)
+                    .getResultList();
+            for (RecordComposite rc : compositeList) {
+                compositeMap.put(rc.getRecordCompositePK(), rc);
+            }
+        }
+        return compositeMap;
+    }
+
+    /**
+     * writing the composite indexes of a record, in a single row each. Rows
+     * are only kept when a field has a value, and only written on changes.
      *
      * @param isNew record has never been parsed
      * @param record record to parse
+     * @param compositeMap current composite indexes of the records, updated
+     * with the writes
      */
-    private void indexRecord(boolean isNew, Record record) {
-        for (Field field : mc.getIndexingField(record.getClass())) {
-            try {
-                // indexes can be shared by providing common key, or default key using field path is used
-                String key = field.getAnnotation(FieldIndexing.class).value();
-                String name = field.getName();
-                if (key.length() == 0) {
-                    key = record.getClass().getName() + "." + name;
+    private void compositeRecord(boolean isNew, Record record, Map<RecordCompositePK, RecordComposite> compositeMap) {
+        EntityManager em = mc.getTransactionEntityManager();
+        for (Composite composite : mc.getIndexPlan(record.getClass()).getCompositeList()) {
+            List<IndexedField> fieldList = composite.getFieldList();
+            Comparable[] converted = new Comparable[fieldList.size()];
+            boolean empty = true;
+            for (int i = 0; i < converted.length; i++) {
+                converted[i] = pm.getConverted(fieldList.get(i).get(record));
+                empty &= (converted[i] == null);
+            }
+            RecordCompositePK pk = new RecordCompositePK(composite.getKey(), record.getId());
+            RecordComposite rc = isNew ? null : compositeMap.get(pk);
+            if (empty) {
+                if (rc != null) {
+                    em.remove(rc);
+                    compositeMap.remove(pk);
                 }
-                // reading field value to add to index list
-                boolean status = field.isAccessible();
-                field.setAccessible(true);
-                Object fieldValue = field.get(record);
-                field.setAccessible(status);
-                // database access
-                EntityManager em = mc.getTransactionEntityManager();
-                RecordIndexPK pk = new RecordIndexPK(key, record.getId(), name);
-                // forcing indexe deletion to preserve record batch save (npreveting select for each save)
-                // Note : make sure the ModelController provides an entity manager with setShouldPerformDeletesFirst(true)
-                if (!isNew) {
-                    em.remove(em.getReference(RecordIndex.class, pk));
+            } else if (rc == null) {
+                rc = new RecordComposite(pk);
+                for (int i = 0; i < converted.length; i++) {
+                    rc.setComponent(i + 1, converted[i]);
                 }
-                // mapping the index to the database
-                Comparable converted = pm.getConverted(fieldValue);
-                if (converted != null) {
-                    RecordIndex ri = new RecordIndex(pk);
-                    switch (pm.getType(field.getType())) {
-                        case DATE:
-                            ri.setDate((Date) converted);
-                            break;
-                        case STRING:
-                            ri.setValue((String) converted);
-                            break;
-                        case NUMERIC:
-                            ri.setNumeric((BigDecimal) converted);
-                            break;
+                em.persist(rc);
+                compositeMap.put(pk, rc);
+            } else {
+                for (int i = 0; i < converted.length; i++) {
+                    if (!isComponent(rc.getComponent(i + 1), converted[i])) {
+                        // managed entity, updated on commit
+                        rc.setComponent(i + 1, converted[i]);
                     }
-                    // saving
-                    em.persist(ri);
                 }
-            } catch (IllegalArgumentException | IllegalAccessException ex) {
-                // convet to runtime exception
-                throw new RuntimeException(ex);
             }
         }
     }
 
+    /**
+     * Writing the composite indexes of the existing records of a class, by
+     * pages in their own transaction. To run once after adding a
+     * CompositeIndex to a class holding records, as the filters matching the
+     * composite only read its rows. Only missing or changed rows are written.
+     *
+     * @param <T> POJOs must extend DefaultRecord
+     * @param recordClass class of the records to index
+     * @return number of records read
+     */
+    public <T extends Record> long rebuildComposites(Class<T> recordClass) {
+        long count = 0;
+        T last = null;
+        while (true) {
+            List<T> page = (last == null)
+                    ? query(recordClass).orderByInsert().setMaxResults(BULK_PAGING).getList()
+                    : query(recordClass).after(last).setMaxResults(BULK_PAGING).getList();
+            if (page.isEmpty()) {
+                return count;
+            }
+            mc.transaction(() -> {
+                Map<RecordCompositePK, RecordComposite> compositeMap = findComposites(page);
+                page.forEach((record) -> compositeRecord(false, record, compositeMap));
+            });
+            count += page.size();
+            last = page.get(page.size() - 1);
+        }
+    }
+
+    /**
+     * Writing the search tokens of the existing records of a class, by pages
+     * in their own transaction. To run once after making a field
+     * FieldSearchable on a class holding records, as searchAll and searchAny
+     * only read the token table. Only missing or changed tokens are written.
+     *
+     * @param <T> POJOs must extend DefaultRecord
+     * @param recordClass class of the records to tokenize
+     * @return number of records read
+     */
+    public <T extends Record> long rebuildTokens(Class<T> recordClass) {
+        long count = 0;
+        T last = null;
+        while (true) {
+            List<T> page = (last == null)
+                    ? query(recordClass).orderByInsert().setMaxResults(BULK_PAGING).getList()
+                    : query(recordClass).after(last).setMaxResults(BULK_PAGING).getList();
+            if (page.isEmpty()) {
+                return count;
+            }
+            mc.transaction(() -> {
+                Map<Long, Set<String>> tokenMap = findTokens(page);
+                page.forEach((record) -> tokenRecord(false, record, tokenMap));
+            });
+            count += page.size();
+            last = page.get(page.size() - 1);
+        }
+    }
+
+    /**
+     * checking if a composite index already holds the converted value
+     *
+     * @param current current value
+     * @param converted converted value
+     * @return true if no write is needed
+     */
+    private boolean isComponent(Comparable current, Comparable converted) {
+        if (current == null || converted == null) {
+            return current == converted;
+        }
+        if (current instanceof Date && converted instanceof Date) {
+            // comparing time as database may return Timestamp
+            return ((Date) current).getTime() == ((Date) converted).getTime();
+        }
+        if (current instanceof BigDecimal && converted instanceof BigDecimal) {
+            // ignoring scale
+            return ((BigDecimal) current).compareTo((BigDecimal) converted) == 0;
+        }
+        return current.equals(converted);
+    }
+
+    /**
+     * loading the current tokens of the records to update
+     *
+     * @param list records to save
+     * @return current tokens mapped by record id
+     */
+    private <T extends Record> Map<Long, Set<String>> findTokens(List<T> list) {
+        Map<Long, Set<String>> tokenMap = new HashMap<>();
+        List<Long> idList = list.stream()
+                .filter((record) -> (record != null && record.getId() != null))
+                .filter((record) -> (!mc.getIndexPlan(record.getClass()).getSearchableFieldList().isEmpty()))
+                .map((record) -> record.getId())
+                .collect(Collectors.toList());
+        //-- reading by max batch of PARAMETER_PAGING
+        for (int start = 0; start < idList.size(); start += PARAMETER_PAGING) {
+            List<Long> page = idList.subList(start, Math.min(idList.size(), start + PARAMETER_PAGING));
+            List<RecordTokenPK> tokenList = mc.getTransactionEntityManager()
+                    .createNamedQuery("RecordToken.findFromIdList", RecordTokenPK.class)
+                    .setParameter("list", page)
+                    .getResultList();
+            for (RecordTokenPK pk : tokenList) {
+                tokenMap.computeIfAbsent(pk.getRecord(), (id) -> new HashSet<>()).add(pk.getToken());
+            }
+        }
+        return tokenMap;
+    }
+
+    /**
+     * splitting the searchable fields of a record into tokens. Only the added
+     * and removed tokens are written.
+     *
+     * @param isNew record has never been parsed
+     * @param record record to parse
+     * @param tokenMap current tokens of the records, updated with the writes
+     */
+    private void tokenRecord(boolean isNew, Record record, Map<Long, Set<String>> tokenMap) {
+        List<SearchableField> fieldList = mc.getIndexPlan(record.getClass()).getSearchableFieldList();
+        if (fieldList.isEmpty()) {
+            return;
+        }
+        Set<String> tokenSet = new HashSet<>();
+        for (SearchableField field : fieldList) {
+            Tokenizer.addTokens(tokenSet, field.get(record), field.isPrefixes());
+        }
+        EntityManager em = mc.getTransactionEntityManager();
+        Set<String> currentSet = isNew ? Collections.emptySet() : tokenMap.getOrDefault(record.getId(), Collections.emptySet());
+        for (String token : currentSet) {
+            if (!tokenSet.contains(token)) {
+                em.remove(em.getReference(RecordToken.class, new RecordTokenPK(record.getId(), token)));
+            }
+        }
+        for (String token : tokenSet) {
+            if (!currentSet.contains(token)) {
+                em.persist(new RecordToken(new RecordTokenPK(record.getId(), token)));
+            }
+        }
+        tokenMap.put(record.getId(), tokenSet);
+    }
+
+    /**
+     * parsing record to extract indexed fields. Only the indexes with a
+     * changed value are written.
+     *
+     * @param isNew record has never been parsed
+     * @param record record to parse
+     * @param indexMap current indexes of the records, updated with the writes
+     */
+    private void indexRecord(boolean isNew, Record record, Map<RecordIndexPK, RecordIndex> indexMap) {
+        EntityManager em = mc.getTransactionEntityManager();
+        for (IndexedField field : mc.getIndexPlan(record.getClass()).getFieldList()) {
+            // reading field value to add to index list
+            Object fieldValue = field.get(record);
+            Comparable converted = pm.getConverted(fieldValue);
+            RecordIndexPK pk = new RecordIndexPK(field.getKey(), record.getId(), field.getName());
+            RecordIndex ri = isNew ? null : indexMap.get(pk);
+            if (converted == null) {
+                if (ri != null) {
+                    // value removed
+                    em.remove(ri);
+                    indexMap.remove(pk);
+                } else if (!isNew) {
+                    skippedIndexWrites++;
+                }
+            } else if (ri == null) {
+                // mapping the index to the database
+                ri = new RecordIndex(pk);
+                setIndexValue(ri, field, converted);
+                em.persist(ri);
+                indexMap.put(pk, ri);
+            } else if (isIndexValue(ri, field, converted)) {
+                skippedIndexWrites++;
+            } else {
+                // managed entity, updated on commit
+                setIndexValue(ri, field, converted);
+            }
+        }
+    }
+
+    /**
+     * mapping the converted value to the index column matching the field type
+     *
+     * @param ri index to set
+     * @param field indexed field
+     * @param converted converted value
+     */
+    private void setIndexValue(RecordIndex ri, IndexedField field, Comparable converted) {
+        ri.setDate(null);
+        ri.setValue(null);
+        ri.setNumeric(null);
+        switch (field.getType()) {
+            case DATE:
+                ri.setDate((Date) converted);
+                break;
+            case STRING:
+                ri.setValue((String) converted);
+                break;
+            case NUMERIC:
+                ri.setNumeric((BigDecimal) converted);
+                break;
+        }
+    }
+
+    /**
+     * checking if the index already holds the converted value
+     *
+     * @param ri current index
+     * @param field indexed field
+     * @param converted converted value
+     * @return true if no write is needed
+     */
+    private boolean isIndexValue(RecordIndex ri, IndexedField field, Comparable converted) {
+        switch (field.getType()) {
+            case DATE:
+                // comparing time as database may return Timestamp
+                return ri.getValue() == null && ri.getNumeric() == null && ri.getDate() != null
+                        && ri.getDate().getTime() == ((Date) converted).getTime();
+            case STRING:
+                return ri.getDate() == null && ri.getNumeric() == null && converted.equals(ri.getValue());
+            case NUMERIC:
+                // ignoring scale
+                return ri.getDate() == null && ri.getValue() == null && ri.getNumeric() != null
+                        && ri.getNumeric().compareTo((BigDecimal) converted) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * number of index writes avoided on update since the indexed value did
+     * not change
+     *
+     * @return skipped writes count
+     */
+    public long getSkippedIndexWrites() {
+        return skippedIndexWrites;
+    }
+
     /**
      * deleting one or more records from the database
      *
@@ -279,17 +626,29 @@ public class Records {
         if (!records.isEmpty()) {
             //-- removing records by max batch of PARAMETER_PAGING which is the max number of paramaters supported by some databases (ex PostgreSQL)
             //-- single transaction for all deletes to preserve integrity and faster processing (batch SQL).
+            //-- large removals are performed with DELETE statements instead of entity removal
+            boolean bulk = records.size() >= bulkRemoveThreshold;
             mc.transaction(() -> {
                 int start = 0;
                 int end = Math.min(records.size(), PARAMETER_PAGING);
                 while (start < records.size()) {
-                    removeTransaction(records.subList(start, end));
+                    if (bulk) {
+                        bulkRemoveTransaction(records.subList(start, end));
+                    } else {
+                        removeTransaction(records.subList(start, end));
+                    }
                     start = end;
                     end = Math.min(records.size(), end + PARAMETER_PAGING);
                 }
+                //-- once committed, unvalidating the cached links of the IDs
+                LinkCache linkCache = LinkCache.of(mc.getEntityManagerFactory());
+                if (linkCache != null) {
+                    List<Long> idList = records.stream().map((record) -> record.getId()).collect(Collectors.toList());
+                    mc.afterTransaction(() -> linkCache.invalidateLinked(idList), null);
+                }
             });
-            //-- if transaction is successfull unvalidating IDs
             records.stream().forEach((record) -> {
+                invalidateCache(record.getId());
                 record.setId(-1L);
             });
         }
@@ -362,6 +721,10 @@ public class Records {
             auditor.logRemovePath(path.getParent(), path.getChild());
         }
 
+        //-- removing tokens and composite indexes
+        em.createNamedQuery("RecordToken.deleteByIdList").setParameter("list", idList).executeUpdate();
+        em.createNamedQuery("RecordComposite.deleteByIdList").setParameter("list", idList).executeUpdate();
+
         //-- removing indexes
         List<RecordIndexPK> indexList = em.createNamedQuery("RecordIndex.findIndexFromIdList").setParameter("list", idList).getResultList();
         indexList.stream().forEach((index) -> {
@@ -377,6 +740,135 @@ public class Records {
 
     }
 
+    /**
+     * Removing the records, links, paths and indexes with set based DELETE
+     * statements, by pages of BULK_PAGING ids. Records of other tenants are
+     * ignored.
+     *
+     * @param <T> POJOs must extend DefaultRecord
+     * @param recordList list of records to remove
+     */
+    private <T extends Record> void bulkRemoveTransaction(List<T> recordList) {
+        //-- sorted so that each page is a narrow id range, helping the database to use the primary key
+        List<Long> idList = recordList.stream().map((record) -> record.getId()).sorted().collect(Collectors.toList());
+        for (int start = 0; start < idList.size(); start += BULK_PAGING) {
+            bulkRemovePage(idList.subList(start, Math.min(idList.size(), start + BULK_PAGING)));
+        }
+    }
+
+    /**
+     * removing a page of records with DELETE statements
+     *
+     * @param idList ids of the records to remove
+     */
+    private void bulkRemovePage(List<Long> idList) {
+        EntityManager em = mc.getTransactionEntityManager();
+        //-- restricting to the current tenant, reading types for audit
+        Map<Long, Integer> recordTypeMap = new LinkedHashMap<>();
+        Object tenant = em.getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
+        if (tenant != null || auditor.isEnabled()) {
+            Query query = (tenant != null)
+                    ? em.createNamedQuery("RecordWrapper.findTypeFromIdRangeAndTenant").setParameter("tenant", tenant.toString())
+                    : em.createNamedQuery("RecordWrapper.findTypeFromIdRange");
+            List<Object[]> typeList = setIdRange(query, idList).getResultList();
+            for (Object[] row : typeList) {
+                recordTypeMap.put((Long) row[0], (Integer) row[1]);
+            }
+            //-- sorted again, the bounds of the range being the first and last ids
+            idList = new ArrayList<>(recordTypeMap.keySet());
+            Collections.sort(idList);
+            if (idList.isEmpty()) {
+                return;
+            }
+        }
+        //-- removing links
+        if (auditor.isEnabled()) {
+            List<RecordLinkPK> linkList = em.createNamedQuery("RecordLink.findByReferenceIdList").setParameter("list", idList).getResultList();
+            auditor.logRemoveLinks(linkList);
+        }
+        em.createNamedQuery("RecordLink.deleteByReferenceIdList").setParameter("list", idList).executeUpdate();
+        em.createNamedQuery("RecordLink.deleteByLinkIdList").setParameter("list", idList).executeUpdate();
+        //-- removing paths
+        removeBranches(idList);
+        //-- removing tokens and indexes
+        em.createNamedQuery("RecordToken.deleteByIdList").setParameter("list", idList).executeUpdate();
+        em.createNamedQuery("RecordComposite.deleteByIdList").setParameter("list", idList).executeUpdate();
+        em.createNamedQuery("RecordIndex.deleteByIdList").setParameter("list", idList).executeUpdate();
+        //-- removing records
+        setIdRange(em.createNamedQuery("RecordWrapper.deleteByRecordIdRange"), idList).executeUpdate();
+        auditor.logRemoveRecords(recordTypeMap);
+    }
+
+    /**
+     * setting the ids of a query, with their bounds
+     *
+     * @param query query with list, min and max parameters
+     * @param idList sorted ids
+     * @return query
+     */
+    private Query setIdRange(Query query, List<Long> idList) {
+        return query.setParameter("list", idList)
+                .setParameter("min", idList.get(0))
+                .setParameter("max", idList.get(idList.size() - 1));
+    }
+
+    /**
+     * Removing the paths of records, same result as removing each of their
+     * parent and child paths. For a removed record, the rows linking its
+     * ancestors (and itself) to its descendants are dropped, as well as the
+     * rows ending on it.
+     *
+     * @param idList removed records
+     */
+    private void removeBranches(List<Long> idList) {
+        EntityManager em = mc.getTransactionEntityManager();
+        List<RecordPathPK> aboveList = em.createNamedQuery("RecordPath.findChildFromIdList").setParameter("list", idList).getResultList();
+        List<RecordPathPK> belowList = em.createNamedQuery("RecordPath.findPathFromIdList").setParameter("list", idList).getResultList();
+        if (aboveList.isEmpty() && belowList.isEmpty()) {
+            return;
+        }
+        //-- ancestors and descendants, including the record itself
+        Map<Long, Set<Long>> ancestorMap = new HashMap<>();
+        Map<Long, Set<Long>> descendantMap = new HashMap<>();
+        Set<RecordPathPK> edgeSet = new LinkedHashSet<>();
+        for (RecordPathPK pk : aboveList) {
+            ancestorMap.computeIfAbsent(pk.getChild(), (id) -> new HashSet<>(Collections.singleton(id))).add(pk.getPath());
+            edgeSet.add(new RecordPathPK(pk.getParent(), pk.getChild(), pk.getParent()));
+        }
+        for (RecordPathPK pk : belowList) {
+            descendantMap.computeIfAbsent(pk.getPath(), (id) -> new HashSet<>(Collections.singleton(id))).add(pk.getChild());
+            if (pk.getParent() == pk.getPath()) {
+                edgeSet.add(pk);
+            }
+        }
+        auditor.logRemovePaths(edgeSet);
+        //-- rows ending on removed records
+        em.createNamedQuery("RecordPath.deleteByChildIdList").setParameter("list", idList).executeUpdate();
+        //-- rows from the ancestors to the descendants
+        for (Map.Entry<Long, Set<Long>> entry : descendantMap.entrySet()) {
+            List<Long> pathList = new ArrayList<>(ancestorMap.getOrDefault(entry.getKey(), Collections.singleton(entry.getKey())));
+            List<Long> parentList = new ArrayList<>(entry.getValue());
+            int paging = Math.max(1, BULK_PAGING - pathList.size());
+            for (int start = 0; start < parentList.size(); start += paging) {
+                em.createNamedQuery("RecordPath.deleteBranch")
+                        .setParameter("pathList", pathList)
+                        .setParameter("parentList", parentList.subList(start, Math.min(parentList.size(), start + paging)))
+                        .executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Setting the number of records from which remove uses set based DELETE
+     * statements instead of removing each entity. 0 to always use them,
+     * Integer.MAX_VALUE to never use them.
+     *
+     * @param bulkRemoveThreshold number of records
+     */
+    public void setBulkRemoveThreshold(int bulkRemoveThreshold) {
+        this.bulkRemoveThreshold = bulkRemoveThreshold;
+    }
+
     /*
      //-- KEPT AS KNOWLEDGE REFERENCE
      //-- single  query less efficient than batch remove 
@@ -429,7 +921,9 @@ public class Records {
                 // performing database operations
                 mc.getTransactionEntityManager().persist(cloneWrapper);
                 T recordClone = mc.getRecord(recordClass, wrapper);
-                indexRecord(true, recordClone);
+                indexRecord(true, recordClone, new HashMap<>());
+                tokenRecord(true, recordClone, new HashMap<>());
+                compositeRecord(true, recordClone, new HashMap<>());
                 auditor.logCreateRecord(cloneWrapper);
                 list.add(recordClone);
             }
@@ -447,6 +941,33 @@ public class Records {
         return new FluentLink.Builder(mc, reference, auditor);
     }
 
+    /**
+     * Recomputing the depth of all the hierarchy paths of the persistence
+     * unit, level by level. To run once on databases holding paths saved
+     * without depth, as depth bounded queries (above and below with a depth)
+     * skip them.
+     *
+     * @return number of levels of the deepest path
+     */
+    public int rebuildPathDepth() {
+        int[] depth = new int[1];
+        mc.transaction(() -> {
+            EntityManager em = mc.getTransactionEntityManager();
+            em.createNamedQuery("RecordPath.resetEdgeDepth").executeUpdate();
+            em.createNamedQuery("RecordPath.clearDepth").executeUpdate();
+            //-- a path at depth n + 1 extends a path at depth n
+            int updated = 1;
+            while (updated > 0) {
+                depth[0]++;
+                updated = em.createNamedQuery("RecordPath.propagateDepth")
+                        .setParameter("depth", depth[0] + 1)
+                        .setParameter("previous", depth[0])
+                        .executeUpdate();
+            }
+        });
+        return depth[0];
+    }
+
     /**
      * fluent query API
      *
@@ -458,6 +979,19 @@ public class Records {
         return new FluentQuery.Builder<>(mc, referenceClass);
     }
 
+    /**
+     * Executing a prepared query with new values, in the order of the calls
+     * of the fluent chain it was prepared from
+     *
+     * @param <T> POJOs must extend DefaultRecord
+     * @param prepared query prepared with query(...).prepare()
+     * @param values new values, or none to reuse the prepared ones
+     * @return query to execute
+     */
+    public <T extends Record> PreparedRecordQuery.Execution<T> query(PreparedRecordQuery<T> prepared, Object... values) {
+        return prepared.bind(mc, values);
+    }
+
     /**
      * Gives the type of a record from its id. Main purpose is to check if the
      * manipulated id has the correct type.
@@ -482,6 +1016,21 @@ public class Records {
         auditor = new AuditLogger(mc, user);
     }
 
+    /**
+     * Enabling auditing with logs written in background, in their own
+     * transactions, once the audited transaction is committed. Transactions
+     * not run by the controller (container managed or joined) and JTA
+     * persistence units keep writing their logs within the audited
+     * transaction. Saving fails once the writer is shut down.
+     *
+     * @param user name used for auditing logs
+     * @param durability FLUSH_ON_COMMIT to wait for the logs to be written,
+     * EVENTUAL to return at once
+     */
+    public void enableAudit(String user, AuditWriter.Durability durability) {
+        auditor = new AuditLogger(mc, user, durability);
+    }
+
     /**
      * disabling audit for better performances
      */
@@ -489,6 +1038,139 @@ public class Records {
         auditor = new AuditLogger();
     }
 
+    /**
+     * Setting the storage format of the records (default is JSON). Classes
+     * annotated with RecordFormat keep their own format. Records stored with
+     * any known format remain readable.
+     *
+     * @param codec record format
+     */
+    public void setCodec(RecordCodec codec) {
+        mc.setCodec(codec);
+    }
+
+    /**
+     * Enabling the cache of decoded records for the persistence unit, saving
+     * the decoding of records read again. Cached records are checked against
+     * the stored data, and a copy is returned unless the record class is
+     * annotated with RecordImmutable. Records classes without default
+     * constructor are not cached.
+     *
+     * @param maxEntries max number of cached records
+     * @param maxWeight max cumulated size of the stored data of cached
+     * records, in bytes
+     * @return cache of the persistence unit, with its statistics
+     */
+    public RecordCache enableRecordCache(int maxEntries, long maxWeight) {
+        return RecordCache.enable(mc.getEntityManagerFactory(), maxEntries, maxWeight);
+    }
+
+    /**
+     * disabling the cache of decoded records for the persistence unit
+     */
+    public void disableRecordCache() {
+        RecordCache.disable(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * @return cache of decoded records of the persistence unit, or null if not
+     * enabled
+     */
+    public RecordCache getRecordCache() {
+        return RecordCache.of(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * dropping a record from the cache of decoded records, if enabled
+     *
+     * @param id record id
+     */
+    private void invalidateCache(Long id) {
+        RecordCache cache = RecordCache.of(mc.getEntityManagerFactory());
+        if (cache != null && id != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * Enabling the cache of links for the persistence unit. The links of a
+     * record are loaded once and then kept up to date by the link and remove
+     * operations, serving isAvailable, getAttribute and the intersections of
+     * queries linking many records.
+     *
+     * @param maxEntries max number of records with cached links
+     * @param maxLinks max cumulated number of cached links
+     * @return cache of the persistence unit, with its statistics
+     */
+    public LinkCache enableLinkCache(int maxEntries, long maxLinks) {
+        return LinkCache.enable(mc.getEntityManagerFactory(), maxEntries, maxLinks);
+    }
+
+    /**
+     * disabling the cache of links for the persistence unit
+     */
+    public void disableLinkCache() {
+        LinkCache.disable(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * @return cache of links of the persistence unit, or null if not enabled
+     */
+    public LinkCache getLinkCache() {
+        return LinkCache.of(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * Enabling the allocation of record ids by blocks for the persistence
+     * unit, instead of the JPA table generator. The blocks are reserved in
+     * their own transaction and grow under sustained insert load, so
+     * concurrent writers rarely wait for the sequence table. Resource must be
+     * local and the Sequence entity listed in the persistence unit.
+     *
+     * @param minBlockSize initial and min number of ids reserved at once
+     * @param maxBlockSize max number of ids reserved at once
+     * @return allocator of the persistence unit, with its statistics
+     */
+    public IdAllocator enableIdAllocator(int minBlockSize, int maxBlockSize) {
+        return IdAllocator.enable(mc.getEntityManagerFactory(), minBlockSize, maxBlockSize);
+    }
+
+    /**
+     * disabling the allocation of record ids by blocks for the persistence
+     * unit
+     */
+    public void disableIdAllocator() {
+        IdAllocator.disable(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * @return id allocator of the persistence unit, or null if not enabled
+     */
+    public IdAllocator getIdAllocator() {
+        return IdAllocator.of(mc.getEntityManagerFactory());
+    }
+
+    /**
+     * using an allocator for the ids of the records saved by this instance
+     * only, leaving the id generation of the persistence unit unchanged
+     *
+     * @param localIdAllocator allocator, or null to use the one of the
+     * persistence unit
+     */
+    void setLocalIdAllocator(IdAllocator localIdAllocator) {
+        this.localIdAllocator = localIdAllocator;
+    }
+
+    /**
+     * Preloading all the known record types, typically at startup. The
+     * metadata is shared by all the instances using the same persistence unit.
+     *
+     * @return number of record types loaded
+     */
+    public int warmUp() {
+        return mc.warmUp();
+    }
+
     //--------------------------------------------------------------------------
     // Record internal
     //--------------------------------------------------------------------------
@@ -531,6 +1213,18 @@ public class Records {
     // Transactions
     //--------------------------------------------------------------------------
     
+    /**
+     * Releasing everything kept for the persistence unit (metadata, caches, id
+     * allocator, audit writer thread), to call before closing the factory.
+     * Factories closed without release are dropped when a new factory is
+     * used.
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void release(EntityManagerFactory emf) {
+        MetadataRegistry.release(emf);
+    }
+
     /**
      * Spawn transaction to group multiple writing operations.
      * Otherwise a transaction is encapsulating each operation.
@@ -564,7 +1258,11 @@ public class Records {
         if (tenant != null) {
            wrapper.setTenant(tenant.toString());
         }
-        //-- getting the id from the JPA
+        //-- getting the id from the allocator if enabled, otherwise from the JPA
+        IdAllocator idAllocator = (localIdAllocator != null) ? localIdAllocator : IdAllocator.of(mc.getEntityManagerFactory());
+        if (idAllocator != null) {
+            wrapper.setId(idAllocator.next());
+        }
         mc.getTransactionEntityManager().persist(wrapper);
         Long recordId = wrapper.getId();
         record.setId(recordId);
@@ -588,8 +1286,7 @@ public class Records {
         //-- applying path branch to childrens
         for (RecordPathPK pk : pkList) {
             for (Long path : pathList) {
-                pk.setPath(path);
-                em.remove(em.getReference(RecordPath.class, pk));
+                em.remove(em.getReference(RecordPath.class, new RecordPathPK(pk.getParent(), pk.getChild(), path)));
             }
         }
     }
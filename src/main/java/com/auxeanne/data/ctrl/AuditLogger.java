@@ -16,9 +16,16 @@
 package com.auxeanne.data.ctrl;
 
 import com.auxeanne.data.db.RecordAudit;
+import com.auxeanne.data.db.RecordLinkPK;
+import com.auxeanne.data.db.RecordPathPK;
 import com.auxeanne.data.db.RecordWrapper;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import org.eclipse.persistence.config.EntityManagerProperties;
 
 /**
  * Dedicated operations to drop transactions in an audit table.
@@ -31,6 +38,16 @@ public class AuditLogger {
     private String user;
     private DatabaseController mc;
     private boolean enabled = false;
+    /**
+     * background writer, null when logs are written in the audited
+     * transaction. Only used for the transactions run by the controller.
+     */
+    private AuditWriter writer;
+    private AuditWriter.Durability durability;
+    /**
+     * logs of the running transaction waiting for commit
+     */
+    private List<RecordAudit> pendingList;
 
     public AuditLogger() {
 
@@ -42,10 +59,51 @@ public class AuditLogger {
         enabled = true;
     }
 
+    /**
+     * logs queued on commit and written in background. JTA resources keep
+     * writing the logs in the audited transaction, the writer using resource
+     * local transactions.
+     *
+     * @param mc database controller
+     * @param user name used for auditing logs
+     * @param durability when the logs are written
+     */
+    public AuditLogger(DatabaseController mc, String user, AuditWriter.Durability durability) {
+        this(mc, user);
+        if (!mc.isJtaResource()) {
+            this.writer = AuditWriter.of(mc.getEntityManagerFactory());
+        }
+        this.durability = durability;
+    }
+
     private void log(RecordAudit ra) {
         ra.setExecution(new Date());
         ra.setBy(user);
-        mc.getTransactionEntityManager().persist(ra);
+        if (writer == null || !mc.isOwnTransaction()) {
+            //-- written with the audited transaction, also when it is not run by the controller (container managed)
+            mc.getTransactionEntityManager().persist(ra);
+        } else if (pendingList != null) {
+            pendingList.add(ra);
+        } else {
+            //-- first log of the transaction : publishing all the logs on commit, dropping them on rollback
+            List<RecordAudit> list = new ArrayList<>();
+            list.add(ra);
+            pendingList = list;
+            Object tenant = mc.getTransactionEntityManager().getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
+            mc.afterTransaction(() -> {
+                release(list);
+                long ticket = writer.enqueue((tenant != null) ? tenant.toString() : null, list);
+                if (durability == AuditWriter.Durability.FLUSH_ON_COMMIT) {
+                    writer.await(ticket);
+                }
+            }, () -> release(list));
+        }
+    }
+
+    private void release(List<RecordAudit> list) {
+        if (pendingList == list) {
+            pendingList = null;
+        }
     }
 
     public void logCreateRecord(RecordWrapper rw) {
@@ -78,6 +136,10 @@ public class AuditLogger {
         }
     }
 
+    public boolean isEnabled() {
+        return enabled;
+    }
+
     public void logRemoveRecord(RecordWrapper rw) {
         if (enabled) {
             RecordAudit ra = new RecordAudit();
@@ -153,4 +215,30 @@ public class AuditLogger {
         }
     }
 
+    public void logRemoveRecords(Map<Long, Integer> recordTypeMap) {
+        if (enabled) {
+            recordTypeMap.forEach((id, recordType) -> {
+                RecordAudit ra = new RecordAudit();
+                ra.setAction("RECORD_REMOVE");
+                //
+                ra.setId(id);
+                ra.setRecordType(recordType);
+                //
+                log(ra);
+            });
+        }
+    }
+
+    public void logRemoveLinks(Collection<RecordLinkPK> linkList) {
+        if (enabled) {
+            linkList.forEach((pk) -> logRemoveLink(pk.getReference(), pk.getLink()));
+        }
+    }
+
+    public void logRemovePaths(Collection<RecordPathPK> pathList) {
+        if (enabled) {
+            pathList.forEach((pk) -> logRemovePath(pk.getParent(), pk.getChild()));
+        }
+    }
+
 }
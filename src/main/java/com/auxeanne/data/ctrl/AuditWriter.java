@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.db.RecordAudit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import org.eclipse.persistence.config.EntityManagerProperties;
+import org.eclipse.persistence.exceptions.TransactionException;
+
+/**
+ * Background writer of the audit logs. Events are queued in a bounded buffer
+ * once the audited transaction is committed, then persisted by batch in
+ * their own transactions (JDBC batch writing applies when enabled in the
+ * persistence unit). Producers block when the buffer is full.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class AuditWriter {
+
+    /**
+     * when the audit logs are written
+     */
+    public enum Durability {
+        /**
+         * the audited transaction returns once its logs are written
+         */
+        FLUSH_ON_COMMIT,
+        /**
+         * the logs are written in background after the audited transaction
+         */
+        EVENTUAL
+    }
+
+    /**
+     * default number of events buffered before blocking the producers
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+    /**
+     * default max number of events written in one transaction
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * one writer per persistence unit
+     */
+    private static final ConcurrentHashMap<EntityManagerFactory, AuditWriter> writers = new ConcurrentHashMap<>();
+
+    private final EntityManagerFactory emf;
+    private final ArrayBlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /**
+     * notifying flush waiters
+     */
+    private final Object monitor = new Object();
+    //-- metrics
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+
+    private AuditWriter(EntityManagerFactory emf, int capacity, int batchSize) {
+        this.emf = emf;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.thread = new Thread(this::run, "auxeanne-audit-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * writer of a persistence unit, created with default settings if needed
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @return shared writer
+     */
+    public static AuditWriter of(EntityManagerFactory emf) {
+        return of(emf, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * writer of a persistence unit, settings only apply on creation
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param capacity number of events buffered before blocking the producers
+     * @param batchSize max number of events written in one transaction
+     * @return shared writer
+     */
+    public static AuditWriter of(EntityManagerFactory emf, int capacity, int batchSize) {
+        return writers.computeIfAbsent(emf, (key) -> new AuditWriter(key, capacity, batchSize));
+    }
+
+    /**
+     * writing the pending logs and stopping the writer of a persistence unit,
+     * typically before closing the factory
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void shutdown(EntityManagerFactory emf) {
+        AuditWriter writer = writers.remove(emf);
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    /**
+     * queuing the logs of a committed transaction, blocking while the buffer
+     * is full. Failing at once when the writer is stopped, as nothing would
+     * empty the buffer.
+     *
+     * @param tenant tenant of the logs, null if none
+     * @param list logs in execution order
+     * @return ticket to wait for with await
+     */
+    synchronized long enqueue(String tenant, List<RecordAudit> list) {
+        //-- synchronized to keep the logs of a transaction contiguous and the tickets ordered
+        try {
+            for (int i = 0; i < list.size(); i++) {
+                checkAlive(list.size() - i);
+                Entry entry = new Entry(tenant, list.get(i));
+                if (!queue.offer(entry)) {
+                    blocked.incrementAndGet();
+                    while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                        checkAlive(list.size() - i);
+                    }
+                }
+                enqueued.incrementAndGet();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(AuditWriter.class.getName()).log(Level.SEVERE, "Audit logs dropped on interruption", ex);
+        }
+        return enqueued.get();
+    }
+
+    /**
+     * failing when the writer is stopped
+     *
+     * @param count number of logs not queued yet
+     */
+    private void checkAlive(int count) {
+        if (!running || !thread.isAlive()) {
+            failed.addAndGet(count);
+            throw new TransactionException("Audit writer stopped, logs lost : " + count);
+        }
+    }
+
+    /**
+     * waiting for the logs queued up to the ticket to be processed
+     *
+     * @param ticket value returned by enqueue
+     */
+    void await(long ticket) {
+        synchronized (monitor) {
+            while (processed.get() < ticket && thread.isAlive()) {
+                try {
+                    monitor.wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * waiting for all the queued logs to be processed
+     */
+    public void flush() {
+        await(enqueued.get());
+    }
+
+    /**
+     * writing the pending logs and stopping the writer
+     */
+    private void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * background loop
+     */
+    private void run() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (RuntimeException ex) {
+                //-- the writer keeps running for the next batches
+                failed.addAndGet(batch.size());
+                Logger.getLogger(AuditWriter.class.getName()).log(Level.SEVERE, "Audit logs lost : " + batch.size(), ex);
+            } finally {
+                processed.addAndGet(batch.size());
+                batch.clear();
+                synchronized (monitor) {
+                    monitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * persisting a batch, one transaction per tenant
+     *
+     * @param batch logs to write
+     */
+    private void write(List<Entry> batch) {
+        Map<String, List<RecordAudit>> byTenant = new LinkedHashMap<>();
+        for (Entry entry : batch) {
+            byTenant.computeIfAbsent(entry.tenant, (key) -> new ArrayList<>()).add(entry.audit);
+        }
+        byTenant.forEach((tenant, list) -> {
+            HashMap properties = new HashMap();
+            if (tenant != null) {
+                properties.put(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT, tenant);
+            }
+            EntityManager em = null;
+            EntityTransaction tx = null;
+            try {
+                //-- connection or transaction failures count as lost logs as well
+                em = emf.createEntityManager(properties);
+                tx = em.getTransaction();
+                tx.begin();
+                list.forEach(em::persist);
+                tx.commit();
+                written.addAndGet(list.size());
+            } catch (RuntimeException ex) {
+                if (tx != null && tx.isActive()) {
+                    tx.rollback();
+                }
+                failed.addAndGet(list.size());
+                Logger.getLogger(AuditWriter.class.getName()).log(Level.SEVERE, "Audit logs lost : " + list.size(), ex);
+            } finally {
+                if (em != null) {
+                    em.close();
+                }
+            }
+        });
+    }
+
+    //--------------------------------------------------------------------------
+    // METRICS
+    //--------------------------------------------------------------------------
+    /**
+     * @return number of logs queued since creation
+     */
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    /**
+     * @return number of logs written since creation
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return number of logs lost on database errors since creation
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of times a producer waited for a full buffer
+     */
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return number of logs waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of logs that can be queued without blocking
+     */
+    public int getRemainingCapacity() {
+        return queue.remainingCapacity();
+    }
+
+    /**
+     * queued log with its tenant
+     */
+    private static class Entry {
+
+        private final String tenant;
+        private final RecordAudit audit;
+
+        Entry(String tenant, RecordAudit audit) {
+            this.tenant = tenant;
+            this.audit = audit;
+        }
+    }
+
+}
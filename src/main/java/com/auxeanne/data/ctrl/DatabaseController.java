@@ -17,15 +17,17 @@ package com.auxeanne.data.ctrl;
 
 import com.auxeanne.data.db.RecordType;
 import com.auxeanne.data.db.RecordWrapper;
-import com.auxeanne.data.FieldIndexing;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import java.lang.reflect.Field;
+import com.auxeanne.data.RecordFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
@@ -34,10 +36,13 @@ import javax.transaction.HeuristicRollbackException;
 import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
+import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
+import javax.transaction.TransactionSynchronizationRegistry;
 import javax.transaction.UserTransaction;
 import org.eclipse.persistence.config.EntityManagerProperties;
 import org.eclipse.persistence.exceptions.TransactionException;
+import org.eclipse.persistence.internal.databaseaccess.DatabasePlatform;
 import org.eclipse.persistence.jpa.JpaEntityManager;
 import org.eclipse.persistence.jpa.JpaHelper;
 
@@ -85,11 +90,17 @@ public class DatabaseController {
     final private UserTransaction utx;
 
     /**
-     * GSON Handler : using ISO 8601 date format
+     * default JSON format, also decoding records stored without codec prefix
      */
-    protected final Gson gson = new GsonBuilder().setExclusionStrategies(new RecordExclusionStrategy()).create();
-    //protected final SmileFactory f = new SmileFactory();
-    //protected final ObjectMapper jackson = new ObjectMapper(f);
+    private static final RecordCodec JSON_CODEC = new GsonRecordCodec();
+    /**
+     * codecs available to decode prefixed records
+     */
+    private static final ConcurrentHashMap<Byte, RecordCodec> codecById = new ConcurrentHashMap<>();
+    /**
+     * format used to store records without RecordFormat annotation
+     */
+    private RecordCodec codec = JSON_CODEC;
 
     /**
      * managed entity manager
@@ -101,13 +112,27 @@ public class DatabaseController {
     private final EntityManagerFactory emf;
 
     /**
-     * memory cache for RecordType to improve global performance
+     * metadata shared by all the controllers of the persistence unit
+     */
+    private final MetadataRegistry registry;
+
+    /**
+     * true while running a transaction started by this controller
+     */
+    private boolean ownTransaction = false;
+    /**
+     * callbacks of the running transaction, committed / rolled back
+     */
+    private final List<Runnable[]> completionList = new ArrayList<>();
+    /**
+     * callbacks registered on a transaction not started by the controller
      */
-    private final HashMap<Class<? extends Record>, RecordType> typeCache = new HashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
     /**
-     * memory cache for field indexing
+     * container registry following the transactions not started by the
+     * controller
      */
-    private final HashMap<Class<? extends Record>, List<Field>> fieldCache = new HashMap<>();
+    private TransactionSynchronizationRegistry synchronizationRegistry;
 
     /**
      * Setting the controller with : container managed entity manager and bean
@@ -123,6 +148,7 @@ public class DatabaseController {
         this.em = em;
         this.utx = utx;
         this.emf = null;
+        this.registry = MetadataRegistry.of(em.getEntityManagerFactory());
 
         JpaEntityManager jem = JpaHelper.getEntityManager(em);
         jem.getUnitOfWork().setShouldPerformDeletesFirst(true);
@@ -141,6 +167,7 @@ public class DatabaseController {
         this.em = em;
         this.utx = null;
         this.emf = null;
+        this.registry = MetadataRegistry.of(em.getEntityManagerFactory());
 
         //-- wrong idea, the entitymanager is managed by the container and the wrapper will hold an obselete reference
         //-- Delete first is forced when accessing the entity manager >> getTransactionEntityManager()
@@ -161,6 +188,7 @@ public class DatabaseController {
         this.em = null;
         this.utx = null;
         this.emf = emf;
+        this.registry = MetadataRegistry.of(emf);
     }
 
     /**
@@ -177,6 +205,7 @@ public class DatabaseController {
         this.em = null;
         this.utx = null;
         this.emf = emf;
+        this.registry = MetadataRegistry.of(emf);
     }
 
     /**
@@ -192,6 +221,7 @@ public class DatabaseController {
         this.em = null;
         this.utx = utx;
         this.emf = emf;
+        this.registry = MetadataRegistry.of(emf);
     }
 
     /**
@@ -209,6 +239,7 @@ public class DatabaseController {
         this.em = null;
         this.utx = utx;
         this.emf = emf;
+        this.registry = MetadataRegistry.of(emf);
     }
 
     //--------------------------------------------------------------------------
@@ -274,6 +305,7 @@ public class DatabaseController {
                 EntityManager em_ = getTransactionEntityManager();
                 try {
                     utx.begin();
+                    ownTransaction = true;
                     em_.joinTransaction(); // check if needed
                     runnable.run();
                     utx.commit();
@@ -284,6 +316,7 @@ public class DatabaseController {
                     } catch (IllegalStateException | SecurityException | SystemException ex1) {
                         Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, null, ex1);
                     }
+                    completed(false);
                     throw new TransactionException("Transaction rolled back after database exception.", ex);
                 } catch (Exception ex) {
                     // any other exception passed as is after rollback
@@ -292,11 +325,13 @@ public class DatabaseController {
                     } catch (IllegalStateException | SecurityException | SystemException ex1) {
                         Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, null, ex1);
                     }
+                    completed(false);
                     throw ex;
                 } finally {
                     //-- keeping context 
                     em_.close();
                 }
+                completed(true);
             }
         } catch (SystemException ex) {
             throw new TransactionException("Transaction System Exception.", ex);
@@ -318,6 +353,7 @@ public class DatabaseController {
             } else {
                 try {
                     utx.begin();
+                    ownTransaction = true;
                     runnable.run();
                     utx.commit();
                 } catch (NotSupportedException | SystemException | RollbackException | HeuristicMixedException | HeuristicRollbackException | SecurityException | IllegalStateException ex) {
@@ -327,6 +363,7 @@ public class DatabaseController {
                     } catch (IllegalStateException | SecurityException | SystemException ex1) {
                         Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, null, ex1);
                     }
+                    completed(false);
                     throw new TransactionException("Transaction rolled back after database exception.", ex);
                 } catch (Exception ex) {
                     // any other exception passed as is after rollback
@@ -335,8 +372,10 @@ public class DatabaseController {
                     } catch (IllegalStateException | SecurityException | SystemException ex1) {
                         Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, null, ex1);
                     }
+                    completed(false);
                     throw ex;
                 }
+                completed(true);
             }
         } catch (SystemException ex) {
             throw new TransactionException("Transaction System Exception.", ex);
@@ -359,6 +398,7 @@ public class DatabaseController {
             try {
                 tx = em_.getTransaction();
                 tx.begin();
+                ownTransaction = true;
                 runnable.run();
                 tx.commit();
             } catch (SecurityException | IllegalStateException ex) {
@@ -369,6 +409,7 @@ public class DatabaseController {
                 } catch (IllegalStateException | SecurityException ex1) {
                     Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, null, ex1);
                 }
+                completed(false);
                 throw new TransactionException("Transaction rolled back after database exception.", ex);
             } catch (Exception ex) {
                 // any other exception passed as is after rollback
@@ -377,60 +418,246 @@ public class DatabaseController {
                 } catch (IllegalStateException | SecurityException ex1) {
                     Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, null, ex1);
                 }
+                completed(false);
                 throw ex;
             } finally {
                 //-- keeping context 
                 //-- Unmcomment to recreate EntityManager on each transaction
                 em_.close();
             }
+            completed(true);
+        }
+    }
+
+    /**
+     * Registering callbacks on the end of the running transaction. A
+     * transaction not started by the controller (container managed or joined
+     * user transaction) is followed through a JTA synchronization, the
+     * callbacks running on the thread completing it. Without any running
+     * transaction, the commit callback is run at once.
+     *
+     * @param committed run after commit
+     * @param rolledBack run after rollback, may be null
+     */
+    public void afterTransaction(Runnable committed, Runnable rolledBack) {
+        if (ownTransaction) {
+            completionList.add(new Runnable[]{committed, rolledBack});
+            return;
+        }
+        if (setup == SETUP_EMF__SE) {
+            //-- no transaction running
+            committed.run();
+            return;
         }
+        TransactionSynchronizationRegistry tsr = getSynchronizationRegistry();
+        if (tsr.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+            committed.run();
+            return;
+        }
+        pendingCount.incrementAndGet();
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                pendingCount.decrementAndGet();
+                Runnable callback = (status == Status.STATUS_COMMITTED) ? committed : rolledBack;
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * true while the controller runs the transaction, callbacks being
+     * registered on its own commit
+     *
+     * @return true if the transaction was started by the controller
+     */
+    public boolean isOwnTransaction() {
+        return ownTransaction;
+    }
+
+    /**
+     * true while callbacks wait for the end of the running transaction, the
+     * controller having uncommitted changes. Caches are bypassed so they
+     * neither serve stale values nor keep uncommitted ones.
+     *
+     * @return true if the transaction has pending callbacks
+     */
+    public boolean isTransactionPending() {
+        return (ownTransaction && !completionList.isEmpty()) || pendingCount.get() > 0;
+    }
+
+    /**
+     * JTA registry of the container, required for the transactions not
+     * started by the controller
+     *
+     * @return synchronization registry
+     */
+    private TransactionSynchronizationRegistry getSynchronizationRegistry() {
+        if (synchronizationRegistry == null) {
+            try {
+                synchronizationRegistry = (TransactionSynchronizationRegistry) new InitialContext().lookup("java:comp/TransactionSynchronizationRegistry");
+            } catch (NamingException ex) {
+                throw new IllegalStateException("Transaction callbacks require the JTA TransactionSynchronizationRegistry", ex);
+            }
+        }
+        return synchronizationRegistry;
+    }
+
+    /**
+     * running the callbacks of the ended transaction
+     *
+     * @param success true if committed
+     */
+    private void completed(boolean success) {
+        ownTransaction = false;
+        List<Runnable[]> list = new ArrayList<>(completionList);
+        completionList.clear();
+        for (Runnable[] callbacks : list) {
+            Runnable callback = success ? callbacks[0] : callbacks[1];
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * factory of the persistence unit
+     *
+     * @return entity manager factory
+     */
+    public EntityManagerFactory getEntityManagerFactory() {
+        return (emf != null) ? emf : em.getEntityManagerFactory();
+    }
+
+    /**
+     * checking if the persistence unit uses JTA, its entity managers having no
+     * resource local transaction
+     *
+     * @return true for a JTA resource
+     */
+    public boolean isJtaResource() {
+        return JpaHelper.getServerSession(getEntityManagerFactory()).getDatasourceLogin().shouldUseExternalTransactionController();
+    }
+
+    /**
+     * checking if the database orders NULL before any value when sorting
+     * ascending, PostgreSQL, Oracle, Derby or DB2 ordering it after
+     *
+     * @return true when NULL comes first in ascending order
+     */
+    public boolean isNullOrderedFirst() {
+        DatabasePlatform platform = JpaHelper.getServerSession(getEntityManagerFactory()).getPlatform();
+        return platform.isMySQL() || platform.isSQLServer() || platform.isSybase() || platform.isSQLAnywhere()
+                || platform.isH2() || platform.isHSQL() || platform.isInformix() || platform.isAccess();
     }
 
     /**
-     * json to instance
+     * setting the format used to store records without RecordFormat
+     * annotation
+     *
+     * @param codec record format
+     */
+    public void setCodec(RecordCodec codec) {
+        registerCodec(codec);
+        this.codec = codec;
+    }
+
+    /**
+     * making a codec available to decode the records it has stored
+     *
+     * @param codec record format
+     */
+    public static void registerCodec(RecordCodec codec) {
+        byte id = codec.getId();
+        if (id == GsonRecordCodec.ID) {
+            return;
+        }
+        if (id < 1 || id > 8) {
+            throw new IllegalArgumentException("Codec id must be between 1 and 8 : " + id);
+        }
+        codecById.putIfAbsent(id, codec);
+    }
+
+    /**
+     * finding the codec of prefixed data
+     *
+     * @param id codec prefix
+     * @return codec or null if unknown
+     */
+    private static RecordCodec getCodec(byte id) {
+        RecordCodec found = codecById.get(id);
+        if (found == null && id == SmileRecordCodec.ID) {
+            //-- built-in binary format, available without registration
+            registerCodec(new SmileRecordCodec());
+            found = codecById.get(id);
+        }
+        return found;
+    }
+
+    /**
+     * codec to store a class
+     *
+     * @param modelClass class to store
+     * @return RecordFormat codec if annotated, otherwise controller codec
+     */
+    public RecordCodec getCodec(Class<?> modelClass) {
+        Optional<RecordCodec> format = registry.getCodec(modelClass, (c) -> {
+            RecordFormat annotation = c.getAnnotation(RecordFormat.class);
+            if (annotation == null) {
+                return Optional.empty();
+            }
+            try {
+                RecordCodec annotated = annotation.value().newInstance();
+                registerCodec(annotated);
+                return Optional.of(annotated);
+            } catch (InstantiationException | IllegalAccessException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        });
+        return format.orElse(codec);
+    }
+
+    /**
+     * stored data to instance, the format being detected from the codec
+     * prefix
      *
      * @param <T> Type to return
-     * @param data JSON string
+     * @param data stored bytes
      * @param modelClass Class to convert to
      * @return POJO
      */
     public <T> T fromWrapper(byte[] data, Class<T> modelClass) {
-        try {return gson.fromJson(new String(data,"UTF-8"), modelClass);}
-        catch (Exception e) { 
+        if (data == null) {
             return null;
         }
-        // return gson.fromJson(data, modelClass);
-        //return boon.fromJson(data, modelClass);
-        //return   boon.fromJson(data, modelClass);
-//        try {
-//            T result = jackson.readValue(data, modelClass);
-//            return result;
-//        } catch (Exception e) {
-//            return null;
-//        }
-
+        byte id = (data.length > 0) ? data[0] : GsonRecordCodec.ID;
+        if (id >= 1 && id <= 8) {
+            RecordCodec prefixed = getCodec(id);
+            if (prefixed == null) {
+                Logger.getLogger(DatabaseController.class.getName()).log(Level.SEVERE, "No codec registered for id {0}", id);
+                return null;
+            }
+            return prefixed.decode(data, 1, modelClass);
+        }
+        return JSON_CODEC.decode(data, 0, modelClass);
     }
 
     /**
-     * instance to JSON
+     * instance to stored data
      *
      * @param <T> Type to convert
      * @param model POJO to convert
-     * @return JSON string
+     * @return bytes in the format of the model class
      */
     public <T> byte[] toWrapper(T model) {
-        try {return gson.toJson(model).getBytes("UTF-8");}
-        catch (Exception e) {
-            return null;
-        }
-        //return gson.toJson(model);
-        //return boon.writeValueAsBytes(model);
-        //return boon.writeValueAsString(model);
-//        try { 
-//            return jackson.writeValueAsBytes(model);
-//        } catch (Exception e) {
-//            return null;
-//        }
+        RecordCodec modelCodec = (model == null) ? codec : getCodec(model.getClass());
+        return modelCodec.encode(model);
     }
 
     /**
@@ -443,8 +670,18 @@ public class DatabaseController {
      */
     public <T extends Record> T getRecord(Class<T> recordClass, RecordWrapper wrapper) {
         byte[] data = wrapper.getData();
+        RecordCache cache = RecordCache.of(getEntityManagerFactory());
+        if (cache != null) {
+            T cached = cache.get(wrapper.getId(), recordClass, data);
+            if (cached != null) {
+                return cached;
+            }
+        }
         T model = fromWrapper(data, recordClass);
         model.setId(wrapper.getId());
+        if (cache != null) {
+            cache.put(wrapper.getId(), recordClass, data, model);
+        }
 ////       model.setDocument(wrapper.getDocument());
 ////       model.setDocumentChanged(false);
         return model;
@@ -459,45 +696,82 @@ public class DatabaseController {
      * @return the mapped recordType to the model class
      */
     public <T extends Record> RecordType getType(Class<T> recordClass, boolean skipCreation) {
-        RecordType recordType = typeCache.get(recordClass);
+        String code = recordClass.getName();
+        RecordType recordType = registry.getType(code);
         if (recordType == null) {
-            String code = recordClass.getName();
-            List<RecordType> list = getTransactionEntityManager().createNamedQuery("RecordType.findByCode", RecordType.class).setParameter("code", code).setMaxResults(1).getResultList();
-            if (!list.isEmpty()) {
-                recordType = list.get(0);
-                typeCache.put(recordClass, recordType);
-            } else if (!skipCreation) {
-                final RecordType rt = new RecordType();
-                rt.setCode(code);
-                transaction(() -> getTransactionEntityManager().persist(rt));
-                typeCache.put(recordClass, rt);
-                recordType = rt;
+            recordType = findType(code);
+            if (recordType == null && !skipCreation) {
+                //-- one creation at a time for the persistence unit to prevent duplicated types
+                synchronized (registry) {
+                    recordType = registry.getType(code);
+                    if (recordType == null) {
+                        recordType = findType(code);
+                    }
+                    if (recordType == null) {
+                        final RecordType rt = new RecordType();
+                        rt.setCode(code);
+                        transaction(() -> getTransactionEntityManager().persist(rt));
+                        registry.putType(rt);
+                        recordType = rt;
+                    }
+                }
             }
         }
         return recordType;
     }
 
     /**
-     * list (and cache) all the fields of a class with indexing annotation
+     * mapping a record type id to its model class using cache
      *
-     * @param <T> All POJOs must extend DefaultRecord
-     * @param recordClass Class to parse for indexed field
-     * @return List of field with indexing annotation
-     */
-    public <T extends Record> List<Field> getIndexingField(Class<T> recordClass) {
-        List<Field> list = fieldCache.get(recordClass);
-        if (list == null) {
-            List<Field> indexingList = new ArrayList<>();
-            Field[] fields = recordClass.getDeclaredFields();
-            for (Field field : fields) {
-                if (field.isAnnotationPresent(FieldIndexing.class)) {
-                    indexingList.add(field);
-                }
+     * @param typeId record type id
+     * @return model class or null if unknown
+     */
+    public Class<?> getRecordClass(int typeId) {
+        RecordType recordType = registry.getType(typeId);
+        if (recordType == null) {
+            recordType = getTransactionEntityManager().find(RecordType.class, typeId);
+            if (recordType == null) {
+                return null;
             }
-            fieldCache.put(recordClass, indexingList);
-            list = indexingList;
+            registry.putType(recordType);
         }
-        return list;
+        return registry.getRecordClass(recordType.getCode());
+    }
+
+    /**
+     * reading a record type from database and caching it
+     *
+     * @param code record type code
+     * @return record type or null if not existing
+     */
+    private RecordType findType(String code) {
+        List<RecordType> list = getTransactionEntityManager().createNamedQuery("RecordType.findByCode", RecordType.class).setParameter("code", code).setMaxResults(1).getResultList();
+        if (list.isEmpty()) {
+            return null;
+        }
+        RecordType recordType = list.get(0);
+        registry.putType(recordType);
+        return recordType;
+    }
+
+    /**
+     * loading all the known record types in the shared metadata
+     *
+     * @return number of record types loaded
+     */
+    public int warmUp() {
+        return registry.warmUp(getTransactionEntityManager());
+    }
+
+    /**
+     * resolving (and caching) the indexing plan of a class
+     *
+     * @param <T> All POJOs must extend DefaultRecord
+     * @param recordClass Class to parse for indexed field
+     * @return indexing plan of the fields with indexing annotation
+     */
+    public <T extends Record> IndexPlan getIndexPlan(Class<T> recordClass) {
+        return registry.getIndexPlan(recordClass);
     }
 
 }
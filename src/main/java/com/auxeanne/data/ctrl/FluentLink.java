@@ -17,13 +17,19 @@ package com.auxeanne.data.ctrl;
 
 import com.auxeanne.data.db.RecordLink;
 import com.auxeanne.data.db.RecordLinkPK;
-import com.auxeanne.data.db.RecordPath;
-import com.auxeanne.data.db.RecordPathPK;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
 
 /**
  * Fluent API to perform link operations on records.
@@ -54,6 +60,46 @@ public class FluentLink {
         private Action action;
         private ParameterManager pm = new ParameterManager();
 
+        /**
+         * max number of children per path statement
+         */
+        private static final int HIERARCHY_PAGING = 1000;
+
+        /**
+         * native statements adding children to the parent ?1, in order : new
+         * edges for the parent, new edges for the ancestors, edges below the
+         * children for the ancestors, edges below the children for the
+         * parent. The depth is the shortest number of levels known from the
+         * path to the child. The children ids are bounded by ?2 and ?3 so the
+         * database reads a narrow range of the index. Selecting parameters is
+         * avoided as some databases do not type them.
+         */
+        private static final String[] INSERT_HIERARCHY = {
+            "INSERT INTO record_path (parent_, child_, path_, depth_) SELECT p.id_, w.id_, p.id_, 1 FROM record_wrapper p, record_wrapper w WHERE p.id_ = ?1 AND w.id_ IN (%s) AND w.id_ BETWEEN ?2 AND ?3",
+            "INSERT INTO record_path (parent_, child_, path_, depth_) SELECT a.child_, w.id_, a.path_, MIN(a.depth_) + 1 FROM record_path a, record_wrapper w WHERE a.child_ = ?1 AND w.id_ IN (%s) AND w.id_ BETWEEN ?2 AND ?3"
+            + " GROUP BY a.child_, w.id_, a.path_",
+            "INSERT INTO record_path (parent_, child_, path_, depth_) SELECT e.parent_, e.child_, a.path_, MIN(a.depth_ + e.depth_) + 1 FROM record_path e, record_path a WHERE a.child_ = ?1 AND e.path_ IN (%s) AND e.path_ BETWEEN ?2 AND ?3"
+            + " AND NOT EXISTS (SELECT 1 FROM record_path r WHERE r.parent_ = e.parent_ AND r.child_ = e.child_ AND r.path_ = a.path_) GROUP BY e.parent_, e.child_, a.path_",
+            "INSERT INTO record_path (parent_, child_, path_, depth_) SELECT e.parent_, e.child_, p.id_, MIN(e.depth_) + 1 FROM record_path e, record_wrapper p WHERE p.id_ = ?1 AND e.path_ IN (%s) AND e.path_ BETWEEN ?2 AND ?3"
+            + " AND NOT EXISTS (SELECT 1 FROM record_path r WHERE r.parent_ = e.parent_ AND r.child_ = e.child_ AND r.path_ = p.id_) GROUP BY e.parent_, e.child_, p.id_"
+        };
+
+        /**
+         * native queries selecting the existing edges below the children
+         * which are reached by a shorter route through the parent ?1, for the
+         * ancestors and then for the parent, with their new depth. Unknown
+         * (legacy) depths are replaced as well. The rows are updated one by
+         * one as updating a table from a subquery on itself is not portable.
+         */
+        private static final String[] LOWER_HIERARCHY = {
+            "SELECT e.parent_, e.child_, a.path_, MIN(a.depth_ + e.depth_) + 1 FROM record_path e, record_path a, record_path r WHERE a.child_ = ?1 AND e.path_ IN (%s) AND e.path_ BETWEEN ?2 AND ?3"
+            + " AND r.parent_ = e.parent_ AND r.child_ = e.child_ AND r.path_ = a.path_ GROUP BY e.parent_, e.child_, a.path_, r.depth_"
+            + " HAVING MIN(a.depth_ + e.depth_) IS NOT NULL AND (r.depth_ IS NULL OR MIN(a.depth_ + e.depth_) + 1 < r.depth_)",
+            "SELECT e.parent_, e.child_, r.path_, MIN(e.depth_) + 1 FROM record_path e, record_path r WHERE r.path_ = ?1 AND e.path_ IN (%s) AND e.path_ BETWEEN ?2 AND ?3"
+            + " AND r.parent_ = e.parent_ AND r.child_ = e.child_ GROUP BY e.parent_, e.child_, r.path_, r.depth_"
+            + " HAVING MIN(e.depth_) IS NOT NULL AND (r.depth_ IS NULL OR MIN(e.depth_) + 1 < r.depth_)"
+        };
+
         /**
          *
          * @param mc Database controller
@@ -97,6 +143,33 @@ public class FluentLink {
             return this;
         }
 
+        @Override
+        public int moveUnder(Record parent) {
+            int[] count = new int[1];
+            mc.transaction(() -> {
+                EntityManager em = mc.getTransactionEntityManager();
+                Long id = reference.getId();
+                //-- a record can not be moved below itself
+                long below = (Long) em.createNamedQuery("RecordPath.countBelow")
+                        .setParameter("path", id)
+                        .setParameter("id", parent.getId())
+                        .getSingleResult();
+                if (id.equals(parent.getId()) || below > 0) {
+                    throw new IllegalArgumentException("Record " + id + " can not be moved below itself");
+                }
+                List<Long> parentList = em.createNamedQuery("RecordPath.findParents").setParameter("id", id).getResultList();
+                if (parentList.size() == 1 && parentList.get(0).equals(parent.getId())) {
+                    return;
+                }
+                List<Long> childList = Collections.singletonList(id);
+                for (Long previous : parentList) {
+                    count[0] += removeHierarchy(previous, childList);
+                }
+                count[0] += addHierarchy(parent.getId(), childList);
+            });
+            return count[0];
+        }
+
         //----------------------------------------------------------------------
         //  CreateBuilder, RemoveBuilder, UpdateBuilder
         //----------------------------------------------------------------------
@@ -179,6 +252,10 @@ public class FluentLink {
         //----------------------------------------------------------------------
         @Override
         public Comparable getAttribute() {
+            LinkCache cache = LinkCache.of(mc.getEntityManagerFactory());
+            if (cache != null) {
+                return cache.getAttribute(mc, reference.getId(), records[0].getId());
+            }
             RecordLinkPK pk = new RecordLinkPK(reference.getId(), records[0].getId());
             RecordLink recordLink = mc.getTransactionEntityManager().find(RecordLink.class, pk);
             if (recordLink != null) {
@@ -197,6 +274,10 @@ public class FluentLink {
 
         @Override
         public boolean isAvailable() {
+            LinkCache cache = LinkCache.of(mc.getEntityManagerFactory());
+            if (cache != null) {
+                return cache.isLinked(mc, reference.getId(), records[0].getId());
+            }
             RecordLinkPK pk = new RecordLinkPK(reference.getId(), records[0].getId());
             RecordLink recordLink = mc.getTransactionEntityManager().find(RecordLink.class, pk);
             return (recordLink != null);
@@ -230,7 +311,8 @@ public class FluentLink {
          * @param links POJOs to link to reference
          */
         private void link(Record... links) {
-            mc.transaction(() -> {
+            Comparable attribute = getAttributeValue();
+            updateLinkCache(links, (cache, ids) -> cache.link(reference.getId(), ids, attribute), () -> {
                 EntityManager em = mc.getTransactionEntityManager();
                 //-- optimized for batch processing        
                 List<Long> batchList = new ArrayList<>();
@@ -275,6 +357,53 @@ public class FluentLink {
             });
         }
 
+        /**
+         * @return attribute of the saved links, with the priority of
+         * getAttribute
+         */
+        private Comparable getAttributeValue() {
+            if (numeric != null) {
+                return numeric;
+            }
+            return (value != null) ? value : date;
+        }
+
+        /**
+         * running a link transaction and updating the link cache of the
+         * persistence unit, if enabled, once committed. Cached links of the
+         * records are dropped if the transaction rolls back, or when the
+         * transaction is not run by the controller as the cache can't follow
+         * the other changes of the transaction.
+         *
+         * @param links linked records
+         * @param update cache update after the commit
+         * @param transaction link transaction
+         */
+        private void updateLinkCache(Record[] links, BiConsumer<LinkCache, long[]> update, Runnable transaction) {
+            LinkCache cache = LinkCache.of(mc.getEntityManagerFactory());
+            if (cache == null) {
+                mc.transaction(transaction);
+                return;
+            }
+            long[] ids = new long[links.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = links[i].getId();
+            }
+            long referenceId = reference.getId();
+            Runnable invalidate = () -> {
+                cache.invalidate(ids);
+                cache.invalidate(referenceId);
+            };
+            mc.transaction(() -> {
+                transaction.run();
+                if (mc.isOwnTransaction()) {
+                    mc.afterTransaction(() -> update.accept(cache, ids), invalidate);
+                } else {
+                    mc.afterTransaction(invalidate, invalidate);
+                }
+            });
+        }
+
         private void persistLink(Long reference, Long link, String value_, BigDecimal numeric_, Date date_) {
             RecordLinkPK pk = new RecordLinkPK(reference, link);
             RecordLink recordLink = new RecordLink(pk);
@@ -289,7 +418,7 @@ public class FluentLink {
         }
 
         private void removeLink(Record... records) {
-            mc.transaction(() -> {
+            updateLinkCache(records, (cache, ids) -> cache.unlink(reference.getId(), ids), () -> {
                 for (Record record : records) {
                     EntityManager em = mc.getTransactionEntityManager();
                     em.remove(em.getReference(RecordLink.class, new RecordLinkPK(reference.getId(), record.getId())));
@@ -314,8 +443,8 @@ public class FluentLink {
                         .setParameter("list", batch)
                         .getResultList();
                 batch.removeAll(selectList);
-                for (Long id : batch) {
-                    addHierarchy(id, reference.getId());
+                for (Long id : new LinkedHashSet<>(batch)) {
+                    addHierarchy(id, Collections.singletonList(reference.getId()));
                 }
             });
         }
@@ -323,7 +452,7 @@ public class FluentLink {
         private void removeParent(Record... records) {
             mc.transaction(() -> {
                 for (Record parent : records) {
-                    removeHierarchy(parent.getId(), reference.getId());
+                    removeHierarchy(parent.getId(), Collections.singletonList(reference.getId()));
                 }
             });
         }
@@ -340,57 +469,127 @@ public class FluentLink {
                         .setParameter("list", batchList)
                         .getResultList();
                 batchList.removeAll(selectList);
-                for (Long id : batchList) {
-                    addHierarchy(reference.getId(), id);
-                }
-
+                //-- sorted so that each page is a narrow id range
+                addHierarchy(reference.getId(), new ArrayList<>(new TreeSet<>(batchList)));
             });
         }
 
         private void removeChild(Record... records) {
             mc.transaction(() -> {
+                Set<Long> childSet = new TreeSet<>();
                 for (Record child : records) {
-                    removeHierarchy(reference.getId(), child.getId());
+                    childSet.add(child.getId());
                 }
+                removeHierarchy(reference.getId(), new ArrayList<>(childSet));
             });
         }
 
-        private void addHierarchy(Long parentId, Long childId) {
+        /**
+         * Adding children to a parent with INSERT ... SELECT statements, by
+         * pages of children : the new edges and the edges below the children
+         * are copied for the parent and each of its ancestors.
+         *
+         * @param parentId parent id
+         * @param childList sorted ids of the new children, without duplicates
+         * @return number of path rows inserted
+         */
+        private int addHierarchy(Long parentId, List<Long> childList) {
             EntityManager em = mc.getTransactionEntityManager();
-            RecordPathPK newPk = new RecordPathPK(parentId, childId, parentId);
-            //if (em.find(RecordPath.class, newPk) == null) {
-            //-- building branch to propagate to new hierarchy >> getting the full path from the parent and including parent as new start point
-            List<Long> pathList = em.createQuery("SELECT rp.recordPK.path FROM RecordPath rp WHERE rp.recordPK.child = :child").setParameter("child", parentId).getResultList();
-            pathList.add(parentId);
-            //-- retrieving hierarchies to complete with new branch >> finding all children of reference
-            List<RecordPathPK> pkList = em.createQuery("SELECT rp.recordPK FROM RecordPath rp WHERE rp.recordPK.path = :path").setParameter("path", childId).getResultList();
-            pkList.add(newPk);
-            // applying path branch to childrens
-            for (RecordPathPK pk : pkList) {
-                for (Long path : pathList) {
-                    pk.setPath(path);
-                    em.persist(new RecordPath(pk));
+            //-- pending entities must be written before the native statements
+            em.flush();
+            int count = 0;
+            for (int start = 0; start < childList.size(); start += HIERARCHY_PAGING) {
+                List<Long> page = childList.subList(start, Math.min(childList.size(), start + HIERARCHY_PAGING));
+                for (String sql : INSERT_HIERARCHY) {
+                    count += executeHierarchy(em, sql, parentId, page);
+                }
+                //-- existing edges now reached by a shorter route
+                for (String sql : LOWER_HIERARCHY) {
+                    //-- native reads are disabled by default with multitenant entities
+                    List<Object[]> rowList = createHierarchyQuery(em, sql, parentId, page)
+                            .setHint(QueryHints.ALLOW_NATIVE_SQL_QUERY, HintValues.TRUE)
+                            .getResultList();
+                    for (Object[] row : rowList) {
+                        em.createNamedQuery("RecordPath.updateDepth")
+                                .setParameter("parent", ((Number) row[0]).longValue())
+                                .setParameter("child", ((Number) row[1]).longValue())
+                                .setParameter("path", ((Number) row[2]).longValue())
+                                .setParameter("depth", ((Number) row[3]).intValue())
+                                .executeUpdate();
+                    }
                 }
             }
-            auditor.logSavePath(parentId, childId);
+            childList.forEach((childId) -> auditor.logSavePath(parentId, childId));
+            return count;
         }
 
-        private void removeHierarchy(Long parentId, Long childId) {
+        /**
+         * Removing children from a parent with DELETE statements : the edges
+         * from the parent and the edges below the children are removed for
+         * the parent and each of its ancestors.
+         *
+         * @param parentId parent id
+         * @param childList sorted ids of the removed children
+         * @return number of path rows deleted
+         */
+        private int removeHierarchy(Long parentId, List<Long> childList) {
             EntityManager em = mc.getTransactionEntityManager();
-            //-- building branch to remove from below hierarchy >> using parent to use only this parent path if more than one exists
-            List<Long> pathList = em.createQuery("SELECT rp.recordPK.path FROM RecordPath rp WHERE rp.recordPK.child = :child").setParameter("child", parentId).getResultList();
+            List<Long> pathList = new ArrayList<>(em.createNamedQuery("RecordPath.findAncestors").setParameter("id", parentId).getResultList());
             pathList.add(parentId);
-            //-- retrieving hierarchies to complete with new branch >> finding all children of reference
-            List<RecordPathPK> pkList = em.createQuery("SELECT rp.recordPK FROM RecordPath rp WHERE rp.recordPK.path = :path").setParameter("path", childId).getResultList();
-            pkList.add(new RecordPathPK(parentId, childId, parentId));
-            // applying path branch to childrens
-            for (RecordPathPK pk : pkList) {
-                for (Long path : pathList) {
-                    pk.setPath(path);
-                    em.remove(em.getReference(RecordPath.class, pk));
+            int paging = Math.max(1, HIERARCHY_PAGING - pathList.size());
+            int count = 0;
+            for (int start = 0; start < childList.size(); start += paging) {
+                List<Long> page = childList.subList(start, Math.min(childList.size(), start + paging));
+                //-- edges from the parent
+                count += em.createNamedQuery("RecordPath.deleteEdges")
+                        .setParameter("parent", parentId)
+                        .setParameter("list", page)
+                        .setParameter("min", Collections.min(page))
+                        .setParameter("max", Collections.max(page))
+                        .setParameter("pathList", pathList)
+                        .executeUpdate();
+                //-- edges below the children
+                Set<Long> parentSet = new LinkedHashSet<>(page);
+                parentSet.addAll(em.createNamedQuery("RecordPath.findDescendantsFromIdList")
+                        .setParameter("list", page)
+                        .setParameter("min", Collections.min(page))
+                        .setParameter("max", Collections.max(page))
+                        .getResultList());
+                List<Long> parentList = new ArrayList<>(parentSet);
+                for (int from = 0; from < parentList.size(); from += paging) {
+                    count += em.createNamedQuery("RecordPath.deleteBranch")
+                            .setParameter("pathList", pathList)
+                            .setParameter("parentList", parentList.subList(from, Math.min(parentList.size(), from + paging)))
+                            .executeUpdate();
                 }
             }
-            auditor.logRemovePath(parentId, childId);
+            childList.forEach((childId) -> auditor.logRemovePath(parentId, childId));
+            return count;
+        }
+
+        /**
+         * executing a native path statement with the parent as first
+         * parameter, the bounds of the children and then the children
+         */
+        private int executeHierarchy(EntityManager em, String sql, Long parentId, List<Long> childList) {
+            return createHierarchyQuery(em, sql, parentId, childList).executeUpdate();
+        }
+
+        /**
+         * native path query with the parent as first parameter, the bounds of
+         * the children and then the children
+         */
+        private Query createHierarchyQuery(EntityManager em, String sql, Long parentId, List<Long> childList) {
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < childList.size(); i++) {
+                placeholders.append((i == 0) ? "?" : ", ?").append(i + 4);
+            }
+            Query query = em.createNativeQuery(String.format(sql, placeholders)).setParameter(1, parentId)
+                    .setParameter(2, Collections.min(childList)).setParameter(3, Collections.max(childList));
+            for (int i = 0; i < childList.size(); i++) {
+                query.setParameter(i + 4, childList.get(i));
+            }
+            return query;
         }
 
     }
@@ -485,6 +684,16 @@ public class FluentLink {
          */
         PathBuilder asChildOf(Record... records);
 
+        /**
+         * moving the reference and its descendants under a new parent,
+         * replacing its current parents (finalizing). The paths are
+         * recomputed in a single transaction.
+         *
+         * @param parent new parent of the reference
+         * @return number of path rows deleted and inserted
+         */
+        int moveUnder(Record parent);
+
     }
 
 }
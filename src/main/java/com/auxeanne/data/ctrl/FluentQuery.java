@@ -15,22 +15,42 @@
  */
 package com.auxeanne.data.ctrl;
 
+import com.auxeanne.data.Records;
 import com.auxeanne.data.db.RecordLink;
 import com.auxeanne.data.db.RecordPath;
+import com.auxeanne.data.db.RecordToken;
 import com.auxeanne.data.db.RecordWrapper;
+import com.auxeanne.data.ctrl.IndexPlan.Composite;
 import com.auxeanne.data.ctrl.ParameterManager.ParameterFilter;
+import com.auxeanne.data.ctrl.ParameterManager.ParameterType;
+import com.auxeanne.data.db.RecordIndex;
 import com.auxeanne.data.db.RecordType;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
@@ -38,7 +58,11 @@ import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
 import org.eclipse.persistence.config.EntityManagerProperties;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.CursoredStream;
 
 /**
  * Fluent API to perform queries in Records.
@@ -47,6 +71,18 @@ import org.eclipse.persistence.config.EntityManagerProperties;
  */
 public class FluentQuery {
 
+    /**
+     * default number of wrappers fetched at once when streaming results
+     */
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
+    /**
+     * aggregate functions
+     */
+    private static enum Aggregate {
+        COUNT, SUM, AVG, MIN, MAX
+    }
+
     /**
      * Implementing all the query steps and operations.
      *
@@ -62,7 +98,9 @@ public class FluentQuery {
         private final List<Predicate> predicateList = new ArrayList<>();
         private final List<Order> orderList = new ArrayList();
         private final HashMap<String, List<String>> equalMap = new HashMap<>();
-        private final List<String[]> searchMap = new ArrayList<>();
+        // tokens all required, and groups of tokens with one required
+        private final List<String> searchAllList = new ArrayList<>();
+        private final List<List<String>> searchAnyList = new ArrayList<>();
         private final List<IndexQuery> indexList = new ArrayList<>();
 
         private Root<RecordWrapper> recordRoot;
@@ -72,13 +110,31 @@ public class FluentQuery {
         private Integer firstResult = null;
         private Integer maxResults = null;
         private String pathTarget = null;
-        private Boolean sortByInsert = null; // true = asc; false = desc; null =none;
+        // sort keys in call order, compiled into one ORDER BY ending with the record id
+        private final List<SortStep> sortStepList = new ArrayList<>();
+        private Boolean sortByInsert = null; // true = asc; false = desc; null =none; always applied last
+        private int fetchSize = DEFAULT_FETCH_SIZE;
+        // keyset pagination
+        private final List<SortKey> sortKeyList = new ArrayList<>();
+        private Record seekRecord = null;
+        private PageToken seekToken = null;
+        private Predicate seekPredicate = null; // current phase : records with value or records without value
+        private Predicate nextPhasePredicate = null; // phase following a short page, null if none
+        private PageToken seekPosition = null; // last id and key, resolved when the query is built
+        private boolean idAscending = true; // resolved when the query is built
+        private boolean attributeSorted = false;
 
         private final ParameterManager pm = new ParameterManager();
+        // values passed as JPA parameters
+        private final QueryParameters queryParameters = new QueryParameters();
         // RecordType is constant for each query
         private final RecordType type;
         // linkingAny, childOfAny.... may bring duplicates when more than 1 target, which requires DISTINCT selector
         private boolean isDistinctRequired = false;
+        // records linked to all the linking records, from the link cache
+        private long[] commonLinks = null;
+        // prepared queries can not depend on the link cache
+        private boolean preparing = false;
 
         //----------------------------------------------------------------------
         // QueryBuilder<T> 
@@ -97,21 +153,56 @@ public class FluentQuery {
         @Override
         public T find(long id) throws IllegalAccessException {
             RecordWrapper record = mc.getTransactionEntityManager().find(RecordWrapper.class, id);
-            try {
-                if (record != null) {
-                    RecordType parent = mc.getTransactionEntityManager().find(RecordType.class, record.getRecordType());
-                    Class c = Class.forName(parent.getCode());
-                    if (referenceClass.isAssignableFrom(c)) {
-                        T t = mc.getRecord(referenceClass, record);
-                        return t;
-                    } else {
+            if (record != null) {
+                //-- record type and class resolved from the shared metadata
+                Class c = mc.getRecordClass(record.getRecordType());
+                if (c == null) {
+                    return null;
+                }
+                if (referenceClass.isAssignableFrom(c)) {
+                    T t = mc.getRecord(referenceClass, record);
+                    return t;
+                } else {
+                    throw new IllegalAccessException();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public List<T> findAll(Collection<Long> ids) throws IllegalAccessException {
+            return new ArrayList<>(findAllAsMap(ids).values());
+        }
+
+        @Override
+        public Map<Long, T> findAllAsMap(Collection<Long> ids) throws IllegalAccessException {
+            //-- distinct ids in input order
+            List<Long> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+            Map<Long, RecordWrapper> wrapperMap = new HashMap<>();
+            for (int start = 0; start < idList.size(); start += Records.PARAMETER_PAGING) {
+                List<Long> page = idList.subList(start, Math.min(idList.size(), start + Records.PARAMETER_PAGING));
+                List<RecordWrapper> wrapperList = em.createNamedQuery("RecordWrapper.findByIdList", RecordWrapper.class).setParameter("list", page).getResultList();
+                for (RecordWrapper wrapper : wrapperList) {
+                    wrapperMap.put(wrapper.getId(), wrapper);
+                }
+            }
+            //-- checking types once per record type, from the shared metadata
+            Map<Integer, Boolean> typeMap = new HashMap<>();
+            Map<Long, T> recordMap = new LinkedHashMap<>();
+            for (Long id : idList) {
+                RecordWrapper wrapper = wrapperMap.get(id);
+                if (wrapper != null) {
+                    boolean assignable = typeMap.computeIfAbsent(wrapper.getRecordType(), (typeId) -> {
+                        Class<?> c = mc.getRecordClass(typeId);
+                        return c != null && referenceClass.isAssignableFrom(c);
+                    });
+                    if (!assignable) {
                         throw new IllegalAccessException();
                     }
+                    recordMap.put(id, mc.getRecord(referenceClass, wrapper));
                 }
-            } catch (ClassNotFoundException ex) {
-                Logger.getLogger(FluentQuery.class.getName()).log(Level.SEVERE, null, ex);
             }
-            return null;
+            return recordMap;
         }
 
         private void initRecordQuery() {
@@ -135,6 +226,24 @@ public class FluentQuery {
 //            return this;
 //        }
 
+        @Override
+        public ExtendedQuery<T> searchAll(String... terms) {
+            for (String term : terms) {
+                searchAllList.addAll(Tokenizer.tokenize(term));
+            }
+            return this;
+        }
+
+        @Override
+        public ExtendedQuery<T> searchAny(String... terms) {
+            List<String> tokenList = new ArrayList<>();
+            for (String term : terms) {
+                tokenList.addAll(Tokenizer.tokenize(term));
+            }
+            searchAnyList.add(tokenList);
+            return this;
+        }
+
         @Override
         public ExtendedQuery<T> indexLike(String field, String... values) {
             indexList.add(new IndexQuery(ParameterFilter.LIKE, field, values));
@@ -197,16 +306,86 @@ public class FluentQuery {
 
         @Override
         public SortBuilder<T> orderByIndexedField(String field) {
-            indexList.add(new IndexQuery(ParameterFilter.ORDER_BY, field));
+            checkSortKey();
+            IndexQuery indexQuery = new IndexQuery(ParameterFilter.ORDER_BY, field);
+            indexList.add(indexQuery);
+            sortStepList.add(new SortStep(indexQuery, false, true));
             return this;
         }
 
         @Override
         public SortBuilder<T> reverseByIndexedField(String field) {
-            indexList.add(new IndexQuery(ParameterFilter.REVERSE_BY, field));
+            checkSortKey();
+            IndexQuery indexQuery = new IndexQuery(ParameterFilter.REVERSE_BY, field);
+            indexList.add(indexQuery);
+            sortStepList.add(new SortStep(indexQuery, false, false));
             return this;
         }
 
+        @Override
+        public SortBuilder<T> orderBy(String field) {
+            checkFirstSortKey();
+            return orderByIndexedField(field);
+        }
+
+        @Override
+        public SortBuilder<T> orderByDescending(String field) {
+            checkFirstSortKey();
+            return reverseByIndexedField(field);
+        }
+
+        @Override
+        public SortBuilder<T> thenBy(String field) {
+            return orderByIndexedField(field);
+        }
+
+        @Override
+        public SortBuilder<T> thenByDescending(String field) {
+            return reverseByIndexedField(field);
+        }
+
+        @Override
+        public SortBuilder<T> thenByInsert() {
+            return addInsertStep(true);
+        }
+
+        @Override
+        public SortBuilder<T> thenByInsertDescending() {
+            return addInsertStep(false);
+        }
+
+        /**
+         * closing the sort keys with the record id
+         *
+         * @param ascending id ordering
+         * @return Fluent Query
+         */
+        private SortBuilder<T> addInsertStep(boolean ascending) {
+            if (sortByInsert != null || isSortedByInsert()) {
+                throw new IllegalStateException("The insert order is already set");
+            }
+            sortStepList.add(new SortStep(null, true, ascending));
+            return this;
+        }
+
+        /**
+         * rejecting sort keys the query would ignore, following the record id
+         */
+        private void checkSortKey() {
+            if (isSortedByInsert()) {
+                throw new IllegalStateException("No sort key can follow thenByInsert, ids being unique");
+            }
+        }
+
+        /**
+         * rejecting a first sort key called after other keys
+         */
+        private void checkFirstSortKey() {
+            if (!sortStepList.isEmpty()) {
+                throw new IllegalStateException("orderBy must be the first sort key, use thenBy for the next ones");
+            }
+        }
+
         private void applyExtendedQuery(Root root, String wrapperKey, List<Predicate> predicateList) {
             From wrapperRoot = (wrapperKey == null) ? root : root.join(wrapperKey, JoinType.INNER);
             //-- reducing scope of the query with indexed keys filtering
@@ -215,7 +394,7 @@ public class FluentQuery {
             //-- 2nd tenant filtering where it applies. It is directly managed instead of Eclipselink annotations.
             Object tenant = mc.getTransactionEntityManager().getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
             if (tenant != null) {
-                predicateList.add(cb.equal(wrapperRoot.get("tenant"), tenant.toString()));
+                predicateList.add(cb.equal(wrapperRoot.get("tenant"), queryParameters.tenant(cb, tenant.toString())));
             }
         }
 
@@ -235,88 +414,455 @@ public class FluentQuery {
 
         private void applyIndexQuery(From recordPath, List<Predicate> predicateList) {
             IndexQueryManager indexManager = new IndexQueryManager();
+            //-- filters matching a composite index become a single sub query, parameters keeping the call order
+            Composite composite = indexManager.findComposite(mc.getIndexPlan(referenceClass), indexList);
+            Map<IndexQuery, Expression[]> compositeMap = new LinkedHashMap<>();
+            //-- a sorted field also filtered has a value on every result: inner join filtered in place of a sub query
+            Set<String> filteredSet = new HashSet<>();
+            for (IndexQuery indexQuery : indexList) {
+                if (indexQuery.getQuery() != ParameterFilter.ORDER_BY && indexQuery.getQuery() != ParameterFilter.REVERSE_BY) {
+                    filteredSet.add(indexQuery.getField());
+                }
+            }
+            Map<String, Path> sortPathMap = new HashMap<>();
+            for (SortStep step : sortStepList) {
+                if (step.indexQuery != null) {
+                    String field = step.indexQuery.getField();
+                    //-- keeping the sort path for keyset pagination
+                    Path sortPath;
+                    try {
+                        JoinType joinType = filteredSet.contains(field) ? JoinType.INNER : JoinType.LEFT;
+                        sortPath = indexManager.getSortPath(cb, referenceClass, recordPath, field, joinType);
+                    } catch (NoSuchFieldException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    sortPathMap.putIfAbsent(field, sortPath);
+                    //-- plain column so the index provides the order, NULL ordering following the database
+                    step.orderList.add(step.ascending ? cb.asc(sortPath) : cb.desc(sortPath));
+                    sortKeyList.add(new SortKey(field, sortPath, step.ascending, !filteredSet.contains(field)));
+                }
+            }
+            for (IndexQuery indexQuery : indexList) {
+                switch (indexQuery.getQuery()) {
+                    case ORDER_BY:
+                    case REVERSE_BY:
+                        break;
+                    default:
+                        if (composite != null && indexManager.isCompositeFilter(composite, indexQuery)) {
+                            try {
+                                compositeMap.put(indexQuery, indexManager.getValues(cb, referenceClass, indexQuery, queryParameters));
+                            } catch (NoSuchFieldException ex) {
+                                throw new RuntimeException(ex);
+                            }
+                            break;
+                        }
+                        Path sortPath = sortPathMap.get(indexQuery.getField());
+                        if (sortPath != null) {
+                            try {
+                                pm.filter(cb, predicateList, sortPath, indexQuery.getQuery(), indexManager.getValues(cb, referenceClass, indexQuery, queryParameters));
+                            } catch (NoSuchFieldException ex) {
+                                throw new RuntimeException(ex);
+                            }
+                            break;
+                        }
+                        predicateList.add(indexManager.getSubQuery(cb, cq, referenceClass, recordPath, indexQuery, queryParameters));
+                }
+            }
+            if (!compositeMap.isEmpty()) {
+                predicateList.add(indexManager.compositeFiltering(cb, cq, composite, recordPath, compositeMap));
+            }
+        }
+
+        /**
+         * Turning the current sort into a WHERE predicate starting after the
+         * last record of the previous page. The record id is used as tie
+         * breaker so each page costs the same whatever its position. Records
+         * without value for the sorted field are a separate phase ordered by
+         * id, read before or after the records with value as the database
+         * orders NULL, so each phase keeps an index range predicate.
+         *
+         * @param selectPath selected wrapper
+         * @param idAscending id ordering
+         */
+        private void applySeekQuery(Path selectPath, boolean idAscending) {
+            if (attributeSorted) {
+                throw new IllegalStateException("Keyset pagination is not supported when sorting on link attributes");
+            }
+            if (sortKeyList.size() > 1) {
+                throw new IllegalStateException("Keyset pagination supports a single indexed field sort");
+            }
+            long lastId;
+            Comparable lastKey;
+            if (seekRecord != null) {
+                lastId = seekRecord.getId();
+                lastKey = (sortKeyList.isEmpty()) ? null : PageToken.readIndexedValue(seekRecord, sortKeyList.get(0).field);
+            } else {
+                lastId = seekToken.getId();
+                lastKey = seekToken.getKey();
+            }
+            seekPosition = new PageToken(lastId, lastKey);
+            Path idPath = selectPath.get("id");
+            Predicate afterId = (idAscending) ? cb.greaterThan(idPath, lastId) : cb.lessThan(idPath, lastId);
+            if (sortKeyList.isEmpty()) {
+                seekPredicate = afterId;
+                return;
+            }
+            SortKey sortKey = sortKeyList.get(0);
+            if (lastKey == null && !sortKey.nullable) {
+                throw new IllegalArgumentException("Keyset pagination requires a value for the indexed field " + sortKey.field);
+            }
+            boolean nullFirst = (mc.isNullOrderedFirst() == sortKey.ascending);
+            if (lastKey == null) {
+                //-- among the records without value, followed by the records with value if NULL comes first
+                seekPredicate = cb.and(cb.isNull(sortKey.path), afterId);
+                nextPhasePredicate = (nullFirst) ? cb.isNotNull(sortKey.path) : null;
+            } else {
+                //-- among the records with value, NULL never matching the comparison
+                Predicate afterKey = (sortKey.ascending) ? cb.greaterThan(sortKey.path, lastKey) : cb.lessThan(sortKey.path, lastKey);
+                seekPredicate = cb.or(afterKey, cb.and(cb.equal(sortKey.path, lastKey), afterId));
+                nextPhasePredicate = (sortKey.nullable && !nullFirst) ? cb.isNull(sortKey.path) : null;
+            }
+        }
+
+        /**
+         * running a list query, a short keyset page being completed with the
+         * first records of the next phase
+         *
+         * @param selection projection of the selected wrapper
+         * @param wrappers true when the wrappers are selected, which allows
+         * reading top-N pages from the sort index
+         * @return query results
+         */
+        private List getResultList(Function<Path, Selection> selection, boolean wrappers) {
+            Query selectQuery = createSelectQuery(selection);
+            List resultList;
+            if (wrappers && isIndexDriven()) {
+                resultList = getIndexDrivenList();
+                SortKey sortKey = sortKeyList.get(0);
+                nextPhasePredicate = (sortKey.nullable) ? cb.isNull(sortKey.path) : null;
+            } else {
+                resultList = selectQuery.getResultList();
+            }
+            if (nextPhasePredicate != null && (maxResults == null || resultList.size() < maxResults)) {
+                cq.where(getWherePredicates(nextPhasePredicate));
+                Query query = em.createQuery(cq);
+                queryParameters.bind(query);
+                if (maxResults != null) {
+                    query.setMaxResults(maxResults - resultList.size());
+                }
+                resultList = new ArrayList<>(resultList);
+                resultList.addAll(query.getResultList());
+            }
+            return resultList;
+        }
+
+        /**
+         * Checking if the query is a top-N read sorted on a single indexed
+         * field, which can start from the sort index instead of sorting all
+         * the records : no other filter, link, search or offset, and records
+         * without value ordered after the others.
+         *
+         * @return true to read the page with getIndexDrivenList
+         */
+        private boolean isIndexDriven() {
+            if (recordRoot == null || maxResults == null || firstResult != null || isDistinctRequired || commonLinks != null
+                    || !equalMap.isEmpty() || !searchAllList.isEmpty() || !searchAnyList.isEmpty()
+                    || sortStepList.size() != 1 || sortKeyList.size() != 1) {
+                return false;
+            }
+            SortKey sortKey = sortKeyList.get(0);
             for (IndexQuery indexQuery : indexList) {
-                Predicate subQuery = indexManager.getSubQuery(cb, cq, referenceClass, recordPath, indexQuery, orderList);
-                if (subQuery != null) {
-                    predicateList.add(subQuery);
+                if (!indexQuery.getField().equals(sortKey.field)) {
+                    return false;
                 }
             }
+            if (seekPosition != null && seekPosition.getKey() == null) {
+                return false;
+            }
+            return !sortKey.nullable || mc.isNullOrderedFirst() != sortKey.ascending;
         }
 
+        /**
+         * Reading the page from the sort index, then loading the wrappers by
+         * id. Index rows of other tenants or record types are skipped, the
+         * next rows being read until the page is full.
+         *
+         * @return wrappers in the sort order
+         */
+        private List<RecordWrapper> getIndexDrivenList() {
+            SortKey sortKey = sortKeyList.get(0);
+            List<IndexQuery> filterList = new ArrayList<>();
+            for (IndexQuery indexQuery : indexList) {
+                if (indexQuery.getQuery() != ParameterFilter.ORDER_BY && indexQuery.getQuery() != ParameterFilter.REVERSE_BY) {
+                    filterList.add(indexQuery);
+                }
+            }
+            Comparable lastKey = (seekPosition != null) ? seekPosition.getKey() : null;
+            long lastId = (seekPosition != null) ? seekPosition.getId() : 0;
+            Object tenant = em.getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
+            int batchSize = Math.min(maxResults, Records.PARAMETER_PAGING);
+            IndexQueryManager indexManager = new IndexQueryManager();
+            List<RecordWrapper> list = new ArrayList<>();
+            while (list.size() < maxResults) {
+                List<Object[]> rowList;
+                try {
+                    rowList = indexManager.getSortedIds(em, referenceClass, sortKey.field, sortKey.ascending, idAscending, filterList, lastKey, lastId, batchSize);
+                } catch (NoSuchFieldException ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (rowList.isEmpty()) {
+                    break;
+                }
+                List<Long> idList = new ArrayList<>(rowList.size());
+                for (Object[] row : rowList) {
+                    idList.add((Long) row[0]);
+                }
+                //-- primary key lookups, the record type and tenant being checked here so the database keeps probing by id
+                Map<Long, RecordWrapper> wrapperMap = new HashMap<>();
+                for (RecordWrapper wrapper : em.createNamedQuery("RecordWrapper.findByIdList", RecordWrapper.class).setParameter("list", idList).getResultList()) {
+                    if (wrapper.getRecordType() == type.getId() && (tenant == null || tenant.toString().equals(wrapper.getTenant()))) {
+                        wrapperMap.put(wrapper.getId(), wrapper);
+                    }
+                }
+                for (int i = 0; i < idList.size() && list.size() < maxResults; i++) {
+                    RecordWrapper wrapper = wrapperMap.get(idList.get(i));
+                    if (wrapper != null) {
+                        list.add(wrapper);
+                    }
+                }
+                if (rowList.size() < batchSize) {
+                    break;
+                }
+                Object[] last = rowList.get(rowList.size() - 1);
+                lastId = (Long) last[0];
+                lastKey = (Comparable) last[1];
+            }
+            return list;
+        }
+
+        /**
+         * checking that a cursor query reads a single keyset phase
+         */
+        private void checkSinglePhase() {
+            if (nextPhasePredicate != null) {
+                throw new IllegalStateException("Keyset pagination over records without value for the sorted field is read with getList, getIds or project");
+            }
+        }
+
+        /**
+         * filters with the keyset predicate of the phase
+         *
+         * @param phasePredicate keyset predicate, null if not paging
+         * @return WHERE predicates
+         */
+        private Predicate[] getWherePredicates(Predicate phasePredicate) {
+            List<Predicate> list = new ArrayList<>(predicateList);
+            if (phasePredicate != null) {
+                list.add(phasePredicate);
+            }
+            return list.toArray(new Predicate[0]);
+        }
+
+        /**
+         * Filtering with the token table of the searchable fields, so the
+         * database starts from the records holding the tokens instead of
+         * scanning the stored data.
+         *
+         * @param recordPath selected wrapper
+         * @param predicateList predicates of the query
+         */
         private void applySearchQuery(Path recordPath, List<Predicate> predicateList) {
-            for (String[] values : searchMap) {
-                Predicate[] or = new Predicate[values.length];
-                for (int i = 0; i < values.length; i++) {
-                    String pattern = "%" + values[i] + "%";
-                    or[i] = cb.like(recordPath.get("data"), pattern);
+            for (String token : new LinkedHashSet<>(searchAllList)) {
+                predicateList.add(cb.in(recordPath.get("id")).value(tokenSubquery(Collections.singletonList(token))));
+            }
+            for (List<String> tokenList : searchAnyList) {
+                if (tokenList.isEmpty()) {
+                    predicateList.add(cb.equal(cb.literal(1), cb.literal(0)));
+                } else {
+                    predicateList.add(cb.in(recordPath.get("id")).value(tokenSubquery(new ArrayList<>(new LinkedHashSet<>(tokenList)))));
                 }
-                predicateList.add(cb.or(or));
             }
         }
 
+        /**
+         * ids of the records holding any of the tokens
+         *
+         * @param tokenList searched tokens
+         * @return sub query
+         */
+        private Subquery<Long> tokenSubquery(List<String> tokenList) {
+            Subquery<Long> subquery = cq.subquery(Long.class);
+            Root<RecordToken> tokenRoot = subquery.from(RecordToken.class);
+            subquery.select(tokenRoot.get("recordTokenPK").get("record"));
+            Path tokenPath = tokenRoot.get("recordTokenPK").get("token");
+            if (tokenList.size() == 1) {
+                subquery.where(cb.equal(tokenPath, queryParameters.token(cb, tokenList.get(0))));
+            } else {
+                Expression[] tokens = new Expression[tokenList.size()];
+                for (int i = 0; i < tokens.length; i++) {
+                    tokens[i] = queryParameters.token(cb, tokenList.get(i));
+                }
+                subquery.where(tokenPath.in(tokens));
+            }
+            return subquery;
+        }
+
         //----------------------------------------------------------------------
         // SelectBuilder<T>
         //----------------------------------------------------------------------
         @Override
         public List<T> getList() {
             ArrayList<T> list = new ArrayList<>();
-            Query query;
-            Path selectPath;
+            //long start = System.currentTimeMillis();
+            List<RecordWrapper> resultList = getResultList((selectPath) -> selectPath, true);
+            //long end = System.currentTimeMillis();
+            //System.out.println("[] List query in "+(end-start)+"ms");
+            //-- converting to object
+            resultList.stream().map((record) -> {
+                T model = mc.getRecord(referenceClass, record);
+                return model;
+            }).forEach((model) -> {
+                list.add(model);
+            });
+            return list;
+        }
+
+        @Override
+        public RecordCursor<T> iterator() {
+            Query query = createSelectQuery();
+            checkSinglePhase();
+            //-- cursor fetching by pages, read-only to keep wrappers out of the persistence context
+            query.setHint(QueryHints.CURSOR, true);
+            query.setHint(QueryHints.CURSOR_PAGE_SIZE, fetchSize);
+            query.setHint(QueryHints.READ_ONLY, true);
+            CursoredStream cursor = (CursoredStream) query.getSingleResult();
+            return new RecordCursor<>(mc, referenceClass, cursor, fetchSize);
+        }
+
+        @Override
+        public Stream<T> stream() {
+            RecordCursor<T> cursor = iterator();
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+        }
+
+        @Override
+        public SelectBuilder<T> setFetchSize(int size) {
+            fetchSize = size;
+            return this;
+        }
+
+        /**
+         * building the query selecting the wrappers with all the filters and
+         * sorting applied
+         *
+         * @return query ready to execute
+         */
+        private Query createSelectQuery() {
+            return createSelectQuery((selectPath) -> selectPath);
+        }
+
+        /**
+         * building the query selecting a projection of the wrappers with all
+         * the filters and sorting applied
+         *
+         * @param selection projection of the selected wrapper
+         * @return query ready to execute
+         */
+        private Query createSelectQuery(Function<Path, Selection> selection) {
             //-- query setup
-            if (linkRoot != null) {
-                selectPath = linkRoot.get("referenceR");
-            } else if (pathRoot != null) {
-                selectPath = pathRoot.get(pathTarget);
-            } else {
-                initRecordQuery();
-                selectPath = recordRoot;
-            }
-               //-- pass on the query parameters
-            applyEqualQuery(selectPath, predicateList);
-            applyIndexQuery((From)selectPath, predicateList);
-            applySearchQuery(selectPath, predicateList);
+            Path selectPath = applyFilters();
+            Selection selected = selection.apply(selectPath);
             //-- DISTINCT is expensive, apply only when needed
             if (isDistinctRequired) {
-                cq.select(selectPath).distinct(true); // AboveAny / BelowAny multiple path results in multiple paths selection with same target which must be filteres y Distinct
+                cq.select(selected).distinct(true); // AboveAny / BelowAny multiple path results in multiple paths selection with same target which must be filteres y Distinct
             } else {
-                cq.select(selectPath);
+                cq.select(selected);
             }
 
-            //-- order by , ultimatly ordering by record id
-            if (sortByInsert != null) {
-                if (sortByInsert) {
-                    orderList.add(cb.asc(selectPath.get("id")));
-                } else {
-                    orderList.add(cb.desc(selectPath.get("id")));
+            //-- keyset pagination, defaulting to insert order as tie breaker
+            boolean seek = (seekRecord != null || seekToken != null);
+            idAscending = (sortByInsert == null) || sortByInsert;
+            for (SortStep step : sortStepList) {
+                if (step.insert) {
+                    idAscending = step.ascending;
                 }
             }
+            if (seek) {
+                applySeekQuery(selectPath, idAscending);
+            }
+            //-- order by sort keys in call order, ultimatly by record id so equal keys keep a stable order
+            if (seek || sortByInsert != null || !sortStepList.isEmpty()) {
+                for (SortStep step : sortStepList) {
+                    orderList.addAll(step.orderList);
+                }
+                orderList.add(idAscending ? cb.asc(selectPath.get("id")) : cb.desc(selectPath.get("id")));
+            }
             if (!orderList.isEmpty()) {
                 cq.orderBy(orderList);
             }
             //-- where
-            cq.where(predicateList.toArray(new Predicate[0]));
-            query = em.createQuery(cq);
-            //-- query parameters and execution
+            cq.where(getWherePredicates(seekPredicate));
+            Query query = em.createQuery(cq);
+            queryParameters.bind(query);
+            //-- query parameters
             if (firstResult != null) {
                 query.setFirstResult(firstResult);
             }
             if (maxResults != null) {
                 query.setMaxResults(maxResults);
             }
-            //long start = System.currentTimeMillis();
-            List<RecordWrapper> resultList = query.getResultList();
-            //long end = System.currentTimeMillis();
-            //System.out.println("[] List query in "+(end-start)+"ms");
-            //-- converting to object
-            resultList.stream().map((record) -> {
-                T model = mc.getRecord(referenceClass, record);
-                return model;
-            }).forEach((model) -> {
-                list.add(model);
-            });
+            return query;
+        }
+
+        //----------------------------------------------------------------------
+        // Projection
+        //----------------------------------------------------------------------
+        @Override
+        public long[] getIds() {
+            List<Long> idList = getResultList((selectPath) -> selectPath.get("id"), false);
+            long[] ids = new long[idList.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = idList.get(i);
+            }
+            return ids;
+        }
+
+        @Override
+        public LongStream streamIds() {
+            Query query = createSelectQuery((selectPath) -> selectPath.get("id"));
+            checkSinglePhase();
+            query.setHint(QueryHints.CURSOR, true);
+            query.setHint(QueryHints.CURSOR_PAGE_SIZE, fetchSize);
+            IdCursor cursor = new IdCursor((CursoredStream) query.getSingleResult(), fetchSize);
+            return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+        }
+
+        @Override
+        public <V> List<V> project(String field) {
+            //-- selecting the id as well so DISTINCT applies to records, not to values
+            List<Object[]> resultList = getResultList((selectPath) -> {
+                try {
+                    return cb.array(selectPath.get("id"), new IndexQueryManager().getSortPath(cb, referenceClass, (From) selectPath, field));
+                } catch (NoSuchFieldException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }, false);
+            List<V> list = new ArrayList<>(resultList.size());
+            for (Object[] row : resultList) {
+                list.add((V) row[1]);
+            }
             return list;
         }
 
+        @Override
+        public PreparedRecordQuery<T> prepare() {
+            if (seekRecord != null || seekToken != null) {
+                throw new IllegalStateException("Keyset pagination can not be prepared");
+            }
+            preparing = true;
+            return new PreparedRecordQuery<>(mc.getEntityManagerFactory(), referenceClass, createSelectQuery(), queryParameters, firstResult, maxResults, fetchSize);
+        }
+
         @Override
         public T getFirst() {
             setMaxResults(1);
@@ -327,7 +873,35 @@ public class FluentQuery {
         @Override
         public Integer count() {
             Query query;
-            //-- query setup
+            //-- query setup, ignoring sorting for count
+            Path selectPath = applyFilters();
+            //-- DISTINCT is expensive, apply only when needed
+            if (isDistinctRequired) {
+                cq.select(cb.countDistinct(selectPath)); // AboveAny / BelowAny multiple path results in multiple paths selection with same target which must be filteres y Distinct
+            } else {
+                cq.select(cb.count(selectPath));
+            }
+            //-- where
+            cq.where(predicateList.toArray(new Predicate[0]));
+            query = em.createQuery(cq);
+            queryParameters.bind(query);
+            //-- query parameters
+            if (firstResult != null) {
+                query.setFirstResult(firstResult);
+            }
+            if (maxResults != null) {
+                query.setMaxResults(maxResults);
+            }
+            return ((Long) query.getSingleResult()).intValue();
+        }
+
+        /**
+         * setting the root of the query with the filters, links and paths
+         * predicates
+         *
+         * @return selected wrapper
+         */
+        private Path applyFilters() {
             Path selectPath;
             if (linkRoot != null) {
                 selectPath = linkRoot.get("referenceR");
@@ -337,27 +911,170 @@ public class FluentQuery {
                 initRecordQuery();
                 selectPath = recordRoot;
             }
-               //-- pass on the query parameters
-            applyEqualQuery(selectPath, predicateList);
-            applyIndexQuery((From)selectPath, predicateList); // ignore sorting for count
-            applySearchQuery(selectPath, predicateList);
-            //-- DISTINCT is expensive, apply only when needed
-            if (isDistinctRequired) {
-                cq.select(cb.countDistinct(selectPath)); // AboveAny / BelowAny multiple path results in multiple paths selection with same target which must be filteres y Distinct
-            } else {
-                cq.select(cb.count(selectPath));
+            //-- pass on the query parameters
+            applyEqualQuery(selectPath, predicateList);
+            applyIndexQuery((From) selectPath, predicateList);
+            applySearchQuery(selectPath, predicateList);
+            applyCommonLinks(selectPath, predicateList);
+            return selectPath;
+        }
+
+        //----------------------------------------------------------------------
+        // Aggregation
+        //----------------------------------------------------------------------
+        @Override
+        public BigDecimal sum(String field) {
+            return (BigDecimal) aggregate(Aggregate.SUM, field);
+        }
+
+        @Override
+        public Double avg(String field) {
+            return (Double) aggregate(Aggregate.AVG, field);
+        }
+
+        @Override
+        public <V extends Comparable> V min(String field) {
+            return (V) aggregate(Aggregate.MIN, field);
+        }
+
+        @Override
+        public <V extends Comparable> V max(String field) {
+            return (V) aggregate(Aggregate.MAX, field);
+        }
+
+        @Override
+        public GroupBuilder groupBy(String field) {
+            return new Group(field);
+        }
+
+        /**
+         * aggregating the index values of the matching records in SQL
+         *
+         * @param function aggregate function
+         * @param field indexed field
+         * @return aggregated value, null when no value
+         */
+        private Object aggregate(Aggregate function, String field) {
+            Path selectPath = applyAggregateFilters();
+            cq.select(aggregateExpression(function, indexValuePath(selectPath, field), field));
+            cq.where(predicateList.toArray(new Predicate[0]));
+            Query query = em.createQuery(cq);
+            queryParameters.bind(query);
+            return query.getSingleResult();
+        }
+
+        /**
+         * setting the filters for an aggregation, which cannot remove the
+         * duplicates of linkingAny/aboveAny... with several records
+         *
+         * @return selected wrapper
+         */
+        private Path applyAggregateFilters() {
+            if (isDistinctRequired) {
+                throw new IllegalStateException("Aggregation is not supported on several records with linkingAny, aboveAny, belowAny, parentOfAny and childOfAny");
+            }
+            return applyFilters();
+        }
+
+        /**
+         * joining the index value of a field to the selected wrapper
+         *
+         * @param selectPath selected wrapper
+         * @param field indexed field
+         * @return path of the typed index value
+         */
+        private Path indexValuePath(Path selectPath, String field) {
+            Root<RecordIndex> indexRoot = cq.from(RecordIndex.class);
+            predicateList.add(cb.equal(indexRoot.get("recordWrapper"), selectPath));
+            predicateList.add(cb.equal(indexRoot.get("recordIndexPK").get("field"), field));
+            return pm.getPath(indexRoot, getIndexType(field));
+        }
+
+        private ParameterType getIndexType(String field) {
+            try {
+                return pm.getType(referenceClass.getDeclaredField(field).getType());
+            } catch (NoSuchFieldException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+
+        private Expression aggregateExpression(Aggregate function, Path valuePath, String field) {
+            if ((function == Aggregate.SUM || function == Aggregate.AVG) && getIndexType(field) != ParameterType.NUMERIC) {
+                throw new IllegalArgumentException("Field " + field + " is not numeric");
+            }
+            switch (function) {
+                case SUM:
+                    return cb.sum(valuePath);
+                case AVG:
+                    return cb.avg(valuePath);
+                case MIN:
+                    return cb.least(valuePath);
+                case MAX:
+                    return cb.greatest(valuePath);
+                default:
+                    return cb.count(valuePath);
+            }
+        }
+
+        /**
+         * aggregation by value of an indexed field
+         */
+        private class Group implements GroupBuilder {
+
+            private final String groupField;
+
+            Group(String groupField) {
+                this.groupField = groupField;
+            }
+
+            @Override
+            public Map<Object, Long> count() {
+                return (Map<Object, Long>) aggregate(Aggregate.COUNT, null);
             }
-            //-- where
-            cq.where(predicateList.toArray(new Predicate[0]));
-            query = em.createQuery(cq);
-            //-- query parameters
-            if (firstResult != null) {
-                query.setFirstResult(firstResult);
+
+            @Override
+            public Map<Object, BigDecimal> sum(String field) {
+                return (Map<Object, BigDecimal>) aggregate(Aggregate.SUM, field);
             }
-            if (maxResults != null) {
-                query.setMaxResults(maxResults);
+
+            @Override
+            public Map<Object, Double> avg(String field) {
+                return (Map<Object, Double>) aggregate(Aggregate.AVG, field);
+            }
+
+            @Override
+            public Map<Object, Comparable> min(String field) {
+                return (Map<Object, Comparable>) aggregate(Aggregate.MIN, field);
+            }
+
+            @Override
+            public Map<Object, Comparable> max(String field) {
+                return (Map<Object, Comparable>) aggregate(Aggregate.MAX, field);
+            }
+
+            /**
+             * aggregating by group in SQL, groups sorted by value
+             *
+             * @param function aggregate function
+             * @param field aggregated field, ignored for count
+             * @return aggregated values by group value
+             */
+            private Map aggregate(Aggregate function, String field) {
+                Path selectPath = applyAggregateFilters();
+                Path groupPath = indexValuePath(selectPath, groupField);
+                Expression value = (function == Aggregate.COUNT) ? cb.count(selectPath) : aggregateExpression(function, indexValuePath(selectPath, field), field);
+                cq.multiselect(groupPath, value);
+                cq.where(predicateList.toArray(new Predicate[0]));
+                cq.groupBy(groupPath);
+                cq.orderBy(cb.asc(groupPath));
+                Query query = em.createQuery(cq);
+                queryParameters.bind(query);
+                Map<Object, Object> map = new LinkedHashMap<>();
+                for (Object[] row : (List<Object[]>) query.getResultList()) {
+                    map.put(row[0], row[1]);
+                }
+                return map;
             }
-            return ((Long) query.getSingleResult()).intValue();
         }
 
         @Override
@@ -372,10 +1089,29 @@ public class FluentQuery {
             return this;
         }
 
+        @Override
+        public SelectBuilder<T> after(Record last) {
+            seekRecord = last;
+            seekToken = null;
+            return this;
+        }
+
+        @Override
+        public SelectBuilder<T> pageAfter(Long id, Comparable sortKey) {
+            return pageAfter(new PageToken(id, sortKey));
+        }
+
+        @Override
+        public SelectBuilder<T> pageAfter(PageToken token) {
+            seekToken = token;
+            seekRecord = null;
+            return this;
+        }
+
         @Override
         public SortBuilder<T> orderByInsert() {
             // first occurence matters
-            if (sortByInsert == null) {
+            if (sortByInsert == null && !isSortedByInsert()) {
                 sortByInsert = true;
             }
             return this;
@@ -384,12 +1120,21 @@ public class FluentQuery {
         @Override
         public SortBuilder<T> reverseByInsert() {
             // first occurence matters
-            if (sortByInsert == null) {
+            if (sortByInsert == null && !isSortedByInsert()) {
                 sortByInsert = false;
             }
             return this;
         }
 
+        private boolean isSortedByInsert() {
+            for (SortStep step : sortStepList) {
+                if (step.insert) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         //----------------------------------------------------------------------
         // LinkBuilder<T>
         //----------------------------------------------------------------------
@@ -397,9 +1142,54 @@ public class FluentQuery {
         public LinkAttributeBuilder<T> linking(Record... records) {
             initLinkQuery();
             connectAll(false, RecordLink.class, linkRoot, "link", "reference", records);
+            if (records.length > 1) {
+                findCommonLinks(records);
+            }
             return this;
         }
 
+        /**
+         * intersecting the cached links of the linking records, if the link
+         * cache is enabled
+         *
+         * @param records linking records
+         */
+        private void findCommonLinks(Record... records) {
+            LinkCache cache = LinkCache.of(mc.getEntityManagerFactory());
+            if (cache != null) {
+                long[] ids = new long[records.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = records[i].getId();
+                }
+                long[] common = cache.getCommonLinks(mc, ids);
+                //-- too many ids would cost more than the joins
+                if (common.length <= Records.PARAMETER_PAGING) {
+                    commonLinks = common;
+                }
+            }
+        }
+
+        /**
+         * restricting the selection to the records linked to all the linking
+         * records, so the database starts from the primary key instead of the
+         * joins. Ignored for prepared queries, which must not depend on the
+         * values found when building them.
+         *
+         * @param selectPath selected wrapper
+         * @param predicateList predicates of the query
+         */
+        private void applyCommonLinks(Path selectPath, List<Predicate> predicateList) {
+            if (commonLinks == null || preparing) {
+                return;
+            }
+            if (commonLinks.length == 0) {
+                //-- not using disjunction, which drops the other predicates with their parameters
+                predicateList.add(cb.equal(cb.literal(1), cb.literal(0)));
+            } else {
+                predicateList.add(selectPath.get("id").in(queryParameters.idList(cb, commonLinks)));
+            }
+        }
+
         @Override
         public LinkAttributeBuilder<T> linkingAny(Record... records) {
             initLinkQuery();
@@ -422,7 +1212,7 @@ public class FluentQuery {
             Path path = pm.getPath(linkRoot, parameters[0].getClass());
             Predicate[] predicates = new Predicate[parameters.length];
             for (int i = 0; i < parameters.length; i++) {
-                predicates[i] = cb.equal(path, pm.getConverted(parameters[i]));
+                predicates[i] = cb.equal(path, attribute(parameters[i]));
             }
             predicateList.add(cb.or(predicates));
             return this;
@@ -433,7 +1223,7 @@ public class FluentQuery {
             Path path = pm.getPath(linkRoot, parameters[0].getClass());
             Predicate[] predicates = new Predicate[parameters.length];
             for (int i = 0; i < parameters.length; i++) {
-                predicates[i] = cb.notEqual(path, pm.getConverted(parameters[i]));
+                predicates[i] = cb.notEqual(path, attribute(parameters[i]));
             }
             predicateList.add(cb.and(predicates));
             return this;
@@ -442,58 +1232,76 @@ public class FluentQuery {
         @Override
         public LinkAttributeBuilder<T> attributeEqualTo(Object parameter) {
             Path path = pm.getPath(linkRoot, parameter.getClass());
-            predicateList.add(cb.equal(path, pm.getConverted(parameter)));
+            predicateList.add(cb.equal(path, attribute(parameter)));
             return this;
         }
 
         @Override
         public LinkAttributeBuilder<T> attributeNotEqualTo(Object parameter) {
             Path path = pm.getPath(linkRoot, parameter.getClass());
-            predicateList.add(cb.notEqual(path, pm.getConverted(parameter)));
+            predicateList.add(cb.notEqual(path, attribute(parameter)));
             return this;
         }
 
         @Override
         public LinkAttributeBuilder<T> attributeGreaterThan(Object parameter) {
             Path path = pm.getPath(linkRoot, parameter.getClass());
-            predicateList.add(cb.greaterThan(path, pm.getConverted(parameter)));
+            predicateList.add(cb.greaterThan(path, attribute(parameter)));
             return this;
         }
 
         @Override
         public LinkAttributeBuilder<T> attributeLessThan(Object parameter) {
             Path path = pm.getPath(linkRoot, parameter.getClass());
-            predicateList.add(cb.lessThan(path, pm.getConverted(parameter)));
+            predicateList.add(cb.lessThan(path, attribute(parameter)));
             return this;
         }
 
         @Override
         public LinkAttributeBuilder<T> attributeGreaterThanOrEqualTo(Object parameter) {
             Path path = pm.getPath(linkRoot, parameter.getClass());
-            predicateList.add(cb.greaterThanOrEqualTo(path, pm.getConverted(parameter)));
+            predicateList.add(cb.greaterThanOrEqualTo(path, attribute(parameter)));
             return this;
         }
 
         @Override
         public LinkAttributeBuilder<T> attributeLessThanOrEqualTo(Object parameter) {
             Path path = pm.getPath(linkRoot, parameter.getClass());
-            predicateList.add(cb.lessThanOrEqualTo(path, pm.getConverted(parameter)));
+            predicateList.add(cb.lessThanOrEqualTo(path, attribute(parameter)));
             return this;
         }
 
+        /**
+         * link attribute value as query parameter
+         *
+         * @param parameter attribute value
+         * @return parameter
+         */
+        private Expression attribute(Object parameter) {
+            return queryParameters.value(cb, pm.getType(parameter.getClass()), parameter);
+        }
+
         @Override
         public SortLinkBuilder<T> orderByAttribute() {
-            orderList.add(cb.asc(linkRoot.get("value")));
-            orderList.add(cb.asc(linkRoot.get("numeric")));
-            orderList.add(cb.asc(linkRoot.get("date")));
+            checkSortKey();
+            attributeSorted = true;
+            SortStep step = new SortStep(null, false, true);
+            step.orderList.add(cb.asc(linkRoot.get("value")));
+            step.orderList.add(cb.asc(linkRoot.get("numeric")));
+            step.orderList.add(cb.asc(linkRoot.get("date")));
+            sortStepList.add(step);
             return this;
         }
 
         @Override
         public SortLinkBuilder<T> reverseByAttribute() {
-            orderList.add(cb.desc(linkRoot.get("value")));
-            orderList.add(cb.desc(linkRoot.get("numeric")));
-            orderList.add(cb.desc(linkRoot.get("date")));
+            checkSortKey();
+            attributeSorted = true;
+            SortStep step = new SortStep(null, false, false);
+            step.orderList.add(cb.desc(linkRoot.get("value")));
+            step.orderList.add(cb.desc(linkRoot.get("numeric")));
+            step.orderList.add(cb.desc(linkRoot.get("date")));
+            sortStepList.add(step);
             return this;
         }
 
@@ -536,6 +1344,20 @@ public class FluentQuery {
             return this;
         }
 
+        @Override
+        public SortBuilder<T> above(Record record, int maxDepth) {
+            connectPath(false, true, "child", "path", record);
+            limitDepth(maxDepth);
+            return this;
+        }
+
+        @Override
+        public SortBuilder<T> below(Record record, int maxDepth) {
+            connectPath(false, true, "path", "child", record);
+            limitDepth(maxDepth);
+            return this;
+        }
+
         @Override
         public SortBuilder<T> parentOf(Record... records) {
             connectPath(true, true, "child", "parent", records);
@@ -565,9 +1387,16 @@ public class FluentQuery {
             applyExtendedQuery(pathRoot, pathTarget, predicateList); // trick to pass from embedded key to child
         }
 
+        private void limitDepth(int maxDepth) {
+            if (maxDepth < 1) {
+                throw new IllegalArgumentException("Depth must be at least 1 instead of " + maxDepth);
+            }
+            predicateList.add(cb.lessThanOrEqualTo(pathRoot.get("depth"), queryParameters.depth(cb, maxDepth)));
+        }
+
         private <T> void connectAll(boolean limitPath, Class<T> c, Root<T> root, String source, String target, Record... records) {
             Path<Integer> id = root.get("recordPK").get(source);
-            predicateList.add(cb.equal(id, records[0].getId()));
+            predicateList.add(cb.equal(id, queryParameters.id(cb, records[0])));
             if (limitPath) { // for asChild asParent
                 predicateList.add(cb.equal(root.get("recordPK").get("path"), root.get("recordPK").get("parent")));
             }
@@ -576,7 +1405,7 @@ public class FluentQuery {
                 // from ..., RecordLink join[i]
                 Root<T> join = cq.from(c);
                 // where ... and join[i].link = :linkList[i]
-                predicateList.add(cb.equal(join.get("recordPK").get(source), records[i].getId()));
+                predicateList.add(cb.equal(join.get("recordPK").get(source), queryParameters.id(cb, records[i])));
                 // where ... and join[i].reference = root.reference
                 predicateList.add(cb.equal(join.get("recordPK").get(target), root.get("recordPK").get(target)));
                 // limitPath
@@ -591,9 +1420,9 @@ public class FluentQuery {
             Path<Integer> id = root.get("recordPK").get(source);
             for (int i = 0; i < records.length; i++) {
                 if (limitPath) { // for asChild asParent
-                    ors[i] = cb.and(cb.equal(id, records[i].getId()), cb.equal(root.get("recordPK").get("path"), root.get("recordPK").get("parent")));
+                    ors[i] = cb.and(cb.equal(id, queryParameters.id(cb, records[i])), cb.equal(root.get("recordPK").get("path"), root.get("recordPK").get("parent")));
                 } else {
-                    ors[i] = cb.equal(id, records[i].getId());
+                    ors[i] = cb.equal(id, queryParameters.id(cb, records[i]));
                 }
             }
             predicateList.add(cb.or(ors));
@@ -603,6 +1432,90 @@ public class FluentQuery {
             }
         }
 
+        /**
+         * lazy iterator on the ids of a database cursor, released by pages
+         */
+        private static class IdCursor implements PrimitiveIterator.OfLong, AutoCloseable {
+
+            private final CursoredStream cursor;
+            private final int pageSize;
+            private Iterator page = Collections.emptyIterator();
+            private boolean closed = false;
+
+            IdCursor(CursoredStream cursor, int pageSize) {
+                this.cursor = cursor;
+                this.pageSize = pageSize;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (page.hasNext()) {
+                    return true;
+                }
+                if (closed) {
+                    return false;
+                }
+                if (cursor.atEnd()) {
+                    close();
+                    return false;
+                }
+                cursor.releasePrevious();
+                page = cursor.next(pageSize).iterator();
+                return page.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ((Number) page.next()).longValue();
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * sorted indexed field
+         */
+        private static class SortKey {
+
+            private final String field;
+            private final Path path;
+            private final boolean ascending;
+            private final boolean nullable; // records without value kept, read as a separate phase
+
+            SortKey(String field, Path path, boolean ascending, boolean nullable) {
+                this.field = field;
+                this.path = path;
+                this.ascending = ascending;
+                this.nullable = nullable;
+            }
+        }
+
+        /**
+         * sort key as called: indexed field, link attribute or insert order
+         */
+        private static class SortStep {
+
+            private final IndexQuery indexQuery; // indexed field, null otherwise
+            private final boolean insert;
+            private final boolean ascending;
+            private final List<Order> orderList = new ArrayList<>(); // resolved when the query is built
+
+            SortStep(IndexQuery indexQuery, boolean insert, boolean ascending) {
+                this.indexQuery = indexQuery;
+                this.insert = insert;
+                this.ascending = ascending;
+            }
+        }
+
     }
 
     //--------------------------------------------------------------------------
@@ -624,6 +1537,69 @@ public class FluentQuery {
          */
         T getFirst();
 
+        /**
+         * iterating lazily on matching records (finalizing the query). Records
+         * are fetched by pages from a database cursor and decoded on demand.
+         * The cursor must be closed if the iteration is not completed.
+         *
+         * @return closeable iterator on matching records
+         */
+        RecordCursor<T> iterator();
+
+        /**
+         * streaming matching records (finalizing the query). Records are
+         * fetched by pages from a database cursor and decoded on demand. The
+         * stream should be closed, typically with try-with-resources.
+         *
+         * @return stream of matching records
+         */
+        Stream<T> stream();
+
+        /**
+         * Compiling the query to execute it many times with new values
+         * (finalizing the query). Keyset pagination is not supported.
+         *
+         * @return immutable query, to execute with Records.query(prepared,
+         * values...)
+         */
+        PreparedRecordQuery<T> prepare();
+
+        /**
+         * listing the ids of the matching records, without reading their data
+         * (finalizing the query)
+         *
+         * @return ids in the query order
+         */
+        long[] getIds();
+
+        /**
+         * streaming the ids of the matching records from a database cursor,
+         * without reading their data (finalizing the query). The stream should
+         * be closed, typically with try-with-resources.
+         *
+         * @return stream of ids in the query order
+         */
+        LongStream streamIds();
+
+        /**
+         * listing the values of an indexed field of the matching records,
+         * without reading their data (finalizing the query)
+         *
+         * @param <V> BigDecimal, Date or String depending on the field type
+         * @param field indexed field
+         * @return values in the query order, null for records without value
+         */
+        <V> List<V> project(String field);
+
+        /**
+         * setting the number of records fetched at once when iterating or
+         * streaming (default is 500)
+         *
+         * @param size number of records per fetch
+         * @return Fluent Query
+         */
+        SelectBuilder<T> setFetchSize(int size);
+
         /**
          * counting matching records (finalizing the query)
          *
@@ -631,6 +1607,53 @@ public class FluentQuery {
          */
         Integer count();
 
+        /**
+         * summing the values of a numeric indexed field in the database
+         * (finalizing the query). Records without value are ignored.
+         *
+         * @param field indexed field
+         * @return sum or null when no value
+         */
+        BigDecimal sum(String field);
+
+        /**
+         * averaging the values of a numeric indexed field in the database
+         * (finalizing the query). Records without value are ignored.
+         *
+         * @param field indexed field
+         * @return average or null when no value
+         */
+        Double avg(String field);
+
+        /**
+         * lowest value of an indexed field in the database (finalizing the
+         * query)
+         *
+         * @param <V> BigDecimal, Date or String depending on the field type
+         * @param field indexed field
+         * @return lowest value or null when no value
+         */
+        <V extends Comparable> V min(String field);
+
+        /**
+         * highest value of an indexed field in the database (finalizing the
+         * query)
+         *
+         * @param <V> BigDecimal, Date or String depending on the field type
+         * @param field indexed field
+         * @return highest value or null when no value
+         */
+        <V extends Comparable> V max(String field);
+
+        /**
+         * grouping the matching records by the value of an indexed field,
+         * records without value being ignored
+         *
+         * @param field indexed field
+         * @return aggregation by group
+         */
+        GroupBuilder groupBy(String field);
+
         /**
          * setting the first position from the matching result (default is 0)
          *
@@ -648,19 +1671,102 @@ public class FluentQuery {
          */
         SelectBuilder<T> setMaxResults(int length);
 
+        /**
+         * Keyset pagination : starting right after the provided record in the
+         * current sort (insert or single indexed field). Unlike
+         * setFirstResult, every page costs the same whatever its position.
+         * Records without value for the sorted field follow the database NULL
+         * ordering, a page reaching them being read with getList, getIds or
+         * project.
+         *
+         * @param last last record of the previous page
+         * @return Fluent Query
+         */
+        SelectBuilder<T> after(Record last);
+
+        /**
+         * Keyset pagination : starting right after the provided position in
+         * the current sort (insert or single indexed field).
+         *
+         * @param id database id of the last record of the previous page
+         * @param sortKey indexed field value of the last record, null when
+         * sorting by insert or when the record has no value
+         * @return Fluent Query
+         */
+        SelectBuilder<T> pageAfter(Long id, Comparable sortKey);
+
+        /**
+         * Keyset pagination : starting right after the position held by a
+         * continuation token.
+         *
+         * @param token continuation token from the previous page
+         * @return Fluent Query
+         */
+        SelectBuilder<T> pageAfter(PageToken token);
+
+    }
+
+    static public interface GroupBuilder {
+
+        /**
+         * counting the records of each group (finalizing the query)
+         *
+         * @return count by group value, sorted by group value
+         */
+        Map<Object, Long> count();
+
+        /**
+         * summing a numeric indexed field for each group (finalizing the
+         * query)
+         *
+         * @param field indexed field
+         * @return sum by group value, sorted by group value
+         */
+        Map<Object, BigDecimal> sum(String field);
+
+        /**
+         * averaging a numeric indexed field for each group (finalizing the
+         * query)
+         *
+         * @param field indexed field
+         * @return average by group value, sorted by group value
+         */
+        Map<Object, Double> avg(String field);
+
+        /**
+         * lowest value of an indexed field for each group (finalizing the
+         * query)
+         *
+         * @param field indexed field
+         * @return lowest value by group value, sorted by group value
+         */
+        Map<Object, Comparable> min(String field);
+
+        /**
+         * highest value of an indexed field for each group (finalizing the
+         * query)
+         *
+         * @param field indexed field
+         * @return highest value by group value, sorted by group value
+         */
+        Map<Object, Comparable> max(String field);
     }
 
     static public interface SortBuilder<T extends Record> extends SelectBuilder<T> {
 
         /**
-         * sorting the records by their database id (ASC)
+         * sorting the records by their database id (ASC), after the other
+         * sort keys whatever the call order. The first insert order called is
+         * kept.
          *
          * @return Fluent Query
          */
         SortBuilder<T> orderByInsert();
 
         /**
-         * sorting the records by their database id (DESC)
+         * sorting the records by their database id (DESC), after the other
+         * sort keys whatever the call order. The first insert order called is
+         * kept.
          *
          * @return Fluent Query
          */
@@ -669,7 +1775,8 @@ public class FluentQuery {
         /**
          * Sorting the records by the field content if the field is indexed
          * (ASC). Records are sorted as Date, BigDecimal or String depending on
-         * what fits the best.
+         * what fits the best. Records without value are placed as the database
+         * orders NULL : last on PostgreSQL and Derby, first on MySQL.
          *
          * @param field field content to sort
          * @return Fluent Query
@@ -679,12 +1786,68 @@ public class FluentQuery {
         /**
          * Sorting the records by the field content if the field is indexed
          * (DESC). Records are sorted as Date, BigDecimal or String depending on
-         * what fits the best.
+         * what fits the best. Records without value are placed as the database
+         * orders NULL : last on PostgreSQL and Derby, first on MySQL.
          *
          * @param field field content to sort
          * @return Fluent Query
          */
         SortBuilder<T> reverseByIndexedField(String field);
+
+        /**
+         * First sort key on the indexed field (ASC). Sort keys apply in call
+         * order, the record id ultimately breaking ties so pages are stable.
+         * Throws IllegalStateException if another sort key is already set.
+         *
+         * @param field indexed field to sort
+         * @return Fluent Query
+         */
+        SortBuilder<T> orderBy(String field);
+
+        /**
+         * First sort key on the indexed field (DESC). Throws
+         * IllegalStateException if another sort key is already set.
+         *
+         * @param field indexed field to sort
+         * @return Fluent Query
+         */
+        SortBuilder<T> orderByDescending(String field);
+
+        /**
+         * Next sort key on the indexed field (ASC), applied to records with
+         * equal previous keys.
+         *
+         * @param field indexed field to sort
+         * @return Fluent Query
+         */
+        SortBuilder<T> thenBy(String field);
+
+        /**
+         * Next sort key on the indexed field (DESC), applied to records with
+         * equal previous keys.
+         *
+         * @param field indexed field to sort
+         * @return Fluent Query
+         */
+        SortBuilder<T> thenByDescending(String field);
+
+        /**
+         * Last sort key on the database id (ASC), placed where it is called.
+         * As ids are unique, adding a sort key after it throws
+         * IllegalStateException, as does a second insert order.
+         *
+         * @return Fluent Query
+         */
+        SortBuilder<T> thenByInsert();
+
+        /**
+         * Last sort key on the database id (DESC), placed where it is called.
+         * As ids are unique, adding a sort key after it throws
+         * IllegalStateException, as does a second insert order.
+         *
+         * @return Fluent Query
+         */
+        SortBuilder<T> thenByInsertDescending();
     }
 
     static public interface QueryBuilder<T extends Record> extends ExtendedQuery<T> {
@@ -699,6 +1862,28 @@ public class FluentQuery {
          */
         T find(long id) throws IllegalAccessException;
 
+        /**
+         * Retrieve records based on their ids (finalizing the query), with
+         * one query per PARAMETER_PAGING ids. The types in database and in the
+         * query must match.
+         *
+         * @param ids database ids
+         * @return records found, in the order of the ids
+         * @throws java.lang.IllegalAccessException
+         */
+        List<T> findAll(Collection<Long> ids) throws IllegalAccessException;
+
+        /**
+         * Retrieve records based on their ids (finalizing the query), with
+         * one query per PARAMETER_PAGING ids. The types in database and in the
+         * query must match.
+         *
+         * @param ids database ids
+         * @return records found mapped by id, in the order of the ids
+         * @throws java.lang.IllegalAccessException
+         */
+        Map<Long, T> findAllAsMap(Collection<Long> ids) throws IllegalAccessException;
+
     };
 
     static public interface ExtendedQuery<T extends Record> extends PathBuilder<T>, LinkBuilder<T>, SortBuilder<T> {
@@ -730,6 +1915,26 @@ public class FluentQuery {
          */
         //ExtendedQuery<T> fieldIn(String field, String... values);
 
+        /**
+         * Filtering records holding all the words of the terms in their fields
+         * annotated with FieldSearchable. Words are compared in lower case
+         * without accents.
+         *
+         * @param terms words to search (ALL)
+         * @return Fluent Query
+         */
+        ExtendedQuery<T> searchAll(String... terms);
+
+        /**
+         * Filtering records holding any of the words of the terms in their
+         * fields annotated with FieldSearchable. Words are compared in lower
+         * case without accents.
+         *
+         * @param terms words to search (ANY)
+         * @return Fluent Query
+         */
+        ExtendedQuery<T> searchAny(String... terms);
+
         /**
          *
          * @param field
@@ -878,6 +2083,26 @@ public class FluentQuery {
          */
         SortBuilder<T> below(Record... records);
 
+        /**
+         * filtering the ancestors of a record up to a number of levels, 1 for
+         * the parents
+         *
+         * @param record record matching the hierarchy
+         * @param maxDepth max number of levels above the record
+         * @return Fluent Link
+         */
+        SortBuilder<T> above(Record record, int maxDepth);
+
+        /**
+         * filtering the descendants of a record down to a number of levels, 1
+         * for the children
+         *
+         * @param record record matching the hierarchy
+         * @param maxDepth max number of levels below the record
+         * @return Fluent Link
+         */
+        SortBuilder<T> below(Record record, int maxDepth);
+
         /**
          * filtering records matching hierarchical link
          *
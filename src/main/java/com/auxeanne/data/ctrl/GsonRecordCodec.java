@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Default JSON format, stored without prefix. Bytes are streamed from/to Gson
+ * to avoid the intermediate String copy.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class GsonRecordCodec implements RecordCodec {
+
+    /**
+     * no prefix for JSON
+     */
+    public static final byte ID = 0;
+
+    /**
+     * GSON Handler
+     */
+    private final Gson gson = new GsonBuilder().setExclusionStrategies(new RecordExclusionStrategy()).create();
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object model) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                gson.toJson(model, writer);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] data, int offset, Class<T> modelClass) {
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(data, offset, data.length - offset), StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, modelClass);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
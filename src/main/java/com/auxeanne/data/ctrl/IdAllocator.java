@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.db.Sequence;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.exceptions.TransactionException;
+
+/**
+ * Allocator of record ids, shared by the controllers of a persistence unit.
+ * Blocks of ids are reserved in the sequence table, in their own short
+ * transaction, and handed out without locking. The block size doubles while
+ * blocks are used up within a second and halves when a block lasts more than
+ * a minute. It uses the same row as the JPA table generator, so both can be
+ * used together. The ids left in the last block are lost at shutdown.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class IdAllocator {
+
+    /**
+     * sequence name of the records (pkColumnValue of RecordWrapper generator)
+     */
+    public static final String RECORD_SEQUENCE = "Record";
+    /**
+     * one allocator per persistence unit, when enabled
+     */
+    private static final ConcurrentHashMap<EntityManagerFactory, IdAllocator> allocators = new ConcurrentHashMap<>();
+    private static final long GROWTH_MILLIS = 1000;
+    private static final long SHRINK_MILLIS = 60000;
+
+    private final EntityManagerFactory emf;
+    private final int minBlockSize;
+    private final int maxBlockSize;
+    private volatile Block block = new Block(1, 0);
+    //-- guarded by this
+    private int blockSize;
+    private long reservationCount = 0;
+
+    private IdAllocator(EntityManagerFactory emf, int minBlockSize, int maxBlockSize) {
+        if (minBlockSize < 1 || maxBlockSize < minBlockSize) {
+            throw new IllegalArgumentException("Block sizes must verify 0 < min <= max.");
+        }
+        this.emf = emf;
+        this.minBlockSize = minBlockSize;
+        this.maxBlockSize = maxBlockSize;
+        this.blockSize = minBlockSize;
+    }
+
+    /**
+     * enabling the allocator of a persistence unit. Resource must be local, the
+     * blocks being reserved with a transaction of the entity manager.
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param minBlockSize initial and min number of ids reserved at once
+     * @param maxBlockSize max number of ids reserved at once
+     * @return allocator of the persistence unit
+     */
+    public static IdAllocator enable(EntityManagerFactory emf, int minBlockSize, int maxBlockSize) {
+        return allocators.computeIfAbsent(emf, (key) -> new IdAllocator(emf, minBlockSize, maxBlockSize));
+    }
+
+    /**
+     * allocator not registered for the persistence unit, reserving its blocks
+     * from the same sequence and used only by the caller (ex: a bulk loader)
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param minBlockSize initial and min number of ids reserved at once
+     * @param maxBlockSize max number of ids reserved at once
+     * @return new allocator
+     */
+    public static IdAllocator create(EntityManagerFactory emf, int minBlockSize, int maxBlockSize) {
+        return new IdAllocator(emf, minBlockSize, maxBlockSize);
+    }
+
+    /**
+     * disabling the allocator of a persistence unit, JPA generating the ids
+     * again
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void disable(EntityManagerFactory emf) {
+        allocators.remove(emf);
+    }
+
+    /**
+     * allocator of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @return allocator or null if not enabled
+     */
+    public static IdAllocator of(EntityManagerFactory emf) {
+        return allocators.get(emf);
+    }
+
+    /**
+     * @return next record id
+     */
+    public long next() {
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id <= current.last) {
+                return id;
+            }
+            reserve(current);
+        }
+    }
+
+    /**
+     * replacing the used up block, once for all the waiting threads
+     *
+     * @param usedUp block without remaining id
+     */
+    private synchronized void reserve(Block usedUp) {
+        if (block != usedUp) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (usedUp.reservedAt != 0) {
+            long lifetime = TimeUnit.NANOSECONDS.toMillis(now - usedUp.reservedAt);
+            if (lifetime < GROWTH_MILLIS) {
+                blockSize = (int) Math.min((long) blockSize * 2, maxBlockSize);
+            } else if (lifetime > SHRINK_MILLIS) {
+                blockSize = Math.max(blockSize / 2, minBlockSize);
+            }
+        }
+        long last = reserveInDatabase(blockSize);
+        reservationCount++;
+        block = new Block(last - blockSize + 1, last, now);
+    }
+
+    /**
+     * moving the sequence count forward
+     *
+     * @param size number of ids to reserve
+     * @return last reserved id
+     */
+    private long reserveInDatabase(int size) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            em.getTransaction().begin();
+            //-- the update is locking the row until the commit
+            int updated = em.createNamedQuery("Sequence.increment")
+                    .setParameter("seqName", RECORD_SEQUENCE)
+                    .setParameter("size", BigInteger.valueOf(size))
+                    .executeUpdate();
+            Sequence sequence;
+            if (updated == 0) {
+                sequence = new Sequence(RECORD_SEQUENCE);
+                sequence.setSeqCount(BigInteger.valueOf(size));
+                em.persist(sequence);
+            } else {
+                sequence = em.createNamedQuery("Sequence.findBySeqName", Sequence.class)
+                        .setParameter("seqName", RECORD_SEQUENCE)
+                        .setHint(QueryHints.REFRESH, HintValues.TRUE)
+                        .getSingleResult();
+            }
+            em.getTransaction().commit();
+            return sequence.getSeqCount().longValue();
+        } catch (RuntimeException ex) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw new TransactionException("Id block reservation failed.", ex);
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * @return current number of ids reserved at once
+     */
+    public synchronized int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return number of blocks reserved
+     */
+    public synchronized long getReservationCount() {
+        return reservationCount;
+    }
+
+    /**
+     * range of reserved ids
+     */
+    private static class Block {
+
+        private final AtomicLong next;
+        private final long last;
+        private final long reservedAt;
+
+        private Block(long first, long last) {
+            this(first, last, 0);
+        }
+
+        private Block(long first, long last, long reservedAt) {
+            this.next = new AtomicLong(first);
+            this.last = last;
+            this.reservedAt = reservedAt;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.CompositeIndex;
+import com.auxeanne.data.FieldIndexing;
+import com.auxeanne.data.FieldSearchable;
+import com.auxeanne.data.ctrl.ParameterManager.ParameterType;
+import com.auxeanne.data.db.RecordComposite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Indexing plan of a record class, resolved once: index key, field name,
+ * database type and a precompiled getter for each field annotated with
+ * FieldIndexing, a getter for each field annotated with FieldSearchable and
+ * the fields of each CompositeIndex. Extracting the indexes and tokens on save
+ * is then free of annotation lookups and reflection access checks.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class IndexPlan {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private final List<IndexedField> fieldList;
+    private final List<SearchableField> searchableFieldList;
+    private final List<Composite> compositeList;
+
+    private IndexPlan(List<IndexedField> fieldList, List<SearchableField> searchableFieldList, List<Composite> compositeList) {
+        this.fieldList = Collections.unmodifiableList(fieldList);
+        this.searchableFieldList = Collections.unmodifiableList(searchableFieldList);
+        this.compositeList = Collections.unmodifiableList(compositeList);
+    }
+
+    /**
+     * parsing a class for indexed fields
+     *
+     * @param recordClass Class to parse
+     * @return indexing plan
+     */
+    public static IndexPlan of(Class<? extends Record> recordClass) {
+        ParameterManager pm = new ParameterManager();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<IndexedField> list = new ArrayList<>();
+        List<SearchableField> searchableList = new ArrayList<>();
+        for (Field field : recordClass.getDeclaredFields()) {
+            FieldSearchable searchable = field.getAnnotation(FieldSearchable.class);
+            if (searchable != null) {
+                try {
+                    field.setAccessible(true);
+                    MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                    searchableList.add(new SearchableField(field.getName(), searchable.prefixes(), getter));
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+            String key = getKey(recordClass, field);
+            if (key != null) {
+                try {
+                    field.setAccessible(true);
+                    MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                    list.add(new IndexedField(key, field.getName(), pm.getType(field.getType()), getter));
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+        }
+        List<Composite> compositeList = new ArrayList<>();
+        for (CompositeIndex composite : recordClass.getAnnotationsByType(CompositeIndex.class)) {
+            String[] names = composite.value();
+            if (names.length < 2 || names.length > RecordComposite.MAX_FIELDS) {
+                throw new IllegalArgumentException("Composite index of " + recordClass.getName() + " must have 2 to " + RecordComposite.MAX_FIELDS + " fields");
+            }
+            String key = recordClass.getName() + "(" + String.join(",", names) + ")";
+            List<IndexedField> componentList = new ArrayList<>();
+            for (String name : names) {
+                try {
+                    Field field = recordClass.getDeclaredField(name);
+                    field.setAccessible(true);
+                    MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                    componentList.add(new IndexedField(key, name, pm.getType(field.getType()), getter));
+                } catch (NoSuchFieldException | IllegalAccessException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+            compositeList.add(new Composite(key, componentList));
+        }
+        return new IndexPlan(list, searchableList, compositeList);
+    }
+
+    /**
+     * index key of a field
+     *
+     * @param recordClass class declaring the field
+     * @param field field to index
+     * @return key, null when the field is not indexed
+     */
+    public static String getKey(Class recordClass, Field field) {
+        FieldIndexing indexing = field.getAnnotation(FieldIndexing.class);
+        if (indexing == null) {
+            return null;
+        }
+        // indexes can be shared by providing common key, or default key using field path is used
+        String key = indexing.value();
+        if (key.length() == 0) {
+            key = recordClass.getName() + "." + field.getName();
+        }
+        return key;
+    }
+
+    /**
+     * indexed fields of the class
+     *
+     * @return read only list
+     */
+    public List<IndexedField> getFieldList() {
+        return fieldList;
+    }
+
+    /**
+     * searchable fields of the class
+     *
+     * @return read only list
+     */
+    public List<SearchableField> getSearchableFieldList() {
+        return searchableFieldList;
+    }
+
+    /**
+     * composite indexes of the class
+     *
+     * @return read only list
+     */
+    public List<Composite> getCompositeList() {
+        return compositeList;
+    }
+
+    /**
+     * reading a field value with a precompiled getter
+     *
+     * @param getter getter of the field
+     * @param record record to read
+     * @return raw field value
+     */
+    private static Object read(MethodHandle getter, Object record) {
+        try {
+            return (Object) getter.invokeExact(record);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Resolved indexed field
+     */
+    public static class IndexedField {
+
+        private final String key;
+        private final String name;
+        private final ParameterType type;
+        private final MethodHandle getter;
+
+        IndexedField(String key, String name, ParameterType type, MethodHandle getter) {
+            this.key = key;
+            this.name = name;
+            this.type = type;
+            this.getter = getter;
+        }
+
+        /**
+         * index key, shared or default field path
+         *
+         * @return key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * field name
+         *
+         * @return name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * database type of the index
+         *
+         * @return Date, BigDecimal or String type
+         */
+        public ParameterType getType() {
+            return type;
+        }
+
+        /**
+         * reading the field value
+         *
+         * @param record record to read
+         * @return raw field value
+         */
+        public Object get(Object record) {
+            return read(getter, record);
+        }
+    }
+
+    /**
+     * Resolved composite index
+     */
+    public static class Composite {
+
+        private final String key;
+        private final List<IndexedField> fieldList;
+
+        Composite(String key, List<IndexedField> fieldList) {
+            this.key = key;
+            this.fieldList = Collections.unmodifiableList(fieldList);
+        }
+
+        /**
+         * index key, made of the class and field names
+         *
+         * @return key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * fields of the index, in their order
+         *
+         * @return read only list
+         */
+        public List<IndexedField> getFieldList() {
+            return fieldList;
+        }
+
+        /**
+         * position of a field in the index
+         *
+         * @param name field name
+         * @return position from 1, or 0 if not part of the index
+         */
+        public int getPosition(String name) {
+            for (int i = 0; i < fieldList.size(); i++) {
+                if (fieldList.get(i).getName().equals(name)) {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Resolved searchable field
+     */
+    public static class SearchableField {
+
+        private final String name;
+        private final boolean prefixes;
+        private final MethodHandle getter;
+
+        SearchableField(String name, boolean prefixes, MethodHandle getter) {
+            this.name = name;
+            this.prefixes = prefixes;
+            this.getter = getter;
+        }
+
+        /**
+         * field name
+         *
+         * @return name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * storing also the beginnings of the words
+         *
+         * @return true to store the prefixes
+         */
+        public boolean isPrefixes() {
+            return prefixes;
+        }
+
+        /**
+         * reading the field value
+         *
+         * @param record record to read
+         * @return raw field value
+         */
+        public Object get(Object record) {
+            return read(getter, record);
+        }
+    }
+
+}
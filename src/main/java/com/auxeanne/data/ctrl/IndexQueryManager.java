@@ -15,17 +15,26 @@
  */
 package com.auxeanne.data.ctrl;
 
+import com.auxeanne.data.ctrl.IndexPlan.Composite;
+import com.auxeanne.data.db.RecordComposite;
 import com.auxeanne.data.db.RecordIndex;
+import com.auxeanne.data.ctrl.ParameterManager.ParameterFilter;
 import com.auxeanne.data.ctrl.ParameterManager.ParameterType;
 import com.auxeanne.data.db.RecordWrapper;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.From;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.JoinType;
-import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
@@ -44,69 +53,119 @@ public class IndexQueryManager {
     private ParameterManager pm = new ParameterManager();
     
 
-    public Predicate getSubQuery(CriteriaBuilder cb, CriteriaQuery cq, Class referenceClass, From wrapperRoot, IndexQuery indexQuery, List<Order> orderList) {
-
+    /**
+     * filtering on the index of the field with a sub query, sorts being
+     * joined with getSortPath
+     *
+     * @param cb criteria builder
+     * @param cq criteria query
+     * @param referenceClass record class holding the indexed field
+     * @param wrapperRoot filtered wrapper
+     * @param indexQuery filter
+     * @param parameters parameters of the query
+     * @return predicate
+     */
+    public Predicate getSubQuery(CriteriaBuilder cb, CriteriaQuery cq, Class referenceClass, From wrapperRoot, IndexQuery indexQuery, QueryParameters parameters) {
         try {
-            switch (indexQuery.getQuery()) {
-                case ORDER_BY:
-                case REVERSE_BY:
-                    return sorting(cb, cq, referenceClass, wrapperRoot, indexQuery, orderList);
-                default:
-                    return filtering(cb, cq, referenceClass, wrapperRoot, indexQuery);
-            }
+            return filtering(cb, cq, referenceClass, wrapperRoot, indexQuery, parameters);
         } catch (NoSuchFieldException ex) {
             throw new RuntimeException(ex);
         }
     }
 
     /**
-     * TODO sorting on join is not optimized as indexes are ignored and an intermediate table must be created
-     * 
-     * @param cb
-     * @param cq
-     * @param referenceClass
-     * @param wrapperRoot
-     * @param indexQuery
-     * @param orderList
-     * @return
-     * @throws NoSuchFieldException 
+     * joining the index of the field to sort on, records without value being
+     * kept
+     *
+     * @param cb criteria builder
+     * @param referenceClass record class holding the indexed field
+     * @param wrapperRoot wrapper to join
+     * @param field indexed field
+     * @return path of the typed index value
+     * @throws NoSuchFieldException
      */
-    public Predicate sorting(CriteriaBuilder cb, CriteriaQuery cq, Class referenceClass, From wrapperRoot, IndexQuery indexQuery, List<Order> orderList) throws NoSuchFieldException {
-        Join<RecordWrapper, RecordIndex> indexJoin = wrapperRoot.join("recordIndexList", JoinType.LEFT);
-        indexJoin.on(cb.equal(indexJoin.get("recordIndexPK").get("field"), indexQuery.getField()));
+    public Path getSortPath(CriteriaBuilder cb, Class referenceClass, From wrapperRoot, String field) throws NoSuchFieldException {
+        return getSortPath(cb, referenceClass, wrapperRoot, field, JoinType.LEFT);
+    }
 
-        Class<?> type = referenceClass.getDeclaredField(indexQuery.getField()).getType();
-        ParameterType indexType = pm.getType(type);
-        Path indexPath = pm.getPath(indexJoin, indexType);
-        switch (indexQuery.getQuery()) {
-            case ORDER_BY:
-                orderList.add(cb.asc(indexPath));
-                break;
-            case REVERSE_BY:
-                orderList.add(cb.desc(indexPath));
-                break;
+    /**
+     * joining the index of the field to sort on. The join matches the whole
+     * primary key (key, record, field) so each record is looked up by index.
+     * An INNER join drops the records without value but lets the database
+     * drive the query from the index rows, read in order from the (key,
+     * field, value) database indexes.
+     *
+     * @param cb criteria builder
+     * @param referenceClass record class holding the indexed field
+     * @param wrapperRoot wrapper to join
+     * @param field indexed field
+     * @param joinType LEFT to keep records without value, INNER otherwise
+     * @return path of the typed index value
+     * @throws NoSuchFieldException
+     */
+    public Path getSortPath(CriteriaBuilder cb, Class referenceClass, From wrapperRoot, String field, JoinType joinType) throws NoSuchFieldException {
+        Field declared = referenceClass.getDeclaredField(field);
+        Join<RecordWrapper, RecordIndex> indexJoin = wrapperRoot.join("recordIndexList", joinType);
+        Path pkPath = indexJoin.get("recordIndexPK");
+        String key = IndexPlan.getKey(referenceClass, declared);
+        if (key == null) {
+            indexJoin.on(cb.equal(pkPath.get("field"), field));
+        } else {
+            indexJoin.on(cb.equal(pkPath.get("key"), key), cb.equal(pkPath.get("field"), field));
         }
-        return null;
+        return pm.getPath(indexJoin, pm.getType(declared.getType()));
+    }
 
-//        Root<RecordIndex> join = cq.from(RecordIndex.class);
-//
-//        Class<?> type = referenceClass.getDeclaredField(indexQuery.getField()).getType();
-//        ParameterType indexType = pm.getType(type);
-//        Path indexPath = pm.getPath(join, indexType);
-//
-//        switch (indexQuery.getQuery()) {
-//            case ORDER_BY:
-//                orderList.add(cb.asc(indexPath));
-//                break;
-//            case REVERSE_BY:
-//                orderList.add(cb.desc(indexPath));
-//                break;
-//        }
-//        //-- where ... and join[i].link = :linkList[i]
-//        return cb.and(cb.equal(join.get("recordWrapper"), recordWrapperPath), cb.equal(join.get("recordIndexPK").get("field"), indexQuery.getField()));
+    /**
+     * Reading the ids of the records sorted on an indexed field straight from
+     * the (key, field, value, record) sort indexes, so the database reads a
+     * page of index rows instead of sorting every record. The rows of other
+     * tenants or record types sharing the key are left to the caller.
+     *
+     * @param em entity manager
+     * @param referenceClass record class holding the indexed field
+     * @param field sorted field
+     * @param ascending field ordering
+     * @param idAscending id ordering of equal values
+     * @param filterList filters on the sorted field
+     * @param lastKey value of the last row read, null to start from the first
+     * @param lastId id of the last row read
+     * @param maxResults number of rows to read
+     * @return record id and value of each row
+     * @throws NoSuchFieldException
+     */
+    public List<Object[]> getSortedIds(EntityManager em, Class referenceClass, String field, boolean ascending, boolean idAscending, List<IndexQuery> filterList, Comparable lastKey, long lastId, int maxResults) throws NoSuchFieldException {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Object[]> cq = cb.createQuery(Object[].class);
+        Root<RecordIndex> indexRoot = cq.from(RecordIndex.class);
+        Field declared = referenceClass.getDeclaredField(field);
+        Path pkPath = indexRoot.get("recordIndexPK");
+        Path recordPath = pkPath.get("record");
+        Path valuePath = pm.getPath(indexRoot, pm.getType(declared.getType()));
+        QueryParameters parameters = new QueryParameters();
+        List<Predicate> predicateList = new ArrayList<>();
+        predicateList.add(cb.equal(pkPath.get("key"), IndexPlan.getKey(referenceClass, declared)));
+        predicateList.add(cb.equal(pkPath.get("field"), field));
+        for (IndexQuery indexQuery : filterList) {
+            pm.filter(cb, predicateList, valuePath, indexQuery.getQuery(), getValues(cb, referenceClass, indexQuery, parameters));
+        }
+        if (lastKey != null) {
+            //-- range on the value so the index scan starts at the last row, the id breaking ties
+            predicateList.add((ascending) ? cb.greaterThanOrEqualTo(valuePath, lastKey) : cb.lessThanOrEqualTo(valuePath, lastKey));
+            Predicate afterKey = (ascending) ? cb.greaterThan(valuePath, lastKey) : cb.lessThan(valuePath, lastKey);
+            Predicate afterId = (idAscending) ? cb.greaterThan(recordPath, lastId) : cb.lessThan(recordPath, lastId);
+            predicateList.add(cb.or(afterKey, cb.and(cb.equal(valuePath, lastKey), afterId)));
+        }
+        cq.multiselect(recordPath, valuePath);
+        cq.where(predicateList.toArray(new Predicate[0]));
+        cq.orderBy((ascending) ? cb.asc(valuePath) : cb.desc(valuePath), (idAscending) ? cb.asc(recordPath) : cb.desc(recordPath));
+        TypedQuery<Object[]> query = em.createQuery(cq);
+        parameters.bind(query);
+        return query.setMaxResults(maxResults).getResultList();
     }
 
-    public Predicate filtering(CriteriaBuilder cb, CriteriaQuery cq, Class referenceClass, Path recordWrapperPath, IndexQuery indexQuery) throws NoSuchFieldException {
+    public Predicate filtering(CriteriaBuilder cb, CriteriaQuery cq, Class referenceClass, Path recordWrapperPath, IndexQuery indexQuery, QueryParameters parameters) throws NoSuchFieldException {
+        Expression[] converted = getValues(cb, referenceClass, indexQuery, parameters);
         //-- sub query setup
         Subquery subquery = cq.subquery(RecordIndex.class);
         Root subRoot = subquery.from(RecordIndex.class);
@@ -118,14 +177,8 @@ public class IndexQueryManager {
         List<Predicate> subP = new ArrayList<>();
         subP.add(cb.equal(fieldSubPath, indexQuery.getField()));
         subP.add(cb.equal(recordSubPath, recordWrapperPath));
-        //-- converting types
-        Class<?> type = referenceClass.getDeclaredField(indexQuery.getField()).getType();
-        ParameterType indexType = pm.getType(type);
-        Comparable[] converted = new Comparable[indexQuery.values.length];
-        for (int i = 0; i < converted.length; i++) {
-            converted[i] = pm.getConverted(indexQuery.values[i]);
-        }
         //-- 
+        ParameterType indexType = pm.getType(referenceClass.getDeclaredField(indexQuery.getField()).getType());
         pm.filter(cb, subP, subRoot, indexQuery.getQuery(), indexType, converted);
         //-- finalizing
         subquery.where(subP.toArray(new Predicate[0]));
@@ -133,4 +186,101 @@ public class IndexQueryManager {
         return exists;
     }
 
+    /**
+     * values of a filter as parameters, converted to the index type
+     *
+     * @param cb criteria builder
+     * @param referenceClass record class holding the indexed field
+     * @param indexQuery filter
+     * @param parameters parameters of the query
+     * @return parameters
+     * @throws NoSuchFieldException
+     */
+    public Expression[] getValues(CriteriaBuilder cb, Class referenceClass, IndexQuery indexQuery, QueryParameters parameters) throws NoSuchFieldException {
+        Class<?> type = referenceClass.getDeclaredField(indexQuery.getField()).getType();
+        ParameterType indexType = pm.getType(type);
+        boolean like = (indexQuery.getQuery() == ParameterFilter.LIKE || indexQuery.getQuery() == ParameterFilter.NOT_LIKE);
+        Expression[] converted = new Expression[indexQuery.values.length];
+        for (int i = 0; i < converted.length; i++) {
+            converted[i] = (like) ? parameters.text(cb, indexQuery.values[i]) : parameters.value(cb, indexType, indexQuery.values[i]);
+        }
+        return converted;
+    }
+
+    /**
+     * Finding the composite index serving the most filtered fields, at least
+     * 2 including its first field so the database can seek on it.
+     *
+     * @param plan indexing plan of the record class
+     * @param indexList filters and sorts of the query
+     * @return composite index, or null if none matches
+     */
+    public Composite findComposite(IndexPlan plan, List<IndexQuery> indexList) {
+        Composite best = null;
+        int bestCount = 1;
+        for (Composite composite : plan.getCompositeList()) {
+            Set<String> fieldSet = new HashSet<>();
+            for (IndexQuery indexQuery : indexList) {
+                if (isCompositeFilter(composite, indexQuery)) {
+                    fieldSet.add(indexQuery.getField());
+                }
+            }
+            if (fieldSet.size() > bestCount && fieldSet.contains(composite.getFieldList().get(0).getName())) {
+                best = composite;
+                bestCount = fieldSet.size();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * checking if a filter can be applied to a composite index. Null
+     * comparisons are left to the field indexes, as a composite row exists
+     * when any of its fields has a value.
+     *
+     * @param composite composite index
+     * @param indexQuery filter or sort
+     * @return true if the filter is on a field of the index
+     */
+    public boolean isCompositeFilter(Composite composite, IndexQuery indexQuery) {
+        switch (indexQuery.getQuery()) {
+            case ORDER_BY:
+            case REVERSE_BY:
+                return false;
+            case EQUAL_TO:
+            case NOT_EQUAL_TO:
+                if (indexQuery.values[0] == null) {
+                    return false;
+                }
+        }
+        return composite.getPosition(indexQuery.getField()) > 0;
+    }
+
+    /**
+     * Filtering on many fields with a single sub query on the composite index
+     * row, instead of a sub query per field.
+     *
+     * @param cb criteria builder
+     * @param cq query
+     * @param composite composite index
+     * @param recordWrapperPath filtered wrapper
+     * @param filterMap filters of the index with their parameters, in query
+     * order
+     * @return predicate
+     */
+    public Predicate compositeFiltering(CriteriaBuilder cb, CriteriaQuery cq, Composite composite, Path recordWrapperPath, Map<IndexQuery, Expression[]> filterMap) {
+        Subquery<Long> subquery = cq.subquery(Long.class);
+        Root<RecordComposite> subRoot = subquery.from(RecordComposite.class);
+        subquery.select(subRoot.get("recordCompositePK").get("record"));
+        List<Predicate> subP = new ArrayList<>();
+        subP.add(cb.equal(subRoot.get("recordCompositePK").get("key"), composite.getKey()));
+        filterMap.forEach((indexQuery, converted) -> {
+            int position = composite.getPosition(indexQuery.getField());
+            ParameterType indexType = composite.getFieldList().get(position - 1).getType();
+            pm.filter(cb, subP, pm.getPath(subRoot, indexType, position), indexQuery.getQuery(), converted);
+        });
+        subquery.where(subP.toArray(new Predicate[0]));
+        return cb.in(recordWrapperPath.get("id")).value(subquery);
+    }
+
 }
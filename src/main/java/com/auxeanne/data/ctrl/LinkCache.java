@@ -0,0 +1,470 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Cache of the links of records, shared by the controllers of a persistence
+ * unit. The links of a record are loaded on first use and stored as a sorted
+ * array of primitive ids with their attributes. Entries are updated by the
+ * link operations and dropped when a linked record is removed. Least recently
+ * used entries are evicted above the max number of entries or the max number
+ * of cached links.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class LinkCache {
+
+    /**
+     * one cache per persistence unit, when enabled
+     */
+    private static final ConcurrentHashMap<EntityManagerFactory, LinkCache> caches = new ConcurrentHashMap<>();
+
+    private static final long[] NO_LINK = new long[0];
+
+    private final int maxEntries;
+    private final long maxLinks;
+    /**
+     * access ordered map, guarded by this
+     */
+    private final LinkedHashMap<Long, Adjacency> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private long linkCount = 0;
+    /**
+     * incremented by each change, so that links loaded during a change are
+     * not cached
+     */
+    private long version = 0;
+    //-- statistics, guarded by this
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    private LinkCache(int maxEntries, long maxLinks) {
+        this.maxEntries = maxEntries;
+        this.maxLinks = maxLinks;
+    }
+
+    /**
+     * enabling the cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param maxEntries max number of records with cached links
+     * @param maxLinks max cumulated number of cached links
+     * @return cache of the persistence unit
+     */
+    public static LinkCache enable(EntityManagerFactory emf, int maxEntries, long maxLinks) {
+        return caches.computeIfAbsent(emf, (key) -> new LinkCache(maxEntries, maxLinks));
+    }
+
+    /**
+     * disabling the cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void disable(EntityManagerFactory emf) {
+        caches.remove(emf);
+    }
+
+    /**
+     * cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @return cache or null if not enabled
+     */
+    public static LinkCache of(EntityManagerFactory emf) {
+        return caches.get(emf);
+    }
+
+    //--------------------------------------------------------------------------
+    // READ
+    //--------------------------------------------------------------------------
+    /**
+     * @param mc database controller loading missing links
+     * @param reference id of the reference record
+     * @param link id of the linked record
+     * @return true if the records are linked
+     */
+    public boolean isLinked(DatabaseController mc, long reference, long link) {
+        return get(mc, reference).indexOf(link) >= 0;
+    }
+
+    /**
+     * @param mc database controller loading missing links
+     * @param reference id of the reference record
+     * @param link id of the linked record
+     * @return attribute of the link, or null if none or not linked
+     */
+    public Comparable getAttribute(DatabaseController mc, long reference, long link) {
+        Adjacency adjacency = get(mc, reference);
+        int index = adjacency.indexOf(link);
+        return (index < 0 || adjacency.attributes == null) ? null : adjacency.attributes[index];
+    }
+
+    /**
+     * @param mc database controller loading missing links
+     * @param reference id of the reference record
+     * @return sorted ids of the records linked to the reference
+     */
+    public long[] getLinks(DatabaseController mc, long reference) {
+        return get(mc, reference).links.clone();
+    }
+
+    /**
+     * ids of the records linked to all the references, intersecting the
+     * sorted links from the smallest set
+     *
+     * @param mc database controller loading missing links
+     * @param references ids of the reference records
+     * @return sorted ids of the records linked to all the references
+     */
+    public long[] getCommonLinks(DatabaseController mc, long... references) {
+        if (references.length == 0) {
+            return NO_LINK;
+        }
+        long[][] sets = new long[references.length][];
+        for (int i = 0; i < references.length; i++) {
+            sets[i] = get(mc, references[i]).links;
+        }
+        Arrays.sort(sets, (a, b) -> Integer.compare(a.length, b.length));
+        long[] common = sets[0].clone();
+        int size = common.length;
+        for (int i = 1; i < sets.length && size > 0; i++) {
+            long[] other = sets[i];
+            int kept = 0;
+            int j = 0;
+            for (int k = 0; k < size && j < other.length; k++) {
+                j = lowerBound(other, j, common[k]);
+                if (j < other.length && other[j] == common[k]) {
+                    common[kept++] = common[k];
+                }
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(common, size);
+    }
+
+    /**
+     * links of a record, loaded from the database when missing
+     */
+    private Adjacency get(DatabaseController mc, long reference) {
+        //-- uncommitted links of the controller are neither served nor cached
+        if (mc.isTransactionPending()) {
+            return load(mc.getTransactionEntityManager(), reference);
+        }
+        long loadVersion;
+        synchronized (this) {
+            Adjacency adjacency = entryMap.get(reference);
+            if (adjacency != null) {
+                hitCount++;
+                return adjacency;
+            }
+            missCount++;
+            loadVersion = version;
+        }
+        Adjacency loaded = load(mc.getTransactionEntityManager(), reference);
+        synchronized (this) {
+            //-- not caching links which may have changed while loading
+            if (loadVersion == version) {
+                put(reference, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    private Adjacency load(EntityManager em, long reference) {
+        List<Object[]> rowList = em.createNamedQuery("RecordLink.findLinksOfReference")
+                .setParameter("id", reference)
+                .getResultList();
+        long[] links = new long[rowList.size()];
+        Comparable[] attributes = null;
+        for (int i = 0; i < links.length; i++) {
+            Object[] row = rowList.get(i);
+            links[i] = ((Number) row[0]).longValue();
+            //-- same priority as the attribute of a link : numeric, value, date
+            for (int column = 1; column < row.length; column++) {
+                if (row[column] != null) {
+                    if (attributes == null) {
+                        attributes = new Comparable[links.length];
+                    }
+                    attributes[i] = (Comparable) row[column];
+                    break;
+                }
+            }
+        }
+        return new Adjacency(links, attributes);
+    }
+
+    //--------------------------------------------------------------------------
+    // UPDATE
+    //--------------------------------------------------------------------------
+    /**
+     * updating the cached links after saving links, in both directions
+     *
+     * @param reference id of the reference record
+     * @param links ids of the linked records
+     * @param attribute attribute of the links
+     */
+    public synchronized void link(long reference, long[] links, Comparable attribute) {
+        version++;
+        long[] sorted = links.clone();
+        Arrays.sort(sorted);
+        Adjacency adjacency = entryMap.get(reference);
+        if (adjacency != null) {
+            replace(reference, adjacency.with(sorted, attribute));
+        }
+        long[] single = new long[]{reference};
+        for (long link : sorted) {
+            adjacency = entryMap.get(link);
+            if (adjacency != null) {
+                replace(link, adjacency.with(single, attribute));
+            }
+        }
+    }
+
+    /**
+     * updating the cached links after removing links, in both directions
+     *
+     * @param reference id of the reference record
+     * @param links ids of the unlinked records
+     */
+    public synchronized void unlink(long reference, long[] links) {
+        version++;
+        long[] sorted = links.clone();
+        Arrays.sort(sorted);
+        Adjacency adjacency = entryMap.get(reference);
+        if (adjacency != null) {
+            replace(reference, adjacency.without(sorted));
+        }
+        long[] single = new long[]{reference};
+        for (long link : sorted) {
+            adjacency = entryMap.get(link);
+            if (adjacency != null) {
+                replace(link, adjacency.without(single));
+            }
+        }
+    }
+
+    /**
+     * removing the links of records from the cache, to be loaded again
+     *
+     * @param ids record ids
+     */
+    public synchronized void invalidate(long... ids) {
+        version++;
+        for (long id : ids) {
+            remove(id);
+        }
+    }
+
+    /**
+     * removing removed records from the cache, as well as the records linked
+     * to them
+     *
+     * @param idList ids of the removed records
+     */
+    public synchronized void invalidateLinked(Collection<Long> idList) {
+        version++;
+        long[] sorted = idList.stream().mapToLong(Long::longValue).sorted().toArray();
+        Iterator<Map.Entry<Long, Adjacency>> it = entryMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Adjacency> entry = it.next();
+            if (Arrays.binarySearch(sorted, entry.getKey()) >= 0 || entry.getValue().linksAny(sorted)) {
+                linkCount -= entry.getValue().links.length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * removing all the links from the cache
+     */
+    public synchronized void clear() {
+        version++;
+        entryMap.clear();
+        linkCount = 0;
+    }
+
+    private void replace(long reference, Adjacency adjacency) {
+        remove(reference);
+        put(reference, adjacency);
+    }
+
+    private void remove(long reference) {
+        Adjacency previous = entryMap.remove(reference);
+        if (previous != null) {
+            linkCount -= previous.links.length;
+        }
+    }
+
+    private void put(long reference, Adjacency adjacency) {
+        Adjacency previous = entryMap.put(reference, adjacency);
+        if (previous != null) {
+            linkCount -= previous.links.length;
+        }
+        linkCount += adjacency.links.length;
+        //-- evicting least recently used entries
+        Iterator<Adjacency> it = entryMap.values().iterator();
+        while ((entryMap.size() > maxEntries || linkCount > maxLinks) && it.hasNext()) {
+            Adjacency evicted = it.next();
+            it.remove();
+            linkCount -= evicted.links.length;
+            evictionCount++;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // STATISTICS
+    //--------------------------------------------------------------------------
+    /**
+     * @return number of reads served from the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of reads loading the links from the database
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of entries evicted to respect the bounds
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of records with cached links
+     */
+    public synchronized int getSize() {
+        return entryMap.size();
+    }
+
+    /**
+     * @return cumulated number of cached links
+     */
+    public synchronized long getLinkCount() {
+        return linkCount;
+    }
+
+    /**
+     * first index of a sorted array with a value greater or equal to the key
+     */
+    private static int lowerBound(long[] sorted, int from, long key) {
+        int low = from;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * immutable links of a record : sorted ids with the attributes at the same
+     * positions, attributes being null when no link has one
+     */
+    private static class Adjacency {
+
+        private final long[] links;
+        private final Comparable[] attributes;
+
+        Adjacency(long[] links, Comparable[] attributes) {
+            this.links = links;
+            this.attributes = attributes;
+        }
+
+        int indexOf(long link) {
+            return Arrays.binarySearch(links, link);
+        }
+
+        boolean linksAny(long[] sorted) {
+            for (long link : links) {
+                if (Arrays.binarySearch(sorted, link) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * merging sorted ids, updating the attribute of existing links
+         */
+        Adjacency with(long[] added, Comparable attribute) {
+            long[] mergedLinks = new long[links.length + added.length];
+            Comparable[] mergedAttributes = (attributes == null && attribute == null) ? null : new Comparable[mergedLinks.length];
+            int i = 0;
+            int j = 0;
+            int size = 0;
+            while (i < links.length || j < added.length) {
+                if (j == added.length || (i < links.length && links[i] < added[j])) {
+                    if (mergedAttributes != null && attributes != null) {
+                        mergedAttributes[size] = attributes[i];
+                    }
+                    mergedLinks[size++] = links[i++];
+                } else {
+                    if (i < links.length && links[i] == added[j]) {
+                        i++;
+                    }
+                    if (mergedAttributes != null) {
+                        mergedAttributes[size] = attribute;
+                    }
+                    mergedLinks[size++] = added[j++];
+                    //-- skipping duplicated ids
+                    while (j < added.length && added[j] == added[j - 1]) {
+                        j++;
+                    }
+                }
+            }
+            return new Adjacency(Arrays.copyOf(mergedLinks, size), (mergedAttributes == null) ? null : Arrays.copyOf(mergedAttributes, size));
+        }
+
+        /**
+         * removing sorted ids
+         */
+        Adjacency without(long[] removed) {
+            long[] keptLinks = new long[links.length];
+            Comparable[] keptAttributes = (attributes == null) ? null : new Comparable[links.length];
+            int size = 0;
+            for (int i = 0; i < links.length; i++) {
+                if (Arrays.binarySearch(removed, links[i]) < 0) {
+                    if (keptAttributes != null) {
+                        keptAttributes[size] = attributes[i];
+                    }
+                    keptLinks[size++] = links[i];
+                }
+            }
+            return new Adjacency(Arrays.copyOf(keptLinks, size), (keptAttributes == null) ? null : Arrays.copyOf(keptAttributes, size));
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.db.RecordType;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Process wide metadata shared by all the controllers of a persistence unit :
+ * record types by class name or id, indexing plans and codecs by class. Reads
+ * are lock free, so "Records" and "Preferences" can be created per transaction
+ * without reloading the metadata. Kept per factory, so releasing it drops the
+ * classes of a redeployed application.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class MetadataRegistry {
+
+    /**
+     * one registry per persistence unit
+     */
+    private static final ConcurrentHashMap<EntityManagerFactory, MetadataRegistry> registries = new ConcurrentHashMap<>();
+
+    /**
+     * indexing plans by class
+     */
+    private final ConcurrentHashMap<Class<?>, IndexPlan> planCache = new ConcurrentHashMap<>();
+    /**
+     * codecs selected with the RecordFormat annotation, empty when not
+     * annotated
+     */
+    private final ConcurrentHashMap<Class<?>, Optional<RecordCodec>> codecCache = new ConcurrentHashMap<>();
+
+    /**
+     * record types by code (class name)
+     */
+    private final ConcurrentHashMap<String, RecordType> typeCache = new ConcurrentHashMap<>();
+    /**
+     * record types by id
+     */
+    private final ConcurrentHashMap<Integer, RecordType> typeIdCache = new ConcurrentHashMap<>();
+    /**
+     * classes by record type code, empty when not found
+     */
+    private final ConcurrentHashMap<String, Optional<Class<?>>> classCache = new ConcurrentHashMap<>();
+
+    private MetadataRegistry() {
+    }
+
+    /**
+     * registry of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @return shared registry
+     */
+    public static MetadataRegistry of(EntityManagerFactory emf) {
+        MetadataRegistry registry = registries.get(emf);
+        if (registry == null) {
+            //-- new factory (ex: redeploy), dropping the ones closed without release
+            releaseClosed();
+            registry = registries.computeIfAbsent(emf, (key) -> new MetadataRegistry());
+        }
+        return registry;
+    }
+
+    /**
+     * forgetting everything kept for a persistence unit : metadata, caches,
+     * id allocator and audit writer (pending logs being written). To call
+     * before closing the factory.
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void release(EntityManagerFactory emf) {
+        registries.remove(emf);
+        AuditWriter.shutdown(emf);
+        RecordCache.disable(emf);
+        LinkCache.disable(emf);
+        PreferenceCache.disable(emf);
+        IdAllocator.disable(emf);
+    }
+
+    /**
+     * releasing the factories closed without release
+     */
+    private static void releaseClosed() {
+        for (EntityManagerFactory emf : registries.keySet()) {
+            if (!emf.isOpen()) {
+                release(emf);
+            }
+        }
+    }
+
+    /**
+     * resolving (and caching) the indexing plan of a class
+     *
+     * @param recordClass class to parse for indexed field
+     * @return indexing plan
+     */
+    @SuppressWarnings("unchecked")
+    public IndexPlan getIndexPlan(Class<? extends Record> recordClass) {
+        return planCache.computeIfAbsent(recordClass, (c) -> IndexPlan.of((Class<? extends Record>) c));
+    }
+
+    /**
+     * resolving (and caching) the RecordFormat codec of a class
+     *
+     * @param modelClass class to store
+     * @param resolver reading the annotation of the class
+     * @return codec, empty when the class is not annotated
+     */
+    public Optional<RecordCodec> getCodec(Class<?> modelClass, Function<Class<?>, Optional<RecordCodec>> resolver) {
+        return codecCache.computeIfAbsent(modelClass, resolver);
+    }
+
+    /**
+     * cached record type
+     *
+     * @param code record type code (class name)
+     * @return record type or null if not loaded yet
+     */
+    public RecordType getType(String code) {
+        return typeCache.get(code);
+    }
+
+    /**
+     * cached record type
+     *
+     * @param id record type id
+     * @return record type or null if not loaded yet
+     */
+    public RecordType getType(Integer id) {
+        return typeIdCache.get(id);
+    }
+
+    /**
+     * caching a record type
+     *
+     * @param recordType record type read or created in database
+     */
+    public void putType(RecordType recordType) {
+        typeCache.put(recordType.getCode(), recordType);
+        if (recordType.getId() != null) {
+            typeIdCache.put(recordType.getId(), recordType);
+        }
+    }
+
+    /**
+     * resolving (and caching) the class of a record type
+     *
+     * @param code record type code (class name)
+     * @return model class or null if not found
+     */
+    public Class<?> getRecordClass(String code) {
+        return classCache.computeIfAbsent(code, (name) -> {
+            try {
+                return Optional.of(Class.forName(name));
+            } catch (ClassNotFoundException ex) {
+                Logger.getLogger(MetadataRegistry.class.getName()).log(Level.SEVERE, null, ex);
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * loading all the known record types at once
+     *
+     * @param em entity manager of the persistence unit
+     * @return number of record types loaded
+     */
+    public int warmUp(EntityManager em) {
+        List<RecordType> list = em.createNamedQuery("RecordType.findAll", RecordType.class).getResultList();
+        list.forEach(this::putType);
+        return list.size();
+    }
+
+}
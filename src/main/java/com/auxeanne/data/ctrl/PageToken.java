@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Continuation token for keyset pagination. It holds the position of the last
+ * record of a page (its id and, when sorting on an indexed field, its sort
+ * key) and can be exchanged as an opaque string with REST clients.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class PageToken {
+
+    private static final String SEPARATOR = "~";
+
+    private final long id;
+    private final Comparable key;
+
+    /**
+     *
+     * @param id database id of the last record of the page
+     * @param key sort key of the last record (Date, BigDecimal or String) or
+     * null when sorting by insert
+     */
+    public PageToken(long id, Comparable key) {
+        this.id = id;
+        this.key = (key == null) ? null : new ParameterManager().getConverted(key);
+    }
+
+    /**
+     * token for pages sorted by insert
+     *
+     * @param last last record of the page
+     * @return continuation token
+     */
+    public static PageToken of(Record last) {
+        return new PageToken(last.getId(), null);
+    }
+
+    /**
+     * token for pages sorted on an indexed field
+     *
+     * @param last last record of the page
+     * @param indexedField field used for sorting
+     * @return continuation token
+     */
+    public static PageToken of(Record last, String indexedField) {
+        return new PageToken(last.getId(), readIndexedValue(last, indexedField));
+    }
+
+    /**
+     * reading the converted value of an indexed field
+     *
+     * @param record record to read
+     * @param indexedField field to read
+     * @return Date, BigDecimal or String depending on what fits the best
+     */
+    static Comparable readIndexedValue(Record record, String indexedField) {
+        try {
+            Field field = record.getClass().getDeclaredField(indexedField);
+            boolean status = field.isAccessible();
+            field.setAccessible(true);
+            Object value = field.get(record);
+            field.setAccessible(status);
+            return new ParameterManager().getConverted(value);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * restoring a token from its string form
+     *
+     * @param token string provided by toString()
+     * @return continuation token
+     */
+    public static PageToken parse(String token) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = decoded.split(SEPARATOR, 3);
+            long id = Long.parseLong(parts[0]);
+            if (parts.length == 1) {
+                return new PageToken(id, null);
+            }
+            switch (parts[1]) {
+                case "N":
+                    return new PageToken(id, new BigDecimal(parts[2]));
+                case "D":
+                    return new PageToken(id, new Date(Long.parseLong(parts[2])));
+                case "S":
+                    return new PageToken(id, parts[2]);
+                default:
+                    throw new IllegalArgumentException("Unknown page token type : " + parts[1]);
+            }
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid page token : " + token, ex);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Comparable getKey() {
+        return key;
+    }
+
+    /**
+     * opaque string form of the token
+     *
+     * @return URL safe token
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(id);
+        if (key instanceof BigDecimal) {
+            sb.append(SEPARATOR).append("N").append(SEPARATOR).append(((BigDecimal) key).toPlainString());
+        } else if (key instanceof Date) {
+            sb.append(SEPARATOR).append("D").append(SEPARATOR).append(((Date) key).getTime());
+        } else if (key != null) {
+            sb.append(SEPARATOR).append("S").append(SEPARATOR).append(key.toString());
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -27,6 +27,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
@@ -48,14 +49,27 @@ public class ParameterManager {
         STRING, NUMERIC, DATE
     };
 
-    public void filter(CriteriaBuilder cb, List<Predicate> subP, Root subRoot, ParameterFilter filter, ParameterType indexType, Comparable[] values) {
-        Path indexPath = getPath(subRoot, indexType);
+    /**
+     * filtering on the index value
+     *
+     * @param cb criteria builder
+     * @param subP predicates to complete
+     * @param subRoot index root
+     * @param filter filter to apply
+     * @param indexType type of the index value
+     * @param values query parameters (null for a null value)
+     */
+    public void filter(CriteriaBuilder cb, List<Predicate> subP, Root subRoot, ParameterFilter filter, ParameterType indexType, Expression[] values) {
+        filter(cb, subP, getPath(subRoot, indexType), filter, values);
+    }
+
+    public void filter(CriteriaBuilder cb, List<Predicate> subP, Path indexPath, ParameterFilter filter, Expression[] values) {
         switch (filter) {
             case EQUAL_TO:
-                subP.add(cb.equal(indexPath, values[0]));
+                subP.add((values[0] == null) ? cb.isNull(indexPath) : cb.equal(indexPath, values[0]));
                 break;
             case NOT_EQUAL_TO:
-                subP.add(cb.notEqual(indexPath, values[0]));
+                subP.add((values[0] == null) ? cb.isNotNull(indexPath) : cb.notEqual(indexPath, values[0]));
                 break;
             case GREATER_THAN:
                 subP.add( cb.greaterThan(indexPath, values[0])  );
@@ -70,22 +84,22 @@ public class ParameterManager {
                 subP.add(cb.lessThanOrEqualTo(indexPath, values[0]));
                 break;
             case IN:
-                subP.add(indexPath.in((Object[]) values));
+                subP.add(indexPath.in(values));
                 break;
             case NOT_IN:
-                subP.add(cb.not(indexPath.in((Object[]) values)));
+                subP.add(cb.not(indexPath.in(values)));
                 break;
             case LIKE:
                 Predicate[] ors = new Predicate[values.length];
                 for (int i = 0; i < values.length; i++) {
-                    ors[i] = cb.like(indexPath, values[i].toString());
+                    ors[i] = cb.like(indexPath, values[i]);
                 }
                 subP.add(cb.or(ors));
                 break;
             case NOT_LIKE:
                 Predicate[] nors = new Predicate[values.length];
                 for (int i = 0; i < values.length; i++) {
-                    nors[i] = cb.notLike(indexPath, values[i].toString());
+                    nors[i] = cb.notLike(indexPath, values[i]);
                 }
                 subP.add(cb.or(nors));
                 break;
@@ -151,6 +165,26 @@ public class ParameterManager {
         throw new IllegalArgumentException();
     }
 
+    /**
+     * typed column of a field in a composite index
+     *
+     * @param subRoot composite index
+     * @param type field type
+     * @param position position of the field, from 1
+     * @return path of the column
+     */
+    public Path getPath(Path subRoot, ParameterType type, int position) {
+        switch (type) {
+            case STRING:
+                return subRoot.get("value" + position);
+            case NUMERIC:
+                return subRoot.get("numeric" + position);
+            case DATE:
+                return subRoot.<Date>get("date" + position);
+        }
+        throw new IllegalArgumentException();
+    }
+
     public Path getPath(Root subRoot, Class typeClass) {
         ParameterType type_ = getType(typeClass);
         return getPath(subRoot, type_);
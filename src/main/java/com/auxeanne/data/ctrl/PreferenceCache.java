@@ -0,0 +1,263 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Cache of preferences by tenant and key, shared by the controllers of a
+ * persistence unit. Missing keys are cached too. Values are decoded once per
+ * target class and readers get a copy. Entries are dropped when written from
+ * this JVM, and expire after the time to live so the writes of other nodes are
+ * seen. Least recently used entries are evicted above the max number of
+ * entries.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class PreferenceCache {
+
+    /**
+     * one cache per persistence unit, when enabled
+     */
+    private static final ConcurrentHashMap<EntityManagerFactory, PreferenceCache> caches = new ConcurrentHashMap<>();
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final RecordCopier copier = new RecordCopier();
+    /**
+     * access ordered map, guarded by this
+     */
+    private final LinkedHashMap<Key, Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * incremented by each invalidation, so a value read before is not cached
+     */
+    private long version = 0;
+    //-- statistics, guarded by this
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    private PreferenceCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * enabling the cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param maxEntries max number of cached keys
+     * @param ttlMillis time to live of the entries in milliseconds, 0 for no
+     * expiration
+     * @return cache of the persistence unit
+     */
+    public static PreferenceCache enable(EntityManagerFactory emf, int maxEntries, long ttlMillis) {
+        return caches.computeIfAbsent(emf, (key) -> new PreferenceCache(maxEntries, ttlMillis));
+    }
+
+    /**
+     * disabling the cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void disable(EntityManagerFactory emf) {
+        caches.remove(emf);
+    }
+
+    /**
+     * cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @return cache or null if not enabled
+     */
+    public static PreferenceCache of(EntityManagerFactory emf) {
+        return caches.get(emf);
+    }
+
+    /**
+     * reading an entry
+     *
+     * @param tenant tenant or null
+     * @param key preference key
+     * @return entry, or null if not cached or expired
+     */
+    public synchronized Entry get(String tenant, String key) {
+        Key entryKey = new Key(tenant, key);
+        Entry entry = entryMap.get(entryKey);
+        if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.loadedAt > ttlMillis) {
+            entryMap.remove(entryKey);
+            entry = null;
+        }
+        if (entry == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * @return version to provide when caching a value read from the database
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * caching the stored value of a key
+     *
+     * @param tenant tenant or null
+     * @param key preference key
+     * @param value stored value, null if the key does not exist
+     * @param loadVersion version before reading the value
+     * @return entry, only cached if no invalidation happened since the read
+     */
+    public synchronized Entry put(String tenant, String key, byte[] value, long loadVersion) {
+        Entry entry = new Entry(value);
+        if (loadVersion == version) {
+            entryMap.put(new Key(tenant, key), entry);
+            if (entryMap.size() > maxEntries) {
+                entryMap.remove(entryMap.keySet().iterator().next());
+                evictionCount++;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * dropping a written key
+     *
+     * @param tenant tenant or null
+     * @param key preference key
+     */
+    public synchronized void invalidate(String tenant, String key) {
+        version++;
+        entryMap.remove(new Key(tenant, key));
+    }
+
+    /**
+     * dropping all the entries
+     */
+    public synchronized void clear() {
+        version++;
+        entryMap.clear();
+    }
+
+    //--------------------------------------------------------------------------
+    // STATISTICS
+    //--------------------------------------------------------------------------
+    /**
+     * @return number of reads served from the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of reads not served from the cache
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of entries evicted to respect the max number of entries
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of cached keys
+     */
+    public synchronized int getSize() {
+        return entryMap.size();
+    }
+
+    /**
+     * cached value of a key
+     */
+    public class Entry {
+
+        private final byte[] value;
+        private final long loadedAt = System.currentTimeMillis();
+        private final Map<Class<?>, Object> decodedMap = new ConcurrentHashMap<>();
+
+        private Entry(byte[] value) {
+            this.value = value;
+        }
+
+        /**
+         * @return true if the key exists
+         */
+        public boolean exists() {
+            return value != null;
+        }
+
+        /**
+         * decoding the value once per target class
+         *
+         * @param <T> type of value
+         * @param target class of the value
+         * @param decoder decoding the stored value
+         * @return copy of the decoded value, or null if the key does not exist
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T getValue(Class<T> target, Function<byte[], T> decoder) {
+            if (value == null) {
+                return null;
+            }
+            if (!copier.isCopyable(target)) {
+                return decoder.apply(value);
+            }
+            T decoded = (T) decodedMap.computeIfAbsent(target, (type) -> decoder.apply(value));
+            return copier.copy(decoded);
+        }
+    }
+
+    /**
+     * tenant and preference key
+     */
+    private static class Key {
+
+        private final String tenant;
+        private final String key;
+
+        private Key(String tenant, String key) {
+            this.tenant = tenant;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tenant, key);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            return Objects.equals(tenant, other.tenant) && Objects.equals(key, other.key);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.ctrl.QueryParameters.Slot;
+import com.auxeanne.data.db.RecordWrapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import org.eclipse.persistence.config.EntityManagerProperties;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.CursoredStream;
+
+/**
+ * Query built once from a fluent chain and executed many times with new
+ * values. The query is registered as a named query of the persistence unit,
+ * so its SQL is translated only once. The values of the chain (indexed
+ * values, link attributes and linked records) become parameters, in the
+ * order of the calls, each value of an IN filter being a parameter.
+ * <p>
+ * Instances are immutable and thread safe, and can be executed from any
+ * "Records" of the same persistence unit with Records.query(prepared,
+ * values...). As named queries are kept by the persistence unit, queries
+ * should be prepared once (ex: at startup) and not per request.</p>
+ *
+ * @author Jean-Michel Tanguy
+ * @param <T> All POJOs must extend DefaultRecord
+ */
+public class PreparedRecordQuery<T extends Record> {
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private final EntityManagerFactory emf;
+    private final String name;
+    private final Class<T> referenceClass;
+    private final List<Slot> slotList;
+    private final boolean tenantBound;
+    private final Integer firstResult;
+    private final Integer maxResults;
+    private final int fetchSize;
+
+    /**
+     * registering the query in the persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param referenceClass record type to decode
+     * @param query built query
+     * @param parameters parameters of the query
+     * @param firstResult default first position or null
+     * @param maxResults default max number of records or null
+     * @param fetchSize number of wrappers fetched at once when streaming
+     */
+    PreparedRecordQuery(EntityManagerFactory emf, Class<T> referenceClass, Query query, QueryParameters parameters, Integer firstResult, Integer maxResults, int fetchSize) {
+        this.emf = emf;
+        this.name = PreparedRecordQuery.class.getSimpleName() + "." + referenceClass.getName() + "." + counter.incrementAndGet();
+        this.referenceClass = referenceClass;
+        this.slotList = new ArrayList<>(parameters.getSlotList());
+        this.tenantBound = parameters.isTenantBound();
+        this.firstResult = firstResult;
+        this.maxResults = maxResults;
+        this.fetchSize = fetchSize;
+        emf.addNamedQuery(name, query);
+    }
+
+    /**
+     * @return name of the registered named query
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of values expected by the query
+     */
+    public int getParameterCount() {
+        return slotList.size();
+    }
+
+    /**
+     * binding new values to the query
+     *
+     * @param mc database controller executing the query
+     * @param values values in the order of the chain calls, or none to reuse
+     * the values given when preparing the query
+     * @return query ready to execute
+     */
+    public Execution<T> bind(DatabaseController mc, Object... values) {
+        if (mc.getEntityManagerFactory() != emf) {
+            throw new IllegalArgumentException("Query " + name + " was prepared for another persistence unit");
+        }
+        if (values != null && values.length != 0 && values.length != slotList.size()) {
+            throw new IllegalArgumentException("Query " + name + " expects " + slotList.size() + " values instead of " + values.length);
+        }
+        Object[] converted = new Object[slotList.size()];
+        for (int i = 0; i < converted.length; i++) {
+            Slot slot = slotList.get(i);
+            converted[i] = (values == null || values.length == 0) ? slot.getValue() : slot.convert(values[i]);
+        }
+        return new Execution<>(this, mc, converted);
+    }
+
+    /**
+     * prepared query with its values, to execute
+     *
+     * @param <T> All POJOs must extend DefaultRecord
+     */
+    public static class Execution<T extends Record> {
+
+        private final PreparedRecordQuery<T> prepared;
+        private final DatabaseController mc;
+        private final Object[] values;
+        private Integer firstResult;
+        private Integer maxResults;
+        private int fetchSize;
+
+        private Execution(PreparedRecordQuery<T> prepared, DatabaseController mc, Object[] values) {
+            this.prepared = prepared;
+            this.mc = mc;
+            this.values = values;
+            this.firstResult = prepared.firstResult;
+            this.maxResults = prepared.maxResults;
+            this.fetchSize = prepared.fetchSize;
+        }
+
+        /**
+         * setting the first position from the matching result
+         *
+         * @param start first position
+         * @return this
+         */
+        public Execution<T> setFirstResult(int start) {
+            firstResult = start;
+            return this;
+        }
+
+        /**
+         * setting the max number of records to retrieve
+         *
+         * @param length max number of records
+         * @return this
+         */
+        public Execution<T> setMaxResults(int length) {
+            maxResults = length;
+            return this;
+        }
+
+        /**
+         * setting the number of wrappers fetched at once when streaming
+         *
+         * @param size number of wrappers
+         * @return this
+         */
+        public Execution<T> setFetchSize(int size) {
+            fetchSize = size;
+            return this;
+        }
+
+        /**
+         * list all matching records
+         *
+         * @return list of records
+         */
+        public List<T> getList() {
+            List<RecordWrapper> resultList = createQuery().getResultList();
+            List<T> list = new ArrayList<>(resultList.size());
+            for (RecordWrapper wrapper : resultList) {
+                list.add(mc.getRecord(prepared.referenceClass, wrapper));
+            }
+            return list;
+        }
+
+        /**
+         * get the first matching record
+         *
+         * @return first record or null
+         */
+        public T getFirst() {
+            setMaxResults(1);
+            List<T> list = getList();
+            return (list.isEmpty()) ? null : list.get(0);
+        }
+
+        /**
+         * iterating lazily on matching records, to close after use
+         *
+         * @return cursor
+         */
+        public RecordCursor<T> iterator() {
+            Query query = createQuery();
+            query.setHint(QueryHints.CURSOR, true);
+            query.setHint(QueryHints.CURSOR_PAGE_SIZE, fetchSize);
+            query.setHint(QueryHints.READ_ONLY, true);
+            CursoredStream cursor = (CursoredStream) query.getSingleResult();
+            return new RecordCursor<>(mc, prepared.referenceClass, cursor, fetchSize);
+        }
+
+        /**
+         * streaming matching records, to close after use
+         *
+         * @return stream of records
+         */
+        public Stream<T> stream() {
+            RecordCursor<T> cursor = iterator();
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(cursor::close);
+        }
+
+        private Query createQuery() {
+            EntityManager em = mc.getTransactionEntityManager();
+            //-- the tenant filter is part of the prepared SQL
+            Object tenant = em.getProperties().get(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT);
+            if (prepared.tenantBound != (tenant != null)) {
+                throw new IllegalStateException("Query " + prepared.name + " must be executed with" + ((prepared.tenantBound) ? "" : "out") + " tenant");
+            }
+            Query query = em.createNamedQuery(prepared.name);
+            for (int i = 0; i < values.length; i++) {
+                query.setParameter(prepared.slotList.get(i).getName(), values[i]);
+            }
+            if (tenant != null) {
+                query.setParameter("tenant", tenant.toString());
+            }
+            if (firstResult != null) {
+                query.setFirstResult(firstResult);
+            }
+            if (maxResults != null) {
+                query.setMaxResults(maxResults);
+            }
+            return query;
+        }
+    }
+
+}
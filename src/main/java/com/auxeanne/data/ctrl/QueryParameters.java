@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.ctrl.ParameterManager.ParameterType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.ParameterExpression;
+
+/**
+ * Values of a query, passed as JPA parameters instead of literals so the
+ * translated SQL does not depend on them and can be reused by prepared
+ * queries. Each value is converted to the type of its column.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class QueryParameters {
+
+    private final ParameterManager pm = new ParameterManager();
+    private final List<Slot> slotList = new ArrayList<>();
+    private final List<Slot> idListSlotList = new ArrayList<>();
+    private Slot tenantSlot = null;
+
+    /**
+     * parameter for an indexed value or a link attribute
+     *
+     * @param cb criteria builder
+     * @param type column type
+     * @param value value of the query, null being kept as literal
+     * @return parameter, or null for a null value
+     */
+    public ParameterExpression value(CriteriaBuilder cb, ParameterType type, Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (type) {
+            case NUMERIC:
+                return add(cb, BigDecimal.class, this::toNumeric, value);
+            case DATE:
+                return add(cb, Date.class, this::toDate, value);
+            default:
+                return add(cb, String.class, this::toText, value);
+        }
+    }
+
+    /**
+     * parameter for a LIKE pattern
+     *
+     * @param cb criteria builder
+     * @param value pattern
+     * @return parameter
+     */
+    public ParameterExpression text(CriteriaBuilder cb, Object value) {
+        return add(cb, String.class, this::toText, value);
+    }
+
+    /**
+     * parameter for a searched token
+     *
+     * @param cb criteria builder
+     * @param value token
+     * @return parameter
+     */
+    public ParameterExpression token(CriteriaBuilder cb, String value) {
+        return add(cb, String.class, this::toToken, value);
+    }
+
+    /**
+     * parameter for the id of a linked record
+     *
+     * @param cb criteria builder
+     * @param record linked record
+     * @return parameter
+     */
+    public ParameterExpression id(CriteriaBuilder cb, Record record) {
+        return add(cb, Long.class, this::toId, record);
+    }
+
+    /**
+     * parameter for a number of levels in a hierarchy
+     *
+     * @param cb criteria builder
+     * @param depth number of levels
+     * @return parameter
+     */
+    public ParameterExpression depth(CriteriaBuilder cb, int depth) {
+        return add(cb, Integer.class, (value) -> ((Number) value).intValue(), depth);
+    }
+
+    /**
+     * parameter for a list of record ids found when building the query, bound
+     * with the query but not part of the values of prepared queries
+     *
+     * @param cb criteria builder
+     * @param ids record ids
+     * @return parameter
+     */
+    public ParameterExpression idList(CriteriaBuilder cb, long[] ids) {
+        List<Long> idList = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            idList.add(id);
+        }
+        Slot slot = new Slot(cb.parameter(Collection.class, "ids" + idListSlotList.size()), Function.identity(), idList);
+        idListSlotList.add(slot);
+        return slot.parameter;
+    }
+
+    /**
+     * parameter for the tenant, always bound to the tenant of the executing
+     * entity manager
+     *
+     * @param cb criteria builder
+     * @param tenant current tenant
+     * @return parameter
+     */
+    public ParameterExpression tenant(CriteriaBuilder cb, String tenant) {
+        if (tenantSlot == null) {
+            tenantSlot = new Slot(cb.parameter(String.class, "tenant"), Object::toString, tenant);
+        }
+        return tenantSlot.parameter;
+    }
+
+    /**
+     * binding the values of the query
+     *
+     * @param query query built with the parameters
+     */
+    public void bind(Query query) {
+        for (Slot slot : slotList) {
+            query.setParameter(slot.parameter, slot.value);
+        }
+        for (Slot slot : idListSlotList) {
+            query.setParameter(slot.parameter, slot.value);
+        }
+        if (tenantSlot != null) {
+            query.setParameter(tenantSlot.parameter, tenantSlot.value);
+        }
+    }
+
+    /**
+     * @return parameters in the order of the query calls, without the tenant
+     */
+    public List<Slot> getSlotList() {
+        return Collections.unmodifiableList(slotList);
+    }
+
+    /**
+     * @return true if the query is restricted to a tenant
+     */
+    public boolean isTenantBound() {
+        return tenantSlot != null;
+    }
+
+    private ParameterExpression add(CriteriaBuilder cb, Class<?> type, Function<Object, Object> converter, Object value) {
+        Slot slot = new Slot(cb.parameter(type, "p" + slotList.size()), converter, value);
+        slotList.add(slot);
+        return slot.parameter;
+    }
+
+    //--------------------------------------------------------------------------
+    // CONVERSION
+    //--------------------------------------------------------------------------
+    private Object toText(Object value) {
+        Comparable converted = pm.getConverted(value);
+        return (converted == null || converted instanceof String) ? converted : converted.toString();
+    }
+
+    private Object toToken(Object value) {
+        //-- a new value is normalized like the stored words, keeping its first word
+        List<String> tokenList = Tokenizer.tokenize((value == null) ? null : value.toString());
+        return (tokenList.isEmpty()) ? "" : tokenList.get(0);
+    }
+
+    private Object toNumeric(Object value) {
+        Comparable converted = pm.getConverted(value);
+        return (converted == null || converted instanceof BigDecimal) ? converted : new BigDecimal(converted.toString());
+    }
+
+    private Object toDate(Object value) {
+        Comparable converted = pm.getConverted(value);
+        if (converted != null && !(converted instanceof Date)) {
+            throw new IllegalArgumentException("Date expected instead of " + value);
+        }
+        return converted;
+    }
+
+    private Object toId(Object value) {
+        if (value instanceof Record) {
+            return ((Record) value).getId();
+        }
+        return (value == null) ? null : ((Number) value).longValue();
+    }
+
+    /**
+     * parameter with its converter and the value given when building the
+     * query
+     */
+    public static class Slot {
+
+        private final ParameterExpression parameter;
+        private final Function<Object, Object> converter;
+        private final Object value;
+
+        Slot(ParameterExpression parameter, Function<Object, Object> converter, Object value) {
+            this.parameter = parameter;
+            this.converter = converter;
+            this.value = converter.apply(value);
+        }
+
+        /**
+         * @return name of the JPA parameter
+         */
+        public String getName() {
+            return parameter.getName();
+        }
+
+        /**
+         * @return value given when building the query, converted
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * @param value new value
+         * @return value converted to the column type
+         */
+        public Object convert(Object value) {
+            return converter.apply(value);
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.RecordImmutable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Cache of decoded records by id, shared by the controllers of a persistence
+ * unit. An entry is only served when the stored data is unchanged, so a stale
+ * entry is never returned. Least recently used entries are evicted above the
+ * max number of entries or the max weight (size of the stored data). Readers
+ * get a copy of the cached record, unless its class is annotated with
+ * RecordImmutable.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class RecordCache {
+
+    /**
+     * one cache per persistence unit, when enabled
+     */
+    private static final ConcurrentHashMap<EntityManagerFactory, RecordCache> caches = new ConcurrentHashMap<>();
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final RecordCopier copier = new RecordCopier();
+    /**
+     * access ordered map, guarded by this
+     */
+    private final LinkedHashMap<Long, Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    //-- statistics, guarded by this
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    private RecordCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * enabling the cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @param maxEntries max number of cached records
+     * @param maxWeight max cumulated size of the stored data, in bytes
+     * @return cache of the persistence unit
+     */
+    public static RecordCache enable(EntityManagerFactory emf, int maxEntries, long maxWeight) {
+        return caches.computeIfAbsent(emf, (key) -> new RecordCache(maxEntries, maxWeight));
+    }
+
+    /**
+     * disabling the cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     */
+    public static void disable(EntityManagerFactory emf) {
+        caches.remove(emf);
+    }
+
+    /**
+     * cache of a persistence unit
+     *
+     * @param emf entity manager factory of the persistence unit
+     * @return cache or null if not enabled
+     */
+    public static RecordCache of(EntityManagerFactory emf) {
+        return caches.get(emf);
+    }
+
+    /**
+     * reading a record from the cache
+     *
+     * @param <T> type of record
+     * @param id record id
+     * @param recordClass class of record
+     * @param data stored data the record must match
+     * @return copy of the cached record, or null if missing or outdated
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Long id, Class<T> recordClass, byte[] data) {
+        Entry entry;
+        synchronized (this) {
+            entry = entryMap.get(id);
+            if (entry == null || entry.recordClass != recordClass || !entry.matches(data)) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+        }
+        return (entry.immutable) ? (T) entry.record : copier.copy((T) entry.record);
+    }
+
+    /**
+     * caching a copy of a decoded record, so the caller keeps the decoded
+     * instance
+     *
+     * @param id record id
+     * @param recordClass class of record
+     * @param data stored data
+     * @param record decoded record
+     * @return true if cached, false if the class is not supported
+     */
+    public boolean put(Long id, Class<?> recordClass, byte[] data, Object record) {
+        boolean immutable = recordClass.isAnnotationPresent(RecordImmutable.class);
+        if (id == null || data == null || record == null || (!immutable && !copier.isCopyable(recordClass))) {
+            return false;
+        }
+        Entry entry = new Entry(recordClass, data, (immutable) ? record : copier.copy(record), immutable);
+        synchronized (this) {
+            Entry previous = entryMap.put(id, entry);
+            if (previous != null) {
+                weight -= previous.data.length;
+            }
+            weight += data.length;
+            //-- evicting least recently used entries
+            Iterator<Entry> it = entryMap.values().iterator();
+            while ((entryMap.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+                Entry evicted = it.next();
+                it.remove();
+                weight -= evicted.data.length;
+                evictionCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * removing a record from the cache
+     *
+     * @param id record id
+     */
+    public synchronized void invalidate(Long id) {
+        Entry previous = entryMap.remove(id);
+        if (previous != null) {
+            weight -= previous.data.length;
+        }
+    }
+
+    /**
+     * removing records from the cache
+     *
+     * @param idList record ids
+     */
+    public synchronized void invalidate(Collection<Long> idList) {
+        idList.forEach(this::invalidate);
+    }
+
+    /**
+     * removing all the records from the cache
+     */
+    public synchronized void clear() {
+        entryMap.clear();
+        weight = 0;
+    }
+
+    //--------------------------------------------------------------------------
+    // STATISTICS
+    //--------------------------------------------------------------------------
+    /**
+     * @return number of reads served from the cache
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of reads decoding the stored data
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of records evicted to respect the bounds
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of cached records
+     */
+    public synchronized int getSize() {
+        return entryMap.size();
+    }
+
+    /**
+     * @return cumulated size of the stored data of cached records, in bytes
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * cached record with the data it was decoded from
+     */
+    private static class Entry {
+
+        private final Class<?> recordClass;
+        private final byte[] data;
+        private final Object record;
+        private final boolean immutable;
+
+        Entry(Class<?> recordClass, byte[] data, Object record, boolean immutable) {
+            this.recordClass = recordClass;
+            this.data = data;
+            this.record = record;
+            this.immutable = immutable;
+        }
+
+        boolean matches(byte[] stored) {
+            return data == stored || Arrays.equals(data, stored);
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+/**
+ * <p>
+ * Serialization format of the records in the data column of the database.</p>
+ * <p>
+ * Except for the default JSON format which is stored as is, encoded records
+ * start with the codec id so tables mixing several formats remain readable
+ * during a migration. Ids must be between 1 and 8, these control characters
+ * never starting a JSON document.</p>
+ *
+ * @author Jean-Michel Tanguy
+ */
+public interface RecordCodec {
+
+    /**
+     * identifier stored as first byte of the encoded records, 0 meaning no
+     * prefix (legacy JSON)
+     *
+     * @return codec id
+     */
+    byte getId();
+
+    /**
+     * encoding a POJO, including the codec id prefix when not 0
+     *
+     * @param model POJO to encode
+     * @return bytes to store
+     */
+    byte[] encode(Object model);
+
+    /**
+     * decoding a POJO
+     *
+     * @param <T> Type to return
+     * @param data stored bytes
+     * @param offset position of the first byte after the codec prefix
+     * @param modelClass class to convert to
+     * @return POJO
+     */
+    <T> T decode(byte[] data, int offset, Class<T> modelClass);
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deep copy of decoded records by reflection. Records are trees of values (as
+ * stored in JSON), so no cycle is expected. Classes without default
+ * constructor can not be copied.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class RecordCopier {
+
+    /**
+     * values shared as is
+     */
+    private static final Set<Class<?>> IMMUTABLE_SET = new HashSet<>(Arrays.asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigDecimal.class, BigInteger.class, UUID.class, Class.class));
+
+    /**
+     * copy plan of the classes, empty when a class can not be copied
+     */
+    private final ConcurrentHashMap<Class<?>, Plan> planCache = new ConcurrentHashMap<>();
+
+    /**
+     * checking if instances of a class can be copied
+     *
+     * @param type class to check
+     * @return true if copy is supported
+     */
+    public boolean isCopyable(Class<?> type) {
+        return getPlan(type).constructor != null;
+    }
+
+    /**
+     * deep copy of a value
+     *
+     * @param <T> type of value
+     * @param value value to copy
+     * @return copy, or same instance for immutable values
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T copy(T value) {
+        if (value == null) {
+            return null;
+        }
+        Class<?> type = value.getClass();
+        if (isImmutable(type)) {
+            return value;
+        }
+        if (type.isArray()) {
+            int length = Array.getLength(value);
+            Object array = Array.newInstance(type.getComponentType(), length);
+            if (type.getComponentType().isPrimitive()) {
+                System.arraycopy(value, 0, array, 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, copy(Array.get(value, i)));
+                }
+            }
+            return (T) array;
+        }
+        if (value instanceof Date) {
+            return (T) ((Date) value).clone();
+        }
+        if (value instanceof Collection) {
+            Collection<Object> collection = (Collection<Object>) newInstance(type, (value instanceof Set) ? LinkedHashSet.class : ArrayList.class);
+            for (Object item : (Collection<Object>) value) {
+                collection.add(copy(item));
+            }
+            return (T) collection;
+        }
+        if (value instanceof Map) {
+            Map<Object, Object> map = (Map<Object, Object>) newInstance(type, LinkedHashMap.class);
+            for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                map.put(copy(entry.getKey()), copy(entry.getValue()));
+            }
+            return (T) map;
+        }
+        Plan plan = getPlan(type);
+        if (plan.constructor == null) {
+            throw new IllegalArgumentException("No default constructor to copy " + type.getName());
+        }
+        try {
+            Object target = plan.constructor.newInstance();
+            for (Field field : plan.fieldList) {
+                Object fieldValue = field.get(value);
+                field.set(target, field.getType().isPrimitive() ? fieldValue : copy(fieldValue));
+            }
+            return (T) target;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * values shared as is
+     *
+     * @param type class of value
+     * @return true if immutable
+     */
+    private boolean isImmutable(Class<?> type) {
+        return IMMUTABLE_SET.contains(type) || type.isEnum()
+                || (type.getSuperclass() != null && type.getSuperclass().isEnum())
+                || type.getName().startsWith("java.time.");
+    }
+
+    /**
+     * new empty collection or map of the same class, or of a default one
+     *
+     * @param type class to instantiate
+     * @param fallback class used without accessible default constructor
+     * @return new instance
+     */
+    private Object newInstance(Class<?> type, Class<?> fallback) {
+        Plan plan = getPlan(type);
+        try {
+            return (plan.constructor != null) ? plan.constructor.newInstance() : fallback.newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private Plan getPlan(Class<?> type) {
+        return planCache.computeIfAbsent(type, Plan::new);
+    }
+
+    /**
+     * default constructor and fields of a class, including inherited ones
+     */
+    private static class Plan {
+
+        private final Constructor<?> constructor;
+        private final List<Field> fieldList = new ArrayList<>();
+
+        Plan(Class<?> type) {
+            Constructor<?> found = null;
+            try {
+                found = type.getDeclaredConstructor();
+                found.setAccessible(true);
+            } catch (NoSuchMethodException | SecurityException ex) {
+                found = null;
+            }
+            this.constructor = (Modifier.isAbstract(type.getModifiers())) ? null : found;
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        fieldList.add(field);
+                    }
+                }
+            }
+        }
+    }
+
+}
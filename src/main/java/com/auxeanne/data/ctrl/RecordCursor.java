@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import com.auxeanne.data.db.RecordWrapper;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.eclipse.persistence.queries.CursoredStream;
+
+/**
+ * Lazy iterator on query results backed by a database cursor. Wrappers are
+ * fetched by pages and decoded one at a time, pages already processed being
+ * released from the cursor so memory stays flat whatever the result size.
+ * <p>
+ * The cursor holds a database connection until the end of the results is
+ * reached or until it is closed, so it should be used in a try-with-resources
+ * block.</p>
+ *
+ * @author Jean-Michel Tanguy
+ * @param <T> All POJOs must extend DefaultRecord
+ */
+public class RecordCursor<T extends Record> implements Iterator<T>, AutoCloseable {
+
+    private final DatabaseController mc;
+    private final Class<T> referenceClass;
+    private final CursoredStream cursor;
+    private final int pageSize;
+    private Iterator page = Collections.emptyIterator();
+    private boolean closed = false;
+
+    /**
+     *
+     * @param mc Database controller
+     * @param referenceClass record type to decode
+     * @param cursor EclipseLink cursor on RecordWrapper
+     * @param pageSize number of wrappers fetched at once
+     */
+    public RecordCursor(DatabaseController mc, Class<T> referenceClass, CursoredStream cursor, int pageSize) {
+        this.mc = mc;
+        this.referenceClass = referenceClass;
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (page.hasNext()) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        if (cursor.atEnd()) {
+            close();
+            return false;
+        }
+        //-- dropping previous page from the cursor buffer before fetching the next one
+        cursor.releasePrevious();
+        page = cursor.next(pageSize).iterator();
+        return page.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mc.getRecord(referenceClass, (RecordWrapper) page.next());
+    }
+
+    /**
+     * releasing the cursor and its connection
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            cursor.close();
+        }
+    }
+
+}
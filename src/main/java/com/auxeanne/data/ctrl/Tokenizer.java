@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.ctrl;
+
+import java.lang.reflect.Array;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Splitting text into searchable tokens : lower case words without accents,
+ * truncated to the token column size.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class Tokenizer {
+
+    /**
+     * size of the token column
+     */
+    public static final int MAX_TOKEN_LENGTH = 64;
+    /**
+     * shortest prefix stored for the fields with prefixes
+     */
+    public static final int MIN_PREFIX_LENGTH = 3;
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private Tokenizer() {
+    }
+
+    /**
+     * splitting a text
+     *
+     * @param text text to split
+     * @return tokens in the order of the text, with duplicates
+     */
+    public static List<String> tokenize(String text) {
+        List<String> list = new ArrayList<>();
+        if (text != null) {
+            String normalized = ACCENTS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+            for (String word : SEPARATORS.split(normalized)) {
+                if (!word.isEmpty()) {
+                    list.add((word.length() > MAX_TOKEN_LENGTH) ? word.substring(0, MAX_TOKEN_LENGTH) : word);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * adding the tokens of a field value
+     *
+     * @param tokenSet tokens of the record
+     * @param value field value, collections and arrays being split by element
+     * @param prefixes adding the beginnings of the words
+     */
+    public static void addTokens(Set<String> tokenSet, Object value, boolean prefixes) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Collection) {
+            for (Object element : (Collection) value) {
+                addTokens(tokenSet, element, prefixes);
+            }
+        } else if (value.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(value); i++) {
+                addTokens(tokenSet, Array.get(value, i), prefixes);
+            }
+        } else {
+            for (String token : tokenize(value.toString())) {
+                tokenSet.add(token);
+                if (prefixes) {
+                    for (int length = MIN_PREFIX_LENGTH; length < token.length(); length++) {
+                        tokenSet.add(token.substring(0, length));
+                    }
+                }
+            }
+        }
+    }
+
+}
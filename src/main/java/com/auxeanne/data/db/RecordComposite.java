@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.db;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.validation.constraints.Size;
+import javax.xml.bind.annotation.XmlRootElement;
+import org.eclipse.persistence.annotations.Index;
+import org.eclipse.persistence.annotations.Indexes;
+
+/**
+ * Values of the fields of a composite index, one typed column per position
+ * and field type. Only the column matching the type of the field is set. The
+ * indexes start with the key and the first field, the other fields being
+ * checked on the same row.
+ *
+ * @author Jean-Michel Tanguy
+ */
+@Entity
+@Table(name = "record_composite")
+@XmlRootElement
+@NamedQueries({
+    @NamedQuery(name = "RecordComposite.findFromIdList", query = "SELECT c FROM RecordComposite c WHERE c.recordCompositePK.record in :list "),
+    @NamedQuery(name = "RecordComposite.deleteByIdList", query = "DELETE FROM RecordComposite c WHERE c.recordCompositePK.record in :list ")})
+@Indexes({
+    @Index(name = "COMPOSITE_VALUE_INDEX", columnNames = {"key_", "value1_"}),
+    @Index(name = "COMPOSITE_NUMERIC_INDEX", columnNames = {"key_", "numeric1_"}),
+    @Index(name = "COMPOSITE_DATE_INDEX", columnNames = {"key_", "date1_"})})
+public class RecordComposite implements Serializable {
+
+    /**
+     * max number of fields of a composite index
+     */
+    public static final int MAX_FIELDS = 3;
+
+    private static final long serialVersionUID = 1L;
+    @EmbeddedId
+    protected RecordCompositePK recordCompositePK;
+    @Size(max = 255)
+    @Column(name = "value1_")
+    private String value1;
+    @Column(name = "numeric1_")
+    private BigDecimal numeric1;
+    @Column(name = "date1_")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date date1;
+    @Size(max = 255)
+    @Column(name = "value2_")
+    private String value2;
+    @Column(name = "numeric2_")
+    private BigDecimal numeric2;
+    @Column(name = "date2_")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date date2;
+    @Size(max = 255)
+    @Column(name = "value3_")
+    private String value3;
+    @Column(name = "numeric3_")
+    private BigDecimal numeric3;
+    @Column(name = "date3_")
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date date3;
+    @JoinColumn(name = "record_", referencedColumnName = "id_", insertable = false, updatable = false)
+    @ManyToOne(optional = false)
+    private RecordWrapper recordWrapper;
+
+    public RecordComposite() {
+    }
+
+    public RecordComposite(RecordCompositePK recordCompositePK) {
+        this.recordCompositePK = recordCompositePK;
+    }
+
+    /**
+     * setting the value of a field, in the column matching its type
+     *
+     * @param position position of the field, from 1
+     * @param value String, BigDecimal, Date or null
+     */
+    public void setComponent(int position, Comparable value) {
+        String text = (value instanceof String) ? (String) value : null;
+        BigDecimal number = (value instanceof BigDecimal) ? (BigDecimal) value : null;
+        Date time = (value instanceof Date) ? (Date) value : null;
+        switch (position) {
+            case 1:
+                value1 = text;
+                numeric1 = number;
+                date1 = time;
+                break;
+            case 2:
+                value2 = text;
+                numeric2 = number;
+                date2 = time;
+                break;
+            case 3:
+                value3 = text;
+                numeric3 = number;
+                date3 = time;
+                break;
+            default:
+                throw new IllegalArgumentException("No field at position " + position);
+        }
+    }
+
+    /**
+     * value of a field, whatever its type
+     *
+     * @param position position of the field, from 1
+     * @return String, BigDecimal, Date or null
+     */
+    public Comparable getComponent(int position) {
+        switch (position) {
+            case 1:
+                return (value1 != null) ? value1 : (numeric1 != null) ? numeric1 : date1;
+            case 2:
+                return (value2 != null) ? value2 : (numeric2 != null) ? numeric2 : date2;
+            case 3:
+                return (value3 != null) ? value3 : (numeric3 != null) ? numeric3 : date3;
+            default:
+                throw new IllegalArgumentException("No field at position " + position);
+        }
+    }
+
+    public RecordCompositePK getRecordCompositePK() {
+        return recordCompositePK;
+    }
+
+    public void setRecordCompositePK(RecordCompositePK recordCompositePK) {
+        this.recordCompositePK = recordCompositePK;
+    }
+
+    public RecordWrapper getRecordWrapper() {
+        return recordWrapper;
+    }
+
+    public void setRecordWrapper(RecordWrapper recordWrapper) {
+        this.recordWrapper = recordWrapper;
+    }
+
+    public String getValue1() {
+        return value1;
+    }
+
+    public void setValue1(String value1) {
+        this.value1 = value1;
+    }
+
+    public BigDecimal getNumeric1() {
+        return numeric1;
+    }
+
+    public void setNumeric1(BigDecimal numeric1) {
+        this.numeric1 = numeric1;
+    }
+
+    public Date getDate1() {
+        return date1;
+    }
+
+    public void setDate1(Date date1) {
+        this.date1 = date1;
+    }
+
+    public String getValue2() {
+        return value2;
+    }
+
+    public void setValue2(String value2) {
+        this.value2 = value2;
+    }
+
+    public BigDecimal getNumeric2() {
+        return numeric2;
+    }
+
+    public void setNumeric2(BigDecimal numeric2) {
+        this.numeric2 = numeric2;
+    }
+
+    public Date getDate2() {
+        return date2;
+    }
+
+    public void setDate2(Date date2) {
+        this.date2 = date2;
+    }
+
+    public String getValue3() {
+        return value3;
+    }
+
+    public void setValue3(String value3) {
+        this.value3 = value3;
+    }
+
+    public BigDecimal getNumeric3() {
+        return numeric3;
+    }
+
+    public void setNumeric3(BigDecimal numeric3) {
+        this.numeric3 = numeric3;
+    }
+
+    public Date getDate3() {
+        return date3;
+    }
+
+    public void setDate3(Date date3) {
+        this.date3 = date3;
+    }
+
+    @Override
+    public int hashCode() {
+        return (recordCompositePK != null ? recordCompositePK.hashCode() : 0);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof RecordComposite)) {
+            return false;
+        }
+        RecordComposite other = (RecordComposite) object;
+        if ((this.recordCompositePK == null && other.recordCompositePK != null) || (this.recordCompositePK != null && !this.recordCompositePK.equals(other.recordCompositePK))) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "com.auxeanne.data.db.RecordComposite[ recordCompositePK=" + recordCompositePK + " ]";
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.db;
+
+import java.io.Serializable;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ *
+ * @author Jean-Michel Tanguy
+ */
+@Embeddable
+public class RecordCompositePK implements Serializable {
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 255)
+    @Column(name = "key_")
+    private String key;
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "record_")
+    private long record;
+
+    public RecordCompositePK() {
+    }
+
+    public RecordCompositePK(String key, long record) {
+        this.key = key;
+        this.record = record;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public long getRecord() {
+        return record;
+    }
+
+    public void setRecord(long record) {
+        this.record = record;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (key != null ? key.hashCode() : 0);
+        hash += (int) record;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof RecordCompositePK)) {
+            return false;
+        }
+        RecordCompositePK other = (RecordCompositePK) object;
+        if ((this.key == null && other.key != null) || (this.key != null && !this.key.equals(other.key))) {
+            return false;
+        }
+        if (this.record != other.record) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "com.auxeanne.data.db.RecordCompositePK[ key=" + key + ", record=" + record + " ]";
+    }
+    
+}
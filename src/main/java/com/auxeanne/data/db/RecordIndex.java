@@ -32,6 +32,7 @@ import javax.persistence.TemporalType;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.XmlRootElement;
 import org.eclipse.persistence.annotations.Index;
+import org.eclipse.persistence.annotations.Indexes;
 import org.eclipse.persistence.annotations.Multitenant;
 
 /**
@@ -43,9 +44,16 @@ import org.eclipse.persistence.annotations.Multitenant;
 @XmlRootElement
 @NamedQueries({
     @NamedQuery(name = "RecordIndex.findIndexFromIdList", query = "SELECT r.recordIndexPK FROM RecordIndex r WHERE r.recordIndexPK.record in :list "),
+    @NamedQuery(name = "RecordIndex.findFromIdList", query = "SELECT r FROM RecordIndex r WHERE r.recordIndexPK.record in :list "),
+    @NamedQuery(name = "RecordIndex.deleteByIdList", query = "DELETE FROM RecordIndex r WHERE r.recordIndexPK.record in :list "),
     @NamedQuery(name = "RecordIndex.findValueFromKey", query = "SELECT DISTINCT r.value FROM RecordIndex r WHERE r.recordIndexPK.key =:key  AND r.value IS NOT NULL ORDER BY r.value ASC"),
     @NamedQuery(name = "RecordIndex.findDateFromKey", query = "SELECT DISTINCT r.date FROM RecordIndex r WHERE r.recordIndexPK.key =:key  AND r.date IS NOT NULL ORDER BY r.date ASC"),
     @NamedQuery(name = "RecordIndex.findNumericFromKey", query = "SELECT DISTINCT r.numeric FROM RecordIndex r WHERE r.recordIndexPK.key =:key  AND r.numeric IS NOT NULL  ORDER BY r.numeric ASC")})
+//-- sorted reads of one indexed field scan these in order without reading the table, record id breaking ties
+@Indexes({
+    @Index(name = "RECORD_INDEX_VALUE_SORT", columnNames = {"key_", "field_", "value_", "record_"}),
+    @Index(name = "RECORD_INDEX_NUMERIC_SORT", columnNames = {"key_", "field_", "numeric_", "record_"}),
+    @Index(name = "RECORD_INDEX_DATE_SORT", columnNames = {"key_", "field_", "date_", "record_"})})
 @Cacheable(true)
 public class RecordIndex implements Serializable {
 
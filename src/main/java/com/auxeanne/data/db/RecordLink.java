@@ -48,7 +48,10 @@ import org.eclipse.persistence.annotations.Index;
     @NamedQuery(name = "RecordLink.findByReferenceId", query = "SELECT rl.recordPK FROM RecordLink rl  WHERE  rl.referenceR.id = :id"),
     @NamedQuery(name = "RecordLink.findByLinkId", query = "SELECT rl.recordPK FROM RecordLink rl  WHERE  rl.linkR.id = :id"),
     @NamedQuery(name = "RecordLink.findByReferenceIdList", query = "SELECT rl.recordPK FROM RecordLink rl  WHERE  rl.referenceR.id in :list"),
-    @NamedQuery(name = "RecordLink.findByLinkIdList", query = "SELECT rl.recordPK FROM RecordLink rl  WHERE  rl.linkR.id in :list")
+    @NamedQuery(name = "RecordLink.findByLinkIdList", query = "SELECT rl.recordPK FROM RecordLink rl  WHERE  rl.linkR.id in :list"),
+    @NamedQuery(name = "RecordLink.deleteByReferenceIdList", query = "DELETE FROM RecordLink rl WHERE rl.recordPK.reference in :list"),
+    @NamedQuery(name = "RecordLink.deleteByLinkIdList", query = "DELETE FROM RecordLink rl WHERE rl.recordPK.link in :list"),
+    @NamedQuery(name = "RecordLink.findLinksOfReference", query = "SELECT rl.recordPK.link, rl.numeric, rl.value, rl.date FROM RecordLink rl WHERE rl.recordPK.reference = :id ORDER BY rl.recordPK.link")
 })
 @Index(name = "EMP_NAME_INDEX", columnNames = {"reference_", "link_"})
 @Cacheable(true)
@@ -16,6 +16,7 @@
 package com.auxeanne.data.db;
 
 import java.io.Serializable;
+import javax.persistence.Column;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
@@ -24,6 +25,7 @@ import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
 import javax.xml.bind.annotation.XmlRootElement;
+import org.eclipse.persistence.annotations.Index;
 
 /**
  *
@@ -36,15 +38,33 @@ import javax.xml.bind.annotation.XmlRootElement;
     @NamedQuery(name = "RecordPath.findExistingParents", query = "SELECT p.recordPK.parent FROM RecordPath p WHERE p.parentR = p.pathR AND p.recordPK.parent in :list AND p.recordPK.child =:id "),
     @NamedQuery(name = "RecordPath.findExistingChildren", query = "SELECT p.recordPK.child FROM RecordPath p WHERE p.parentR = p.pathR AND p.recordPK.child in :list AND p.recordPK.parent = :id "),
     @NamedQuery(name = "RecordPath.findChildFromIdList", query = "SELECT rp.recordPK FROM RecordPath rp WHERE rp.recordPK.child in :list"),
-    @NamedQuery(name = "RecordPath.findParentFromIdList", query = "SELECT rp.recordPK FROM RecordPath rp WHERE rp.recordPK.parent in :list")
+    @NamedQuery(name = "RecordPath.findParentFromIdList", query = "SELECT rp.recordPK FROM RecordPath rp WHERE rp.recordPK.parent in :list"),
+    @NamedQuery(name = "RecordPath.findPathFromIdList", query = "SELECT rp.recordPK FROM RecordPath rp WHERE rp.recordPK.path in :list"),
+    @NamedQuery(name = "RecordPath.deleteByChildIdList", query = "DELETE FROM RecordPath rp WHERE rp.recordPK.child in :list"),
+    @NamedQuery(name = "RecordPath.deleteBranch", query = "DELETE FROM RecordPath rp WHERE rp.recordPK.path in :pathList AND rp.recordPK.parent in :parentList"),
+    @NamedQuery(name = "RecordPath.deleteEdges", query = "DELETE FROM RecordPath rp WHERE rp.recordPK.parent = :parent AND rp.recordPK.child in :list AND rp.recordPK.child BETWEEN :min AND :max AND rp.recordPK.path in :pathList"),
+    @NamedQuery(name = "RecordPath.findParents", query = "SELECT rp.recordPK.parent FROM RecordPath rp WHERE rp.recordPK.child = :id AND rp.recordPK.path = rp.recordPK.parent"),
+    @NamedQuery(name = "RecordPath.countBelow", query = "SELECT COUNT(rp) FROM RecordPath rp WHERE rp.recordPK.path = :path AND rp.recordPK.child = :id"),
+    @NamedQuery(name = "RecordPath.findAncestors", query = "SELECT DISTINCT rp.recordPK.path FROM RecordPath rp WHERE rp.recordPK.child = :id"),
+    @NamedQuery(name = "RecordPath.findDescendantsFromIdList", query = "SELECT DISTINCT rp.recordPK.child FROM RecordPath rp WHERE rp.recordPK.path in :list AND rp.recordPK.path BETWEEN :min AND :max"),
+    @NamedQuery(name = "RecordPath.updateDepth", query = "UPDATE RecordPath rp SET rp.depth = :depth WHERE rp.recordPK.parent = :parent AND rp.recordPK.child = :child AND rp.recordPK.path = :path"),
+    @NamedQuery(name = "RecordPath.resetEdgeDepth", query = "UPDATE RecordPath rp SET rp.depth = 1 WHERE rp.recordPK.path = rp.recordPK.parent"),
+    @NamedQuery(name = "RecordPath.clearDepth", query = "UPDATE RecordPath rp SET rp.depth = NULL WHERE rp.recordPK.path <> rp.recordPK.parent"),
+    @NamedQuery(name = "RecordPath.propagateDepth", query = "UPDATE RecordPath rp SET rp.depth = :depth WHERE rp.depth IS NULL AND EXISTS (SELECT a FROM RecordPath a WHERE a.recordPK.child = rp.recordPK.parent AND a.recordPK.path = rp.recordPK.path AND a.depth = :previous)")
 })
-
+@Index(name = "PATH_DEPTH_INDEX", columnNames = {"path_", "depth_"})
 public class RecordPath implements Serializable {
 
     private static final long serialVersionUID = 1L;
     @EmbeddedId
     protected RecordPathPK recordPK; // name optimized for fluent query
 
+    /**
+     * number of levels from the path to the child through the parent
+     */
+    @Column(name = "depth_")
+    private Integer depth;
+
     @JoinColumn(name = "parent_", referencedColumnName = "id_", insertable = false, updatable = false)
     @ManyToOne(optional = false)
     private RecordWrapper parentR;
@@ -76,6 +96,14 @@ public class RecordPath implements Serializable {
         this.recordPK = recordPathPK;
     }
 
+    public Integer getDepth() {
+        return depth;
+    }
+
+    public void setDepth(Integer depth) {
+        this.depth = depth;
+    }
+
     public RecordWrapper getParentR() {
         return parentR;
     }
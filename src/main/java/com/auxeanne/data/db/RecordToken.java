@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.db;
+
+import java.io.Serializable;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.xml.bind.annotation.XmlRootElement;
+import org.eclipse.persistence.annotations.Index;
+
+/**
+ * Word of the searchable fields of a record. The index on token then record
+ * serves the searches, the primary key serves the updates and removals.
+ *
+ * @author Jean-Michel Tanguy
+ */
+@Entity
+@Table(name = "record_token")
+@XmlRootElement
+@NamedQueries({
+    @NamedQuery(name = "RecordToken.findFromIdList", query = "SELECT t.recordTokenPK FROM RecordToken t WHERE t.recordTokenPK.record in :list "),
+    @NamedQuery(name = "RecordToken.deleteByIdList", query = "DELETE FROM RecordToken t WHERE t.recordTokenPK.record in :list ")})
+@Index(name = "TOKEN_RECORD_INDEX", columnNames = {"token_", "record_"})
+public class RecordToken implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    @EmbeddedId
+    protected RecordTokenPK recordTokenPK;
+    @JoinColumn(name = "record_", referencedColumnName = "id_", insertable = false, updatable = false)
+    @ManyToOne(optional = false)
+    private RecordWrapper recordWrapper;
+
+    public RecordToken() {
+    }
+
+    public RecordToken(RecordTokenPK recordTokenPK) {
+        this.recordTokenPK = recordTokenPK;
+    }
+
+    public RecordTokenPK getRecordTokenPK() {
+        return recordTokenPK;
+    }
+
+    public void setRecordTokenPK(RecordTokenPK recordTokenPK) {
+        this.recordTokenPK = recordTokenPK;
+    }
+
+    public RecordWrapper getRecordWrapper() {
+        return recordWrapper;
+    }
+
+    public void setRecordWrapper(RecordWrapper recordWrapper) {
+        this.recordWrapper = recordWrapper;
+    }
+
+    @Override
+    public int hashCode() {
+        return (recordTokenPK != null ? recordTokenPK.hashCode() : 0);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof RecordToken)) {
+            return false;
+        }
+        RecordToken other = (RecordToken) object;
+        if ((this.recordTokenPK == null && other.recordTokenPK != null) || (this.recordTokenPK != null && !this.recordTokenPK.equals(other.recordTokenPK))) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "com.auxeanne.data.db.RecordToken[ recordTokenPK=" + recordTokenPK + " ]";
+    }
+
+}
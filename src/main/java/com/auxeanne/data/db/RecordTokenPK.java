@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.db;
+
+import java.io.Serializable;
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+
+/**
+ *
+ * @author Jean-Michel Tanguy
+ */
+@Embeddable
+public class RecordTokenPK implements Serializable {
+    @Basic(optional = false)
+    @NotNull
+    @Column(name = "record_")
+    private long record;
+    @Basic(optional = false)
+    @NotNull
+    @Size(min = 1, max = 64)
+    @Column(name = "token_", length = 64)
+    private String token;
+
+    public RecordTokenPK() {
+    }
+
+    public RecordTokenPK(long record, String token) {
+        this.record = record;
+        this.token = token;
+    }
+
+    public long getRecord() {
+        return record;
+    }
+
+    public void setRecord(long record) {
+        this.record = record;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        hash += (int) record;
+        hash += (token != null ? token.hashCode() : 0);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof RecordTokenPK)) {
+            return false;
+        }
+        RecordTokenPK other = (RecordTokenPK) object;
+        if (this.record != other.record) {
+            return false;
+        }
+        if ((this.token == null && other.token != null) || (this.token != null && !this.token.equals(other.token))) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "com.auxeanne.data.db.RecordTokenPK[ record=" + record + ", token=" + token + " ]";
+    }
+    
+}
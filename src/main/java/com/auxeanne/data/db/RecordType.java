@@ -38,6 +38,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 @Table(name = "record_type")
 @XmlRootElement
 @NamedQueries({
+    @NamedQuery(name = "RecordType.findAll", query = "SELECT rt FROM RecordType rt"),
     @NamedQuery(name = "RecordType.findByCode", query = "SELECT rt FROM RecordType rt WHERE rt.code = :code")})
 @Cacheable(true)
 public class RecordType implements Serializable {
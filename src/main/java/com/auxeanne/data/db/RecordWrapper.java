@@ -47,6 +47,10 @@ import org.eclipse.persistence.annotations.Index;
 @NamedQueries({
     @NamedQuery(name = "RecordWrapper.deleteByRecordId", query = "DELETE FROM RecordWrapper r WHERE r.id = :record"),
     @NamedQuery(name = "RecordWrapper.deleteByRecordIdList", query = "DELETE FROM RecordWrapper r WHERE r.id in :list"),
+    @NamedQuery(name = "RecordWrapper.findByIdList", query = "SELECT r FROM RecordWrapper r WHERE r.id in :list"),
+    @NamedQuery(name = "RecordWrapper.deleteByRecordIdRange", query = "DELETE FROM RecordWrapper r WHERE r.id BETWEEN :min AND :max AND r.id in :list"),
+    @NamedQuery(name = "RecordWrapper.findTypeFromIdRange", query = "SELECT r.id, r.recordType FROM RecordWrapper r WHERE r.id BETWEEN :min AND :max AND r.id in :list"),
+    @NamedQuery(name = "RecordWrapper.findTypeFromIdRangeAndTenant", query = "SELECT r.id, r.recordType FROM RecordWrapper r WHERE r.id BETWEEN :min AND :max AND r.id in :list AND r.tenant = :tenant"),
     @NamedQuery(name = "RecordWrapper.findByRecordType", query = "SELECT r FROM RecordWrapper r WHERE r.recordType = :recordType"),
     @NamedQuery(name = "RecordWrapper.searchByDataAndRecordType", query = "SELECT r FROM RecordWrapper r WHERE r.data like :search AND r.recordType = :recordType")
 })
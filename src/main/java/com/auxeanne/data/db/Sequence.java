@@ -38,7 +38,8 @@ import javax.xml.bind.annotation.XmlRootElement;
 @NamedQueries({
     @NamedQuery(name = "Sequence.findAll", query = "SELECT s FROM Sequence s"),
     @NamedQuery(name = "Sequence.findBySeqName", query = "SELECT s FROM Sequence s WHERE s.seqName = :seqName"),
-    @NamedQuery(name = "Sequence.findBySeqCount", query = "SELECT s FROM Sequence s WHERE s.seqCount = :seqCount")})
+    @NamedQuery(name = "Sequence.findBySeqCount", query = "SELECT s FROM Sequence s WHERE s.seqCount = :seqCount"),
+    @NamedQuery(name = "Sequence.increment", query = "UPDATE Sequence s SET s.seqCount = s.seqCount + :size WHERE s.seqName = :seqName")})
 public class Sequence implements Serializable {
 
     private static final long serialVersionUID = 1L;
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.record.PersonRecordWithIndex;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing aggregation of indexed values in the database.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class AggregateTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nAGGREGATION\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testAggregate() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Aggregate");
+            //-- ages 10 to 60, names A B C, last one without age
+            List<PersonRecordWithIndex> persons = new ArrayList<>();
+            for (int i = 1; i <= 7; i++) {
+                PersonRecordWithIndex person = new PersonRecordWithIndex();
+                person.setAge((i < 7) ? i * 10 : null);
+                person.setLastName(String.valueOf((char) ('A' + (i % 3))));
+                persons.add(person);
+            }
+            records.save(persons);
+            PersonRecordWithIndex root = new PersonRecordWithIndex();
+            records.save(root);
+            records.link(root).with(persons.get(0), persons.get(1), persons.get(2)).save();
+
+            assertEquals(0, new BigDecimal(210).compareTo(records.query(PersonRecordWithIndex.class).sum("age")));
+            assertEquals(35.0, records.query(PersonRecordWithIndex.class).avg("age"), 0.001);
+            assertEquals(0, BigDecimal.TEN.compareTo(records.query(PersonRecordWithIndex.class).min("age")));
+            assertEquals("C", records.query(PersonRecordWithIndex.class).max("lastName"));
+            //-- same filters as the other queries
+            assertEquals(0, new BigDecimal(150).compareTo(records.query(PersonRecordWithIndex.class).indexGreaterThan("age", 30).sum("age")));
+            assertEquals(0, new BigDecimal(60).compareTo(records.query(PersonRecordWithIndex.class).linking(root).sum("age")));
+            assertNull(records.query(PersonRecordWithIndex.class).indexGreaterThan("age", 100).sum("age"));
+            //-- groups
+            Map<Object, Long> counts = records.query(PersonRecordWithIndex.class).groupBy("lastName").count();
+            assertEquals(3, counts.size());
+            assertEquals(Long.valueOf(2), counts.get("A"));
+            assertEquals(Long.valueOf(3), counts.get("B"));
+            assertEquals(Long.valueOf(2), counts.get("C"));
+            Map<Object, BigDecimal> sums = records.query(PersonRecordWithIndex.class).groupBy("lastName").sum("age");
+            assertEquals(0, new BigDecimal(90).compareTo(sums.get("A")));
+            assertEquals(0, new BigDecimal(50).compareTo(sums.get("B")));
+            assertEquals(0, new BigDecimal(70).compareTo(sums.get("C")));
+            //-- dates
+            EventRecord first = new EventRecord(new Date(1000000L));
+            EventRecord last = new EventRecord(new Date(5000000L));
+            records.save(first, last);
+            assertEquals(first.getDate().getTime(), ((Date) records.query(EventRecord.class).min("date")).getTime());
+            assertEquals(last.getDate().getTime(), ((Date) records.query(EventRecord.class).max("date")).getTime());
+            try {
+                records.query(EventRecord.class).sum("date");
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            records.remove(first, last);
+            records.remove(persons);
+            records.remove(root);
+        }
+    }
+
+    public static class EventRecord extends AbstractRecord {
+
+        @FieldIndexing
+        private Date date;
+
+        public EventRecord() {
+        }
+
+        public EventRecord(Date date) {
+            this.date = date;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+    }
+
+}
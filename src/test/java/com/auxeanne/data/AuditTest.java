@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.ctrl.AuditWriter;
+import com.auxeanne.data.record.SimpleRecord;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing background audit writing.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class AuditTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nAUDIT\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testAsyncAudit() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            AuditWriter writer = AuditWriter.of(emf);
+            Records records = new Records(emf);
+            // written before returning
+            records.enableAudit("TestUser", AuditWriter.Durability.FLUSH_ON_COMMIT);
+            long start = countAudit(emf);
+            SimpleRecord r1 = new SimpleRecord();
+            SimpleRecord r2 = new SimpleRecord();
+            records.save(r1, r2);
+            assertEquals(start + 2, countAudit(emf));
+            // nothing logged on rollback
+            try {
+                records.transaction(() -> {
+                    records.save(new SimpleRecord());
+                    throw new IllegalArgumentException("rollback");
+                });
+                fail();
+            } catch (RuntimeException ex) {
+                // expected
+            }
+            writer.flush();
+            assertEquals(start + 2, countAudit(emf));
+            // written in background
+            records.enableAudit("TestUser", AuditWriter.Durability.EVENTUAL);
+            r1.setData("UPDATED");
+            records.save(r1);
+            records.link(r1).with(r2).save();
+            writer.flush();
+            assertEquals(start + 4, countAudit(emf));
+            assertEquals(0, writer.getQueueSize());
+            assertEquals(0, writer.getFailedCount());
+            assertTrue(writer.getWrittenCount() >= 4);
+            //
+            records.disableAudit();
+            records.remove(r1, r2);
+        }
+    }
+
+    @Test
+    public void testStoppedWriter() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf);
+            SimpleRecord r1 = new SimpleRecord();
+            records.save(r1);
+            records.enableAudit("TestUser", AuditWriter.Durability.EVENTUAL);
+            AuditWriter writer = AuditWriter.of(emf);
+            AuditWriter.shutdown(emf);
+            // failing instead of waiting for a stopped writer
+            long failed = writer.getFailedCount();
+            r1.setData("UPDATED");
+            try {
+                records.save(r1);
+                fail();
+            } catch (RuntimeException ex) {
+                // expected
+            }
+            assertEquals(failed + 1, writer.getFailedCount());
+            //
+            records.disableAudit();
+            records.remove(r1);
+        }
+    }
+
+    private long countAudit(EntityManagerFactory emf) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return em.createQuery("SELECT COUNT(a) FROM RecordAudit a", Long.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.ctrl.IdAllocator;
+import com.auxeanne.data.db.RecordWrapper;
+import com.auxeanne.data.record.PersonRecordWithIndex;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import javax.persistence.EntityManagerFactory;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing parallel loading.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class BulkLoaderTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nBULK LOADER\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testLoad() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "BulkLoader");
+            int count = 5000;
+            BulkLoader loader = new BulkLoader(emf, "BulkLoader");
+            loader.setBatchSize(250);
+            loader.setThreads(4);
+            AtomicLong batches = new AtomicLong();
+            //-- the id generation of the persistence unit is left unchanged
+            Sequence sequence = JpaHelper.getServerSession(emf).getDescriptor(RecordWrapper.class).getSequence();
+            int preallocationSize = sequence.getPreallocationSize();
+            AtomicLong changed = new AtomicLong();
+            loader.setProgressListener((progress) -> {
+                batches.incrementAndGet();
+                if (sequence.getPreallocationSize() != preallocationSize) {
+                    changed.incrementAndGet();
+                }
+            });
+            BulkLoader.Progress progress = loader.load(IntStream.range(0, count).mapToObj((i) -> {
+                PersonRecordWithIndex person = new PersonRecordWithIndex();
+                person.setLastName("Person " + i);
+                person.setAge(i % 100);
+                return person;
+            }));
+            System.out.println(progress);
+            assertEquals(count, progress.getRecordCount());
+            assertEquals(20, progress.getBatchCount());
+            assertEquals(20, batches.get());
+            assertEquals(0, changed.get());
+            //-- all saved with distinct ids
+            List<PersonRecordWithIndex> list = records.query(PersonRecordWithIndex.class).getList();
+            assertEquals(count, list.size());
+            Set<Long> ids = new HashSet<>();
+            list.forEach((person) -> ids.add(person.getId()));
+            assertEquals(count, ids.size());
+            assertEquals(50L, (long) records.query(PersonRecordWithIndex.class).indexEqualTo("age", 42).count());
+            //-- JPA generating ids outside of the loader blocks
+            PersonRecordWithIndex after = new PersonRecordWithIndex();
+            records.save(after);
+            assertTrue(ids.add(after.getId()));
+            assertEquals(count + 1L, (long) records.query(PersonRecordWithIndex.class).count());
+        }
+    }
+
+    @Test
+    public void testIdAllocator() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "IdAllocator");
+            PersonRecordWithIndex before = new PersonRecordWithIndex();
+            records.save(before);
+            IdAllocator allocator = records.enableIdAllocator(10, 1000);
+            try {
+                int count = 3000;
+                BulkLoader loader = new BulkLoader(emf, "IdAllocator");
+                loader.setBatchSize(100);
+                loader.setThreads(4);
+                System.out.println(loader.load(IntStream.range(0, count).mapToObj((i) -> new PersonRecordWithIndex())));
+                System.out.println(allocator.getReservationCount() + " blocks reserved, block size " + allocator.getBlockSize());
+                assertTrue(allocator.getBlockSize() > 10);
+                assertTrue(allocator.getReservationCount() < count / 10);
+                //-- distinct ids after the ones generated by JPA
+                List<PersonRecordWithIndex> list = records.query(PersonRecordWithIndex.class).getList();
+                assertEquals(count + 1, list.size());
+                Set<Long> ids = new HashSet<>();
+                list.forEach((person) -> ids.add(person.getId()));
+                assertEquals(count + 1, ids.size());
+                list.stream().filter((person) -> !person.getId().equals(before.getId())).forEach((person) -> assertTrue(person.getId() > before.getId()));
+            } finally {
+                records.disableIdAllocator();
+            }
+            //-- JPA generating ids again, outside of the allocated blocks
+            Set<Long> allocated = new HashSet<>();
+            records.query(PersonRecordWithIndex.class).getList().forEach((person) -> allocated.add(person.getId()));
+            for (int i = 0; i < 50; i++) {
+                PersonRecordWithIndex after = new PersonRecordWithIndex();
+                records.save(after);
+                assertTrue(allocated.add(after.getId()));
+            }
+        }
+    }
+
+}
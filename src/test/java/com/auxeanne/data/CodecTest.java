@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data; 
+
+import com.auxeanne.data.ctrl.GsonRecordCodec;
+import com.auxeanne.data.ctrl.RecordExclusionStrategy;
+import com.auxeanne.data.ctrl.SmileRecordCodec;
+import com.auxeanne.data.record.PersonRecordWithIndex;
+import com.google.gson.GsonBuilder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.persistence.EntityManagerFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing storage formats, including tables mixing several formats.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class CodecTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nCODECS\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    @Before
+    public void setUp() {
+
+    }
+
+    @After
+    public void tearDown() {
+
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    /**
+     * default format must keep the historical JSON bytes
+     */
+    @Test
+    public void testJsonCompatibility() {
+        PersonRecordWithIndex person = new PersonRecordWithIndex();
+        person.setId(12L);
+        person.setFirstName("Jean-Michel");
+        person.setLastName("Tanguy");
+        person.setAge(40);
+        byte[] legacy = new GsonBuilder().setExclusionStrategies(new RecordExclusionStrategy()).create().toJson(person).getBytes(StandardCharsets.UTF_8);
+        GsonRecordCodec codec = new GsonRecordCodec();
+        assertArrayEquals(legacy, codec.encode(person));
+        assertEquals("Tanguy", codec.decode(legacy, 0, PersonRecordWithIndex.class).getLastName());
+    }
+
+    @Test
+    public void testMixedFormats() throws IllegalAccessException {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records json = new Records(emf);
+            PersonRecordWithIndex p1 = new PersonRecordWithIndex();
+            p1.setLastName("JSON");
+            p1.setAge(20);
+            json.save(p1);
+
+            Records smile = new Records(emf);
+            smile.setCodec(new SmileRecordCodec());
+            PersonRecordWithIndex p2 = new PersonRecordWithIndex();
+            p2.setLastName("SMILE");
+            p2.setAge(30);
+            smile.save(p2);
+
+            //-- reading both formats from a default instance
+            Records reader = new Records(emf);
+            assertEquals("SMILE", reader.query(PersonRecordWithIndex.class).find(p2.getId()).getLastName());
+            assertEquals("JSON", reader.query(PersonRecordWithIndex.class).find(p1.getId()).getLastName());
+            List<PersonRecordWithIndex> list = reader.query(PersonRecordWithIndex.class).orderByIndexedField("age").getList();
+            assertEquals(2, list.size());
+            assertEquals("JSON", list.get(0).getLastName());
+            assertEquals((Integer) 30, list.get(1).getAge());
+            //-- migrating the JSON record to Smile
+            smile.save(p1);
+            assertEquals("JSON", reader.query(PersonRecordWithIndex.class).find(p1.getId()).getLastName());
+
+            reader.remove(list);
+        }
+    }
+
+}
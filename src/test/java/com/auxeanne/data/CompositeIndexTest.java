@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.ctrl.PreparedRecordQuery;
+import com.auxeanne.data.record.EmployeeRecord;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing filters served by composite indexes.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class CompositeIndexTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nCOMPOSITE INDEX\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testCompositeIndex() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "CompositeIndex");
+            EmployeeRecord e1 = employee("Sales", "Smith", 25, 1000L);
+            EmployeeRecord e2 = employee("Sales", "Jones", 35, 2000L);
+            EmployeeRecord e3 = employee("Sales", "Smith", 45, 3000L);
+            EmployeeRecord e4 = employee("Support", "Smith", 30, 4000L);
+            EmployeeRecord e5 = employee("Sales", null, null, null);
+            records.save(e1, e2, e3, e4, e5);
+            //-- one row per composite index with a value
+            assertEquals(10, countRows(emf));
+            //-- department and age
+            assertEquals(ids(e2, e3), ids(records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexGreaterThan("age", 30).orderByInsert().getList()));
+            assertEquals(ids(e2), ids(records.query(EmployeeRecord.class).indexGreaterThan("age", 30).indexEqualTo("department", "Sales").indexLessThan("age", 40).getList()));
+            assertEquals(ids(e1, e4), ids(records.query(EmployeeRecord.class).indexIn("department", "Sales", "Support").indexLessThanOrEqualTo("age", 30).orderByInsert().getList()));
+            assertEquals(ids(e4), ids(records.query(EmployeeRecord.class).indexNotEqualTo("department", "Sales").indexGreaterThanOrEqualTo("age", 30).getList()));
+            //-- three fields, with a date
+            assertEquals(ids(e3), ids(records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexEqualTo("lastName", "Smith").indexGreaterThan("hired", new Date(1500L)).getList()));
+            //-- mixed with a field index and a sort
+            assertEquals(ids(e3, e1), ids(records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexEqualTo("lastName", "Smith").indexLessThan("age", 50).reverseByIndexedField("age").getList()));
+            //-- not matching a composite index
+            assertEquals(ids(e1, e3, e4), ids(records.query(EmployeeRecord.class).indexEqualTo("lastName", "Smith").orderByInsert().getList()));
+            assertEquals(0, records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexEqualTo("age", null).getList().size());
+            assertEquals(3L, (long) records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexGreaterThan("age", 20).count());
+            //-- prepared with new values
+            PreparedRecordQuery<EmployeeRecord> prepared = records.query(EmployeeRecord.class).indexEqualTo("department", "").indexGreaterThan("age", 0).orderByInsert().prepare();
+            assertEquals(ids(e1, e2, e3), ids(records.query(prepared, "Sales", 20).getList()));
+            assertEquals(ids(e4), ids(records.query(prepared, "Support", 20).getList()));
+            //-- updates
+            e1.setAge(50);
+            e4.setDepartment("Sales");
+            records.save(e1, e4);
+            assertEquals(ids(e1, e2, e3, e4), ids(records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexGreaterThanOrEqualTo("age", 30).orderByInsert().getList()));
+            e5.setDepartment(null);
+            records.save(e5);
+            assertEquals(8, countRows(emf));
+            //-- removal
+            records.remove(e1, e2);
+            records.setBulkRemoveThreshold(0);
+            records.remove(e3, e4, e5);
+            assertEquals(0, countRows(emf));
+            assertEquals(0L, (long) records.query(EmployeeRecord.class).count());
+        }
+    }
+
+    @Test
+    public void testRebuildComposites() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing rebuild " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "CompositeIndex");
+            EmployeeRecord e1 = employee("Sales", "Smith", 25, 1000L);
+            EmployeeRecord e2 = employee("Sales", "Jones", 35, 2000L);
+            EmployeeRecord e3 = employee("Support", "Smith", 45, 3000L);
+            records.save(e1, e2, e3);
+            //-- records saved before the composite index was declared
+            EntityManager em = emf.createEntityManager();
+            em.getTransaction().begin();
+            em.createQuery("DELETE FROM RecordComposite c WHERE c.recordCompositePK.key LIKE 'com.auxeanne.data.record.EmployeeRecord%'").executeUpdate();
+            em.getTransaction().commit();
+            em.close();
+            assertEquals(0, records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexGreaterThan("age", 30).getList().size());
+            assertEquals(3L, records.rebuildComposites(EmployeeRecord.class));
+            assertEquals(ids(e2), ids(records.query(EmployeeRecord.class).indexEqualTo("department", "Sales").indexGreaterThan("age", 30).getList()));
+            int rows = (int) countRows(emf);
+            //-- nothing left to write
+            assertEquals(3L, records.rebuildComposites(EmployeeRecord.class));
+            assertEquals(rows, countRows(emf));
+            records.remove(e1, e2, e3);
+            assertEquals(0, countRows(emf));
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // HELPERS
+    //--------------------------------------------------------------------------
+    private EmployeeRecord employee(String department, String lastName, Integer age, Long hired) {
+        EmployeeRecord employee = new EmployeeRecord();
+        employee.setDepartment(department);
+        employee.setLastName(lastName);
+        employee.setAge(age);
+        employee.setHired((hired == null) ? null : new Date(hired));
+        return employee;
+    }
+
+    private List<Long> ids(EmployeeRecord... employees) {
+        return Arrays.stream(employees).map((employee) -> employee.getId()).collect(Collectors.toList());
+    }
+
+    private List<Long> ids(List<EmployeeRecord> list) {
+        return list.stream().map((employee) -> employee.getId()).collect(Collectors.toList());
+    }
+
+    private long countRows(EntityManagerFactory emf) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return (Long) em.createQuery("SELECT COUNT(c) FROM RecordComposite c WHERE c.recordCompositePK.key LIKE 'com.auxeanne.data.record.EmployeeRecord%'").getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.record.CommentRecord;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing hierarchies of records.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class HierarchyTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nHIERARCHY\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testHierarchy() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Hierarchy");
+            //-- chain a > b > c > d, with d > e
+            List<CommentRecord> chain = create(records, 5);
+            CommentRecord a = chain.get(0), b = chain.get(1), c = chain.get(2), d = chain.get(3), e = chain.get(4);
+            records.link(a).asParentOf(b).save();
+            records.link(c).asChildOf(b).save();
+            records.link(d).asParentOf(e).save();
+            //-- attaching a subtree under the chain
+            records.link(c).asParentOf(d).save();
+            assertEquals(4, records.query(CommentRecord.class).below(a).count().intValue());
+            assertEquals(2, records.query(CommentRecord.class).below(c).count().intValue());
+            assertEquals(4, records.query(CommentRecord.class).above(e).count().intValue());
+            assertEquals(1, records.query(CommentRecord.class).childOf(d).count().intValue());
+            //-- many children in one call, one of them already below another one
+            List<CommentRecord> leaves = create(records, 2500);
+            records.link(leaves.get(1)).asChildOf(leaves.get(0)).save();
+            long start = System.currentTimeMillis();
+            records.link(e).asParentOf(leaves.toArray(new CommentRecord[0])).save();
+            System.out.println("  Adding " + leaves.size() + " children in " + (System.currentTimeMillis() - start) + "ms");
+            //-- leaf 1 is below a through e and through leaf 0
+            assertEquals(4 + leaves.size() + 1, records.query(CommentRecord.class).below(a).count().intValue());
+            assertEquals(leaves.size(), records.query(CommentRecord.class).childOf(e).count().intValue());
+            assertEquals(5, records.query(CommentRecord.class).above(leaves.get(0)).count().intValue());
+            //-- leaf 1 has two parents : e and leaf 0
+            assertEquals(2, records.query(CommentRecord.class).parentOf(leaves.get(1)).count().intValue());
+            //-- removing
+            start = System.currentTimeMillis();
+            records.link(e).asParentOf(leaves.toArray(new CommentRecord[0])).remove();
+            System.out.println("  Removing " + leaves.size() + " children in " + (System.currentTimeMillis() - start) + "ms");
+            assertEquals(4, records.query(CommentRecord.class).below(a).count().intValue());
+            assertEquals(1, records.query(CommentRecord.class).above(leaves.get(1)).count().intValue());
+            records.link(c).asParentOf(d).remove();
+            assertEquals(2, records.query(CommentRecord.class).below(a).count().intValue());
+            assertEquals(1, records.query(CommentRecord.class).below(d).count().intValue());
+            assertEquals(1, records.query(CommentRecord.class).above(e).count().intValue());
+            records.remove(leaves);
+            records.remove(chain);
+        }
+    }
+
+    @Test
+    public void testMove() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing move " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Hierarchy");
+            //-- r1 > x > y > z and r2
+            List<CommentRecord> list = create(records, 5);
+            CommentRecord r1 = list.get(0), x = list.get(1), y = list.get(2), z = list.get(3), r2 = list.get(4);
+            records.link(r1).asParentOf(x).save();
+            records.link(x).asParentOf(y).save();
+            records.link(y).asParentOf(z).save();
+            //-- 3 rows from r1 deleted, 3 rows from r2 inserted
+            assertEquals(6, records.link(x).moveUnder(r2));
+            assertEquals(0, records.query(CommentRecord.class).below(r1).count().intValue());
+            assertEquals(3, records.query(CommentRecord.class).below(r2).count().intValue());
+            assertEquals(3, records.query(CommentRecord.class).above(z).count().intValue());
+            assertEquals(r2, records.query(CommentRecord.class).parentOf(x).getFirst());
+            //-- already there
+            assertEquals(0, records.link(x).moveUnder(r2));
+            //-- no cycle
+            try {
+                records.link(x).moveUnder(z);
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            assertEquals(3, records.query(CommentRecord.class).below(r2).count().intValue());
+            //-- moving inside the same tree
+            records.link(z).moveUnder(x);
+            assertEquals(2, records.query(CommentRecord.class).childOf(x).count().intValue());
+            assertEquals(0, records.query(CommentRecord.class).below(y).count().intValue());
+            assertEquals(2, records.query(CommentRecord.class).above(z).count().intValue());
+            records.remove(list);
+        }
+    }
+
+    @Test
+    public void testDepth() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing depth " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Hierarchy");
+            //-- a > b > c, then the subtree d > e > f attached under c
+            List<CommentRecord> list = create(records, 6);
+            CommentRecord a = list.get(0), b = list.get(1), c = list.get(2), d = list.get(3), e = list.get(4), f = list.get(5);
+            records.link(a).asParentOf(b).save();
+            records.link(b).asParentOf(c).save();
+            records.link(d).asParentOf(e).save();
+            records.link(e).asParentOf(f).save();
+            records.link(c).asParentOf(d).save();
+            assertEquals(1, records.query(CommentRecord.class).below(a, 1).count().intValue());
+            assertEquals(b, records.query(CommentRecord.class).below(a, 1).getFirst());
+            assertEquals(3, records.query(CommentRecord.class).below(a, 3).count().intValue());
+            assertEquals(5, records.query(CommentRecord.class).below(a, 10).count().intValue());
+            assertEquals(2, records.query(CommentRecord.class).below(c, 2).count().intValue());
+            assertEquals(2, records.query(CommentRecord.class).above(f, 2).count().intValue());
+            assertEquals(4, records.query(CommentRecord.class).above(f, 4).count().intValue());
+            //-- recomputed when moving
+            records.link(d).moveUnder(a);
+            assertEquals(2, records.query(CommentRecord.class).below(a, 1).count().intValue());
+            assertEquals(4, records.query(CommentRecord.class).below(a, 2).count().intValue());
+            assertEquals(3, records.query(CommentRecord.class).above(f, 10).count().intValue());
+            try {
+                records.query(CommentRecord.class).below(a, 0);
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            records.remove(list);
+        }
+    }
+
+    @Test
+    public void testShorterRoute() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing shorter route " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Hierarchy");
+            //-- a > b > c > d > e, then a shortcut a > d
+            List<CommentRecord> list = create(records, 5);
+            CommentRecord a = list.get(0), b = list.get(1), c = list.get(2), d = list.get(3), e = list.get(4);
+            records.link(a).asParentOf(b).save();
+            records.link(b).asParentOf(c).save();
+            records.link(c).asParentOf(d).save();
+            records.link(d).asParentOf(e).save();
+            assertEquals(2, records.query(CommentRecord.class).below(a, 2).count().intValue());
+            records.link(a).asParentOf(d).save();
+            assertEquals(4, records.query(CommentRecord.class).below(a, 2).count().intValue());
+            assertEquals(3, records.query(CommentRecord.class).above(e, 2).count().intValue());
+            //-- legacy paths without depth
+            EntityManager em = emf.createEntityManager();
+            em.getTransaction().begin();
+            em.createNativeQuery("UPDATE record_path SET depth_ = NULL").executeUpdate();
+            em.getTransaction().commit();
+            em.close();
+            emf.getCache().evictAll();
+            assertEquals(0, records.query(CommentRecord.class).below(a, 10).count().intValue());
+            assertEquals(3, records.rebuildPathDepth());
+            assertEquals(2, records.query(CommentRecord.class).below(a, 1).count().intValue());
+            assertEquals(4, records.query(CommentRecord.class).below(a, 2).count().intValue());
+            assertEquals(4, records.query(CommentRecord.class).above(e, 10).count().intValue());
+            records.remove(list);
+        }
+    }
+
+    private List<CommentRecord> create(Records records, int count) {
+        List<CommentRecord> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CommentRecord record = new CommentRecord();
+            record.setMessage("node " + i);
+            list.add(record);
+        }
+        records.save(list);
+        return list;
+    }
+
+}
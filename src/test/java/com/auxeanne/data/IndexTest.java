@@ -64,6 +64,7 @@ public class IndexTest {
             System.out.println("\n=== Testing " + pu);
             EntityManagerFactory emf = PU.getFactoryList().get(pu);
             sortWithIndex(emf);
+            updateChangedIndex(emf);
             noIndex(emf, loops);
             withIndex(emf, loops);
         }
@@ -170,4 +171,33 @@ public class IndexTest {
         //
         records.remove(daddy, baby, mummy);
     }
+
+    private void updateChangedIndex(EntityManagerFactory emf) {
+        Records records = new Records(emf);
+        System.out.println("-- Checking index update limited to changed values");
+        PersonRecordWithIndex r = new PersonRecordWithIndex();
+        r.setLastName("Before");
+        r.setAge(20);
+        records.save(r);
+        assertEquals(0, records.getSkippedIndexWrites());
+        // only last name is changed
+        r.setLastName("After");
+        records.save(r);
+        assertEquals(1, records.getSkippedIndexWrites());
+        assertEquals(r, records.query(PersonRecordWithIndex.class).indexEqualTo("lastName", "After").getFirst());
+        assertNull(records.query(PersonRecordWithIndex.class).indexEqualTo("lastName", "Before").getFirst());
+        assertEquals(r, records.query(PersonRecordWithIndex.class).indexEqualTo("age", 20).getFirst());
+        // removing and restoring a value
+        r.setAge(null);
+        records.save(r);
+        assertNull(records.query(PersonRecordWithIndex.class).indexEqualTo("age", 20).getFirst());
+        r.setAge(21);
+        records.save(r, r);
+        assertEquals(r, records.query(PersonRecordWithIndex.class).indexEqualTo("age", 21).getFirst());
+        // nothing changed
+        long skipped = records.getSkippedIndexWrites();
+        records.save(records.query(PersonRecordWithIndex.class).indexEqualTo("age", 21).getFirst());
+        assertEquals(skipped + 2, records.getSkippedIndexWrites());
+        records.remove(r);
+    }
 }
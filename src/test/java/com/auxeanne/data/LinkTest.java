@@ -16,7 +16,9 @@
 package com.auxeanne.data; 
 
 import com.auxeanne.data.record.CommentRecord;
+import com.auxeanne.data.ctrl.LinkCache;
 import com.auxeanne.data.record.PersonRecord;
+import java.math.BigDecimal;
 import javax.persistence.EntityManagerFactory;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -66,6 +68,71 @@ public class LinkTest {
         }
     }
 
+    @Test
+    public void testLinkCache() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing link cache " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "LinkCache");
+            LinkCache cache = records.enableLinkCache(100, 10000);
+            try {
+                PersonRecord p1 = new PersonRecord();
+                PersonRecord p2 = new PersonRecord();
+                PersonRecord p3 = new PersonRecord();
+                records.save(p1, p2, p3);
+                CommentRecord c1 = new CommentRecord();
+                CommentRecord c2 = new CommentRecord();
+                CommentRecord c3 = new CommentRecord();
+                records.save(c1, c2, c3);
+                records.link(c1).with(p1, p2).setAttribute("c1").save();
+                records.link(c2).with(p1, p2, p3).setAttribute(2).save();
+                records.link(c3).with(p1).save();
+                //-- loaded once then served from the cache
+                assertTrue(records.link(p1).with(c1).isAvailable());
+                assertEquals("c1", records.link(p1).with(c1).getAttribute());
+                assertEquals(1, cache.getMissCount());
+                assertEquals(0, new BigDecimal(2).compareTo((BigDecimal) records.link(p1).with(c2).getAttribute()));
+                assertNull(records.link(p1).with(c3).getAttribute());
+                assertFalse(records.link(p3).with(c1).isAvailable());
+                assertEquals(2, cache.getMissCount());
+                assertEquals(3, cache.getHitCount());
+                //-- updated by link and unlink in both directions
+                records.link(c1).with(p3).setAttribute("c1").save();
+                records.link(c2).with(p1).setAttribute(3).save();
+                assertTrue(records.link(p3).with(c1).isAvailable());
+                assertEquals(0, new BigDecimal(3).compareTo((BigDecimal) records.link(p1).with(c2).getAttribute()));
+                records.link(p1).with(c3).remove();
+                assertFalse(records.link(p1).with(c3).isAvailable());
+                assertFalse(records.link(c3).with(p1).isAvailable());
+                assertEquals(3, cache.getMissCount());
+                //-- intersections
+                assertEquals(2, records.query(CommentRecord.class).linking(p1, p2, p3).count().intValue());
+                assertEquals(1, records.query(CommentRecord.class).linking(p1, p2).attributeEqualTo("c1").getList().size());
+                assertEquals(0, records.query(CommentRecord.class).linking(p3, c1).count().intValue());
+                //-- applied on commit only, dropped on rollback
+                try {
+                    records.transaction(() -> {
+                        records.link(c3).with(p2).save();
+                        assertTrue(records.link(p2).with(c3).isAvailable());
+                        throw new UnsupportedOperationException("rollback");
+                    });
+                    fail();
+                } catch (UnsupportedOperationException ex) {
+                    //-- expected
+                }
+                assertFalse(records.link(p2).with(c3).isAvailable());
+                assertFalse(records.link(c3).with(p2).isAvailable());
+                //-- dropped when a linked record is removed
+                records.remove(c2);
+                assertFalse(records.link(p1).with(c2).isAvailable());
+                assertEquals(c1, records.query(CommentRecord.class).linking(p1, p3).getFirst());
+                records.remove(p1, p2, p3, c1, c3);
+            } finally {
+                records.disableLinkCache();
+            }
+        }
+    }
+
     private void removeByBatch(EntityManagerFactory emf, int loops) {
         PersonRecord root = new PersonRecord();
         PersonRecord[] persons = new PersonRecord[loops];
@@ -15,8 +15,13 @@
  */
 package com.auxeanne.data; 
 
+import com.auxeanne.data.ctrl.FluentQuery.QueryBuilder;
+import com.auxeanne.data.ctrl.FluentQuery.SortBuilder;
+import com.auxeanne.data.ctrl.PageToken;
 import com.auxeanne.data.record.PersonRecord;
+import com.auxeanne.data.record.PersonRecordWithIndex;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -68,4 +73,109 @@ public class PagingTest {
         }
 
     }
+
+    /**
+     * Keyset pagination must visit each record once, in sort order, including
+     * records sharing the same sort key.
+     */
+    @Test
+    public void keysetPaging() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing keyset paging " + pu);
+            Records records = new Records(PU.getFactoryList().get(pu));
+            List<PersonRecordWithIndex> list = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                PersonRecordWithIndex person = new PersonRecordWithIndex();
+                person.setAge(i % 7);
+                list.add(person);
+            }
+            records.save(list);
+            //-- by insert
+            int count = 0;
+            PersonRecordWithIndex last = null;
+            while (true) {
+                List<PersonRecordWithIndex> page = (last == null)
+                        ? records.query(PersonRecordWithIndex.class).orderByInsert().setMaxResults(8).getList()
+                        : records.query(PersonRecordWithIndex.class).after(last).setMaxResults(8).getList();
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (PersonRecordWithIndex person : page) {
+                    assertEquals(list.get(count++).getId(), person.getId());
+                }
+                last = page.get(page.size() - 1);
+            }
+            assertEquals(list.size(), count);
+            //-- by indexed field with token round trip
+            count = 0;
+            int previousAge = Integer.MAX_VALUE;
+            long previousId = Long.MAX_VALUE;
+            String token = null;
+            while (true) {
+                List<PersonRecordWithIndex> page = (token == null)
+                        ? records.query(PersonRecordWithIndex.class).reverseByIndexedField("age").reverseByInsert().setMaxResults(8).getList()
+                        : records.query(PersonRecordWithIndex.class).reverseByIndexedField("age").reverseByInsert().pageAfter(PageToken.parse(token)).setMaxResults(8).getList();
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (PersonRecordWithIndex person : page) {
+                    assertTrue(person.getAge() < previousAge || (person.getAge() == previousAge && person.getId() < previousId));
+                    previousAge = person.getAge();
+                    previousId = person.getId();
+                    count++;
+                }
+                token = PageToken.of(page.get(page.size() - 1), "age").toString();
+            }
+            assertEquals(list.size(), count);
+            records.remove(list);
+        }
+    }
+
+    /**
+     * Records without value for the sorted field must be reached as well,
+     * after the others whatever the direction.
+     */
+    @Test
+    public void keysetPagingWithoutValue() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing keyset paging without value " + pu);
+            Records records = new Records(PU.getFactoryList().get(pu));
+            List<PersonRecordWithIndex> list = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                PersonRecordWithIndex person = new PersonRecordWithIndex();
+                person.setAge((i % 4 == 0) ? null : i % 5);
+                list.add(person);
+            }
+            records.save(list);
+            for (boolean ascending : new boolean[]{true, false}) {
+                List<Long> visited = new ArrayList<>();
+                int phaseCount = 0;
+                Boolean withoutValue = null;
+                PersonRecordWithIndex last = null;
+                while (true) {
+                    QueryBuilder<PersonRecordWithIndex> query = records.query(PersonRecordWithIndex.class);
+                    SortBuilder<PersonRecordWithIndex> sorted = (ascending) ? query.orderByIndexedField("age") : query.reverseByIndexedField("age");
+                    List<PersonRecordWithIndex> page = (last == null)
+                            ? sorted.setMaxResults(3).getList()
+                            : sorted.after(last).setMaxResults(3).getList();
+                    if (page.isEmpty()) {
+                        break;
+                    }
+                    for (PersonRecordWithIndex person : page) {
+                        //-- records without value grouped before or after the others, as the database orders NULL
+                        if (!Boolean.valueOf(person.getAge() == null).equals(withoutValue)) {
+                            phaseCount++;
+                            withoutValue = (person.getAge() == null);
+                        }
+                        visited.add(person.getId());
+                    }
+                    last = page.get(page.size() - 1);
+                }
+                assertEquals(2, phaseCount);
+                assertEquals(list.size(), visited.size());
+                assertEquals(list.size(), new HashSet<>(visited).size());
+            }
+            records.remove(list);
+        }
+    }
 }
@@ -15,7 +15,13 @@
  */
 package com.auxeanne.data;
 
+import com.auxeanne.data.ctrl.PreferenceCache;
+import com.auxeanne.data.db.Preference;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
@@ -73,6 +79,81 @@ public class PreferenceTest {
         }
     }
 
+    @Test
+    public void cache() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Preferences cache for " + pu);
+            EntityManagerFactory target = PU.getFactoryList().get(pu);
+            Preferences preferences = new Preferences(target, "PreferenceCache");
+            Preferences other = new Preferences(target, "PreferenceCacheOther");
+            PreferenceCache cache = preferences.enableCache(100, 0);
+            try {
+                preferences.put("cached1", "value1");
+                other.put("cached1", "other1");
+                // read through, then served from the cache
+                assertEquals("value1", preferences.get("cached1"));
+                assertEquals("other1", other.get("cached1"));
+                long hits = cache.getHitCount();
+                assertEquals("value1", preferences.get("cached1"));
+                assertEquals(hits + 1, cache.getHitCount());
+                // missing keys are cached too
+                assertNull(preferences.get("missing"));
+                assertNull(preferences.get("missing"));
+                // writes are visible at once, for the same tenant only
+                preferences.put("cached1", "value1b");
+                assertEquals("value1b", new Preferences(target, "PreferenceCache").get("cached1"));
+                assertEquals("other1", other.get("cached1"));
+                // single query for the keys not cached
+                preferences.put("cached2", "value2");
+                preferences.put("cached3", "value3");
+                Map<String, String> map = preferences.getAll("cached3", "missing", "cached1", "cached2", "unknown");
+                assertEquals(Arrays.asList("cached3", "cached1", "cached2"), new ArrayList<>(map.keySet()));
+                assertEquals("value1b", map.get("cached1"));
+                assertEquals("value3", map.get("cached3"));
+                hits = cache.getHitCount();
+                assertEquals(3, preferences.getAll("cached1", "cached2", "cached3").size());
+                assertEquals(hits + 3, cache.getHitCount());
+                // readers get their own copy
+                preferences.put("list", new ArrayList<>(Arrays.asList("a", "b")));
+                preferences.get("list", ArrayList.class).add("c");
+                assertEquals(2, preferences.get("list", ArrayList.class).size());
+            } finally {
+                preferences.disableCache();
+            }
+            // same values without cache
+            assertEquals("value1b", preferences.get("cached1"));
+            assertEquals(3, preferences.getAll("cached1", "cached2", "cached3", "missing").size());
+        }
+    }
+
+    @Test
+    public void cacheExpiration() throws InterruptedException {
+        for (String pu : PU.getPuList()) {
+            EntityManagerFactory target = PU.getFactoryList().get(pu);
+            Preferences preferences = new Preferences(target, "PreferenceExpiration");
+            preferences.put("expiring", "value1");
+            preferences.put("source", "value2");
+            preferences.enableCache(100, 500);
+            try {
+                assertEquals("value1", preferences.get("expiring"));
+                // write from another node, not seen before expiration
+                Map<String, Object> properties = new HashMap<>();
+                properties.put(EntityManagerProperties.MULTITENANT_PROPERTY_DEFAULT, "PreferenceExpiration");
+                EntityManager em = target.createEntityManager(properties);
+                em.getTransaction().begin();
+                Preference source = em.createQuery("SELECT p FROM Preference p WHERE p.key = 'source'", Preference.class).getSingleResult();
+                em.createQuery("UPDATE Preference p SET p.value = :value WHERE p.key = 'expiring'").setParameter("value", source.getValue()).executeUpdate();
+                em.getTransaction().commit();
+                em.close();
+                assertEquals("value1", new Preferences(target, "PreferenceExpiration").get("expiring"));
+                Thread.sleep(600);
+                assertEquals("value2", new Preferences(target, "PreferenceExpiration").get("expiring"));
+            } finally {
+                preferences.disableCache();
+            }
+        }
+    }
+
     private void loop(EntityManagerFactory target) {
         EntityManager em = target.createEntityManager();
         Preferences preferences = new Preferences(em);
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.ctrl.PreparedRecordQuery;
+import com.auxeanne.data.record.PersonRecordWithIndex;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing queries prepared once and executed with new values.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class PreparedQueryTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nPREPARED QUERY\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testPrepared() throws InterruptedException {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Prepared");
+            List<PersonRecordWithIndex> persons = new ArrayList<>();
+            for (int i = 1; i <= 5; i++) {
+                PersonRecordWithIndex person = new PersonRecordWithIndex();
+                person.setAge(i * 10);
+                persons.add(person);
+            }
+            records.save(persons);
+            PersonRecordWithIndex root1 = new PersonRecordWithIndex();
+            PersonRecordWithIndex root2 = new PersonRecordWithIndex();
+            records.save(root1, root2);
+            records.link(root1).with(persons.get(0), persons.get(1)).save();
+            records.link(root2).with(persons.get(4)).save();
+
+            //-- range on indexed values
+            PreparedRecordQuery<PersonRecordWithIndex> range = records.query(PersonRecordWithIndex.class)
+                    .indexGreaterThanOrEqualTo("age", 0).indexLessThan("age", 0).orderByIndexedField("age").prepare();
+            assertEquals(2, range.getParameterCount());
+            assertEquals(0, records.query(range).getList().size());
+            assertEquals(ages(20, 30), ages(records.query(range, 20, 40).getList()));
+            assertEquals(ages(10, 20, 30, 40, 50), ages(records.query(range, 0, 100).getList()));
+            assertEquals(40, records.query(range, 35, 100).getFirst().getAge().intValue());
+
+            //-- other instance and threads
+            List<Integer> found = new ArrayList<>();
+            Thread thread = new Thread(() -> {
+                found.addAll(ages(new Records(emf, "Prepared").query(range, 50, 60).getList()));
+            });
+            thread.start();
+            thread.join();
+            assertEquals(ages(50), found);
+
+            //-- linked record as value
+            PreparedRecordQuery<PersonRecordWithIndex> linked = records.query(PersonRecordWithIndex.class).linking(root1).orderByInsert().prepare();
+            assertEquals(ages(10, 20), ages(records.query(linked).getList()));
+            assertEquals(ages(50), ages(records.query(linked, root2).getList()));
+            assertEquals(ages(50), ages(records.query(linked, root2.getId()).getList()));
+
+            //-- tenant of the executing instance
+            assertEquals(0, new Records(emf, "Other").query(range, 0, 100).getList().size());
+            //-- number of values is checked
+            try {
+                records.query(range, 0);
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            records.remove(persons);
+            records.remove(root1, root2);
+        }
+    }
+
+    private static List<Integer> ages(Integer... ages) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer age : ages) {
+            list.add(age);
+        }
+        return list;
+    }
+
+    private static List<Integer> ages(List<PersonRecordWithIndex> persons) {
+        return persons.stream().map(PersonRecordWithIndex::getAge).collect(Collectors.toList());
+    }
+
+}
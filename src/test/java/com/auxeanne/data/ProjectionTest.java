@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.record.PersonRecordWithIndex;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.LongStream;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing ids and indexed values projections.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class ProjectionTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nPROJECTION\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testProjection() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Projection");
+            //-- ages 10 to 50, last one without age
+            List<PersonRecordWithIndex> persons = new ArrayList<>();
+            for (int i = 1; i <= 6; i++) {
+                PersonRecordWithIndex person = new PersonRecordWithIndex();
+                person.setAge((i < 6) ? i * 10 : null);
+                persons.add(person);
+            }
+            records.save(persons);
+            PersonRecordWithIndex root = new PersonRecordWithIndex();
+            records.save(root);
+            records.link(root).with(persons.get(3), persons.get(1)).save();
+            //-- ids
+            long[] ids = records.query(PersonRecordWithIndex.class).indexGreaterThan("age", 0).orderByInsert().getIds();
+            assertEquals(5, ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                assertEquals((long) persons.get(i).getId(), ids[i]);
+            }
+            assertArrayEquals(new long[]{persons.get(3).getId(), persons.get(1).getId()}, records.query(PersonRecordWithIndex.class).linking(root).reverseByIndexedField("age").getIds());
+            assertEquals(0, records.query(PersonRecordWithIndex.class).indexGreaterThan("age", 100).getIds().length);
+            //-- streamed ids
+            try (LongStream stream = records.query(PersonRecordWithIndex.class).indexGreaterThan("age", 0).setFetchSize(2).streamIds()) {
+                assertArrayEquals(ids, stream.sorted().toArray());
+            }
+            //-- values in the query order, null when missing
+            List<BigDecimal> ages = records.query(PersonRecordWithIndex.class).orderByInsert().project("age");
+            assertEquals(7, ages.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(0, new BigDecimal((i + 1) * 10).compareTo(ages.get(i)));
+            }
+            assertNull(ages.get(5));
+            assertNull(ages.get(6));
+            List<BigDecimal> linked = records.query(PersonRecordWithIndex.class).linking(root).orderByIndexedField("age").project("age");
+            assertEquals(2, linked.size());
+            assertEquals(0, new BigDecimal(20).compareTo(linked.get(0)));
+            assertEquals(0, new BigDecimal(40).compareTo(linked.get(1)));
+            try {
+                records.query(PersonRecordWithIndex.class).project("unknown");
+                fail();
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            records.remove(persons);
+            records.remove(root);
+        }
+    }
+
+}
@@ -15,11 +15,17 @@
  */
 package com.auxeanne.data;
 
+import com.auxeanne.data.ctrl.AuditWriter;
+import com.auxeanne.data.ctrl.RecordCache;
 import com.auxeanne.data.db.RecordWrapper;
+import com.auxeanne.data.record.CommentRecord;
 import com.auxeanne.data.record.PersonRecord;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
@@ -83,6 +89,189 @@ public class RecordTest {
 
     }
 
+    @Test
+    public void testSharedMetadata() throws InterruptedException {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n== Shared metadata testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            // concurrent instances creating the same new type
+            List<SharedTypeRecord> saved = Collections.synchronizedList(new ArrayList<>());
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                threads.add(new Thread(() -> {
+                    SharedTypeRecord record = new SharedTypeRecord();
+                    new Records(emf).save(record);
+                    saved.add(record);
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(4, saved.size());
+            EntityManager em = emf.createEntityManager();
+            assertEquals(1, em.createNamedQuery("RecordType.findByCode").setParameter("code", SharedTypeRecord.class.getName()).getResultList().size());
+            em.close();
+            // preloading
+            Records records = new Records(emf);
+            assertTrue(records.warmUp() > 0);
+            assertEquals(4, records.query(SharedTypeRecord.class).getList().size());
+            records.remove(saved);
+        }
+    }
+
+    @Test
+    public void testRecordCache() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n== Record cache testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf);
+            RecordCache cache = records.enableRecordCache(100, 1024 * 1024);
+            try {
+                CommentRecord comment = new CommentRecord();
+                comment.setMessage("cached");
+                records.save(comment);
+                // first read decodes, second read is served from the cache
+                CommentRecord read1 = records.query(CommentRecord.class).indexEqualTo("message", "cached").getList().get(0);
+                long hits = cache.getHitCount();
+                CommentRecord read2 = records.query(CommentRecord.class).indexEqualTo("message", "cached").getList().get(0);
+                assertEquals(hits + 1, cache.getHitCount());
+                assertEquals(comment.getId(), read2.getId());
+                // readers get their own copy
+                assertNotSame(read1, read2);
+                read2.setMessage("changed");
+                assertEquals("cached", records.query(CommentRecord.class).indexEqualTo("message", "cached").getList().get(0).getMessage());
+                // updates are visible
+                records.save(read2);
+                assertEquals("changed", records.query(CommentRecord.class).indexEqualTo("message", "changed").getList().get(0).getMessage());
+                // bounded size
+                assertTrue(cache.getSize() <= 100);
+                records.remove(read2);
+                assertEquals(0, cache.getSize());
+            } finally {
+                records.disableRecordCache();
+            }
+        }
+    }
+
+    @Test
+    public void testRelease() throws IllegalAccessException {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n== Release testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf);
+            records.enableRecordCache(100, 1024 * 1024);
+            records.enableLinkCache(100, 1000);
+            records.enableIdAllocator(10, 100);
+            records.enableAudit("release", AuditWriter.Durability.FLUSH_ON_COMMIT);
+            CommentRecord comment = new CommentRecord();
+            records.save(comment);
+            // everything kept for the factory is dropped
+            Records.release(emf);
+            assertNull(records.getRecordCache());
+            assertNull(records.getLinkCache());
+            assertNull(records.getIdAllocator());
+            assertNull(new Preferences(emf).getCache());
+            // still usable, state being created again on demand
+            Records other = new Records(emf);
+            assertNotNull(other.query(CommentRecord.class).find(comment.getId()));
+            other.remove(comment);
+        }
+    }
+
+    @Test
+    public void testFindAll() throws IllegalAccessException {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n== Find all testing " + pu);
+            Records records = new Records(PU.getFactoryList().get(pu));
+            List<CommentRecord> list = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                CommentRecord comment = new CommentRecord();
+                comment.setMessage("find " + i);
+                list.add(comment);
+            }
+            records.save(list);
+            // input order, missing ids ignored
+            List<Long> ids = Arrays.asList(list.get(3).getId(), list.get(0).getId(), -5L, list.get(4).getId());
+            List<CommentRecord> found = records.query(CommentRecord.class).findAll(ids);
+            assertEquals(3, found.size());
+            assertEquals("find 3", found.get(0).getMessage());
+            assertEquals("find 0", found.get(1).getMessage());
+            assertEquals("find 4", found.get(2).getMessage());
+            Map<Long, CommentRecord> map = records.query(CommentRecord.class).findAllAsMap(ids);
+            assertEquals("find 4", map.get(list.get(4).getId()).getMessage());
+            // type must match
+            try {
+                records.query(PersonRecord.class).findAll(ids);
+                fail();
+            } catch (IllegalAccessException ex) {
+                // expected
+            }
+            records.remove(list);
+        }
+    }
+
+    @Test
+    public void testBulkRemove() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n== Bulk remove testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            // same result as entity removal
+            assertEquals(removeFromTree(emf, Integer.MAX_VALUE), removeFromTree(emf, 0));
+            // other tenant records are kept
+            Records records1 = new Records(emf, "Bulk 1");
+            Records records2 = new Records(emf, "Bulk 2");
+            records2.setBulkRemoveThreshold(0);
+            CommentRecord kept = new CommentRecord();
+            records1.save(kept);
+            Long id = kept.getId();
+            records2.remove(kept);
+            kept.setId(id);
+            assertEquals(1L, records1.query(CommentRecord.class).count().longValue());
+            records1.remove(kept);
+            assertEquals(0L, records1.query(CommentRecord.class).count().longValue());
+        }
+    }
+
+    /**
+     * removing b from a tree a(b(c(d), f), e) with links b-e and c-a
+     *
+     * @return remaining counts
+     */
+    private List<Long> removeFromTree(EntityManagerFactory emf, int threshold) {
+        // own tenant to ignore the records of other tests
+        Records records = new Records(emf, "Tree");
+        records.setBulkRemoveThreshold(threshold);
+        List<CommentRecord> list = new ArrayList<>();
+        for (String name : new String[]{"a", "b", "c", "d", "e", "f"}) {
+            CommentRecord r = new CommentRecord();
+            r.setMessage(name);
+            list.add(r);
+        }
+        records.save(list);
+        CommentRecord a = list.get(0), b = list.get(1), c = list.get(2), d = list.get(3), e = list.get(4), f = list.get(5);
+        records.link(a).asParentOf(b, e).save();
+        records.link(b).asParentOf(c, f).save();
+        records.link(c).asParentOf(d).save();
+        records.link(b).with(e).save();
+        records.link(c).with(a).save();
+        records.remove(b);
+        List<Long> counts = new ArrayList<>();
+        counts.add(records.query(CommentRecord.class).count().longValue());
+        counts.add(records.query(CommentRecord.class).below(a).count().longValue());
+        counts.add(records.query(CommentRecord.class).below(c).count().longValue());
+        counts.add(records.query(CommentRecord.class).above(d).count().longValue());
+        counts.add(records.query(CommentRecord.class).above(f).count().longValue());
+        counts.add(records.query(CommentRecord.class).linking(e).count().longValue());
+        counts.add(records.query(CommentRecord.class).linking(c).count().longValue());
+        counts.add(records.query(CommentRecord.class).indexEqualTo("message", "b").count().longValue());
+        assertEquals(Arrays.asList(5L, 1L, 1L, 1L, 0L, 0L, 1L, 0L), counts);
+        records.remove(a, c, d, e, f);
+        return counts;
+    }
+
     @Test
     public void testNativetBatch() {
         for (String pu : PU.getPuList()) {
@@ -172,4 +361,7 @@ public class RecordTest {
         System.out.println("Native Batch : " + (end - start) + " ms ");
     }
 
+
+    public static class SharedTypeRecord extends AbstractRecord {
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data;
+
+import com.auxeanne.data.record.ArticleRecord;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing searches on the words of the searchable fields.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class SearchTest {
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nSEARCH\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testSearch() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "Search");
+            ArticleRecord a1 = article("The Quick brown fox", 1, "animals", "forest");
+            ArticleRecord a2 = article("A lazy dog, quick to sleep", 2, "animals", "house");
+            ArticleRecord a3 = article("Crème brûlée recipe", 3, "cooking");
+            records.save(a1, a2, a3);
+            //-- all words, case and accents ignored
+            assertEquals(Arrays.asList(a1.getId(), a2.getId()), ids(records.query(ArticleRecord.class).searchAll("QUICK").orderByInsert().getList()));
+            assertEquals(Arrays.asList(a1.getId()), ids(records.query(ArticleRecord.class).searchAll("quick", "fox").getList()));
+            assertEquals(Arrays.asList(a1.getId()), ids(records.query(ArticleRecord.class).searchAll("quick fox").getList()));
+            assertEquals(Arrays.asList(a3.getId()), ids(records.query(ArticleRecord.class).searchAll("creme brulee").getList()));
+            assertEquals(0, records.query(ArticleRecord.class).searchAll("quick", "recipe").getList().size());
+            //-- any word, combined with other filters
+            assertEquals(Arrays.asList(a1.getId(), a3.getId()), ids(records.query(ArticleRecord.class).searchAny("fox", "recipe").orderByInsert().getList()));
+            assertEquals(Arrays.asList(a3.getId()), ids(records.query(ArticleRecord.class).searchAny("fox", "recipe").indexGreaterThan("rank", 1).getList()));
+            assertEquals(0, records.query(ArticleRecord.class).searchAny("...").getList().size());
+            assertEquals(2L, (long) records.query(ArticleRecord.class).searchAny("dog", "brulee").count());
+            //-- prefixes only for the fields storing them
+            assertEquals(Arrays.asList(a3.getId()), ids(records.query(ArticleRecord.class).searchAll("cook").getList()));
+            assertEquals(0, records.query(ArticleRecord.class).searchAll("recip").getList().size());
+            //-- only the words of the current content
+            a1.setTitle("The slow brown fox");
+            records.save(a1);
+            assertEquals(Arrays.asList(a2.getId()), ids(records.query(ArticleRecord.class).searchAll("quick").getList()));
+            assertEquals(Arrays.asList(a1.getId()), ids(records.query(ArticleRecord.class).searchAll("slow").getList()));
+            //-- other tenants are not visible
+            Records other = new Records(emf, "SearchOther");
+            other.save(article("Quick other tenant", 1));
+            assertEquals(2, records.query(ArticleRecord.class).searchAny("quick", "slow").getList().size());
+            //-- removing records with their words
+            records.remove(a2);
+            assertEquals(0, records.query(ArticleRecord.class).searchAll("quick").getList().size());
+            records.setBulkRemoveThreshold(0);
+            records.remove(a1, a3);
+            assertEquals(0, records.query(ArticleRecord.class).searchAny("fox", "recipe").getList().size());
+        }
+    }
+
+    @Test
+    public void testRebuildTokens() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing rebuild " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf, "SearchRebuild");
+            ArticleRecord a1 = article("The Quick brown fox", 1, "animals");
+            ArticleRecord a2 = article("A lazy dog", 2, "cooking");
+            records.save(a1, a2);
+            //-- records saved before the fields were searchable
+            EntityManager em = emf.createEntityManager();
+            em.getTransaction().begin();
+            em.createQuery("DELETE FROM RecordToken t WHERE t.recordTokenPK.record IN :list").setParameter("list", ids(Arrays.asList(a1, a2))).executeUpdate();
+            em.getTransaction().commit();
+            em.close();
+            assertEquals(0, records.query(ArticleRecord.class).searchAny("fox", "dog").getList().size());
+            assertEquals(2L, records.rebuildTokens(ArticleRecord.class));
+            assertEquals(Arrays.asList(a1.getId(), a2.getId()), ids(records.query(ArticleRecord.class).searchAny("fox", "dog").orderByInsert().getList()));
+            assertEquals(Arrays.asList(a2.getId()), ids(records.query(ArticleRecord.class).searchAll("cook").getList()));
+            long rows = countTokens(emf);
+            //-- nothing left to write
+            assertEquals(2L, records.rebuildTokens(ArticleRecord.class));
+            assertEquals(rows, countTokens(emf));
+            records.remove(a1, a2);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // HELPERS
+    //--------------------------------------------------------------------------
+    private ArticleRecord article(String title, int rank, String... tags) {
+        ArticleRecord article = new ArticleRecord();
+        article.setTitle(title);
+        article.setRank(rank);
+        article.setTags(Arrays.asList(tags));
+        return article;
+    }
+
+    private long countTokens(EntityManagerFactory emf) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return em.createQuery("SELECT COUNT(t) FROM RecordToken t", Long.class).getSingleResult();
+        } finally {
+            em.close();
+        }
+    }
+
+    private List<Long> ids(List<ArticleRecord> list) {
+        return list.stream().map((article) -> article.getId()).collect(Collectors.toList());
+    }
+
+}
@@ -18,6 +18,7 @@ package com.auxeanne.data;
 import com.auxeanne.data.record.CommentRecord;
 import com.auxeanne.data.record.PersonRecord;
 import com.auxeanne.data.record.PersonRecordWithIndex;
+import java.util.ArrayList;
 import java.util.List;
 import javax.persistence.EntityManagerFactory;
 import org.junit.After;
@@ -118,4 +119,134 @@ public class SortTest {
 
     }
 
+    /**
+     * checking records without value for the sorted field, kept unless the
+     * field is filtered.
+     */
+    @Test
+    public void testSortWithoutValue() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Sort without value test using " + pu + " ===");
+            Records records = new Records(PU.getFactoryList().get(pu));
+            PersonRecord root = new PersonRecord();
+            PersonRecordWithIndex[] persons = new PersonRecordWithIndex[4];
+            for (int i = 0; i < persons.length; i++) {
+                persons[i] = new PersonRecordWithIndex();
+            }
+            persons[0].setAge(20);
+            persons[1].setAge(30);
+            persons[2].setAge(10);
+            // persons[3] without age
+            records.save(root);
+            records.save(persons);
+            records.link(root).asParentOf(persons).save();
+
+            // records without value are kept when the sorted field is not filtered, at the end where the database orders NULL
+            List<PersonRecordWithIndex> all = records.query(PersonRecordWithIndex.class).childOfAny(root).orderByIndexedField("age").getList();
+            assertEquals(4, all.size());
+            int nullIndex = (all.get(0).getAge() == null) ? 0 : 3;
+            assertEquals(persons[3].getId(), all.get(nullIndex).getId());
+            all.remove(nullIndex);
+            assertEquals((long) 10, (long) all.get(0).getAge());
+            assertEquals((long) 30, (long) all.get(2).getAge());
+            all = records.query(PersonRecordWithIndex.class).childOfAny(root).reverseByIndexedField("age").getList();
+            assertEquals(4, all.size());
+            assertEquals(persons[3].getId(), all.get(3 - nullIndex).getId());
+
+            // and dropped when it is filtered
+            List<PersonRecordWithIndex> list = records.query(PersonRecordWithIndex.class)
+                    .indexNotEqualTo("age", null)
+                    .childOfAny(root)
+                    .reverseByIndexedField("age")
+                    .getList();
+            assertEquals(3, list.size());
+            assertEquals((long) 30, (long) list.get(0).getAge());
+            assertEquals((long) 20, (long) list.get(1).getAge());
+            assertEquals((long) 10, (long) list.get(2).getAge());
+
+            // filters on the sorted field applied to the sort join
+            List<PersonRecordWithIndex> list3 = records.query(PersonRecordWithIndex.class).indexGreaterThan("age", 10)
+                    .indexLessThan("age", 30)
+                    .childOfAny(root)
+                    .orderByIndexedField("age")
+                    .getList();
+            assertEquals(1, list3.size());
+            assertEquals((long) 20, (long) list3.get(0).getAge());
+
+            records.remove(persons);
+            records.remove(root);
+        }
+    }
+
+    /**
+     * checking sort keys apply in call order with the id as tie breaker.
+     */
+    @Test
+    public void testMultiKeySort() {
+        for (String pu : PU.getPuList()) {
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            System.out.println("\n=== Multi key sort test using " + pu + " ===");
+            Records records = new Records(emf, "MultiKeySort");
+            PersonRecordWithIndex p1 = person("Smith", 30);
+            PersonRecordWithIndex p2 = person("Jones", 30);
+            PersonRecordWithIndex p3 = person("Smith", 20);
+            PersonRecordWithIndex p4 = person("Jones", 30);
+            PersonRecordWithIndex p5 = person("Adams", 20);
+            records.save(p1, p2, p3, p4, p5);
+
+            assertEquals(ids(p3, p5, p1, p2, p4), ids(records.query(PersonRecordWithIndex.class).orderBy("age").thenByDescending("lastName").thenByInsert().getList()));
+            assertEquals(ids(p2, p4, p1, p5, p3), ids(records.query(PersonRecordWithIndex.class).orderByDescending("age").thenBy("lastName").getList()));
+            assertEquals(ids(p5, p3, p4, p2, p1), ids(records.query(PersonRecordWithIndex.class).orderBy("age").thenByInsertDescending().getList()));
+            //-- legacy insert order applies last whatever the call order
+            assertEquals(ids(p3, p5, p1, p2, p4), ids(records.query(PersonRecordWithIndex.class).orderByInsert().orderByIndexedField("age").getList()));
+            assertEquals(ids(p5, p3, p4, p2, p1), ids(records.query(PersonRecordWithIndex.class).reverseByInsert().orderByIndexedField("age").orderByInsert().getList()));
+            //-- keys which would be ignored or misplaced are rejected
+            try {
+                records.query(PersonRecordWithIndex.class).orderBy("age").thenByInsert().thenBy("lastName");
+                fail();
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            try {
+                records.query(PersonRecordWithIndex.class).orderBy("age").orderBy("lastName");
+                fail();
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            try {
+                records.query(PersonRecordWithIndex.class).orderByInsert().orderBy("age").thenByInsertDescending();
+                fail();
+            } catch (IllegalStateException ex) {
+                // expected
+            }
+            //-- offset pages are stable on equal keys
+            List<Long> paged = new ArrayList<>();
+            for (int first = 0; first < 5; first += 2) {
+                paged.addAll(ids(records.query(PersonRecordWithIndex.class).orderBy("age").setFirstResult(first).setMaxResults(2).getList()));
+            }
+            assertEquals(ids(p3, p5, p1, p2, p4), paged);
+
+            records.remove(p1, p2, p3, p4, p5);
+        }
+    }
+
+    private PersonRecordWithIndex person(String lastName, int age) {
+        PersonRecordWithIndex person = new PersonRecordWithIndex();
+        person.setLastName(lastName);
+        person.setAge(age);
+        return person;
+    }
+
+    private List<Long> ids(PersonRecordWithIndex... persons) {
+        List<Long> list = new ArrayList<>();
+        for (PersonRecordWithIndex person : persons) {
+            list.add(person.getId());
+        }
+        return list;
+    }
+
+    private List<Long> ids(List<PersonRecordWithIndex> persons) {
+        return ids(persons.toArray(new PersonRecordWithIndex[0]));
+    }
+
 }
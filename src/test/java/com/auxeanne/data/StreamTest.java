@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data; 
+
+import com.auxeanne.data.ctrl.RecordCursor;
+import com.auxeanne.data.record.ReportingLine;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.persistence.EntityManagerFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Testing cursor based iteration and streaming of query results.
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class StreamTest {
+
+    final static int LINES = 5000;
+
+    @BeforeClass
+    public static void setUpClass() {
+        System.out.println("\n============================\nSTREAMING\n============================");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        System.out.println("");
+    }
+
+    @Before
+    public void setUp() {
+
+    }
+
+    @After
+    public void tearDown() {
+
+    }
+
+    //--------------------------------------------------------------------------
+    // TESTS
+    //--------------------------------------------------------------------------
+    @Test
+    public void testStream() {
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records = new Records(emf);
+            ReportingLine[] lines = new ReportingLine[LINES];
+            for (int l = 0; l < LINES; l++) {
+                lines[l] = new ReportingLine();
+                lines[l].setLine(l);
+            }
+            records.save(lines);
+
+            long start = System.currentTimeMillis();
+            long sum;
+            try (Stream<ReportingLine> stream = records.query(ReportingLine.class).orderByInsert().setFetchSize(200).stream()) {
+                sum = stream.mapToLong(ReportingLine::getLine).sum();
+            }
+            long end = System.currentTimeMillis();
+            System.out.println("   Streaming " + LINES + " lines in " + (end - start) + "ms");
+            assertEquals((long) LINES * (LINES - 1) / 2, sum);
+
+            //-- iterator keeps the query order
+            int expected = 0;
+            try (RecordCursor<ReportingLine> cursor = records.query(ReportingLine.class).orderByInsert().iterator()) {
+                while (cursor.hasNext()) {
+                    ReportingLine line = cursor.next();
+                    assertNotNull(line.getId());
+                    assertEquals(expected++, line.getLine());
+                }
+            }
+            assertEquals(LINES, expected);
+
+            //-- early close
+            try (RecordCursor<ReportingLine> cursor = records.query(ReportingLine.class).setFetchSize(10).iterator()) {
+                assertTrue(cursor.hasNext());
+                cursor.next();
+            }
+
+            List<ReportingLine> list = records.query(ReportingLine.class).getList();
+            records.remove(list);
+        }
+    }
+
+}
@@ -17,6 +17,9 @@ package com.auxeanne.data;
 
 import com.auxeanne.data.record.CommentRecord;
 import com.auxeanne.data.record.PersonRecord;
+import com.auxeanne.data.record.PersonRecordWithIndex;
+import java.util.ArrayList;
+import java.util.List;
 import javax.persistence.EntityManagerFactory;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -89,6 +92,49 @@ public class TenantTest {
         }
     }
 
+    @Test
+    public void testMultiTenantSortedPage() {
+
+        for (String pu : PU.getPuList()) {
+            System.out.println("\n=== Testing " + pu);
+            EntityManagerFactory emf = PU.getFactoryList().get(pu);
+            Records records1 = new Records(emf, "Tenant 1");
+            Records records2 = new Records(emf, "Tenant 2");
+            List<PersonRecordWithIndex> list1 = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                PersonRecordWithIndex p = new PersonRecordWithIndex();
+                p.setAge((i < 10) ? 2 * i : null);
+                list1.add(p);
+            }
+            records1.save(list1);
+            // index rows of T2 read first, skipped page after page
+            List<PersonRecordWithIndex> list2 = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                PersonRecordWithIndex p = new PersonRecordWithIndex();
+                p.setAge(-1 - i);
+                list2.add(p);
+            }
+            records2.save(list2);
+
+            List<PersonRecordWithIndex> page = records1.query(PersonRecordWithIndex.class).orderByIndexedField("age").setMaxResults(4).getList();
+            assertEquals(4, page.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals((long) 2 * i, (long) page.get(i).getAge());
+            }
+            page = records1.query(PersonRecordWithIndex.class).orderByIndexedField("age").after(page.get(3)).setMaxResults(3).getList();
+            assertEquals((long) 8, (long) page.get(0).getAge());
+            assertEquals((long) 12, (long) page.get(2).getAge());
+            page = records1.query(PersonRecordWithIndex.class).indexGreaterThan("age", 3).reverseByIndexedField("age").setMaxResults(3).getList();
+            assertEquals((long) 18, (long) page.get(0).getAge());
+            assertEquals((long) 14, (long) page.get(2).getAge());
+            // records without value kept
+            assertEquals(12, records1.query(PersonRecordWithIndex.class).orderByIndexedField("age").setMaxResults(20).getList().size());
+
+            records1.remove(list1);
+            records2.remove(list2);
+        }
+    }
+
     @Test
     public void testMultiTenantPreferences() {
 
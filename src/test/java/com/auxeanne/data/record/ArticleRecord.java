@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.record;
+
+import com.auxeanne.data.AbstractRecord;
+import com.auxeanne.data.FieldIndexing;
+import com.auxeanne.data.FieldSearchable;
+import java.util.List;
+
+/**
+ *
+ * @author Jean-Michel Tanguy
+ */
+public class ArticleRecord extends AbstractRecord {
+
+    @FieldSearchable
+    String title;
+    @FieldSearchable(prefixes = true)
+    List<String> tags;
+    @FieldIndexing
+    Integer rank;
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+
+    public Integer getRank() {
+        return rank;
+    }
+
+    public void setRank(Integer rank) {
+        this.rank = rank;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Jean-Michel Tanguy.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.auxeanne.data.record;
+
+import com.auxeanne.data.AbstractRecord;
+import com.auxeanne.data.CompositeIndex;
+import com.auxeanne.data.FieldIndexing;
+import java.util.Date;
+
+/**
+ *
+ * @author Jean-Michel Tanguy
+ */
+@CompositeIndex({"department", "age"})
+@CompositeIndex({"department", "lastName", "hired"})
+public class EmployeeRecord extends AbstractRecord {
+
+    @FieldIndexing
+    String department;
+    @FieldIndexing
+    String lastName;
+    @FieldIndexing
+    Integer age;
+    @FieldIndexing
+    Date hired;
+
+    public String getDepartment() {
+        return department;
+    }
+
+    public void setDepartment(String department) {
+        this.department = department;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public void setLastName(String lastName) {
+        this.lastName = lastName;
+    }
+
+    public Integer getAge() {
+        return age;
+    }
+
+    public void setAge(Integer age) {
+        this.age = age;
+    }
+
+    public Date getHired() {
+        return hired;
+    }
+
+    public void setHired(Date hired) {
+        this.hired = hired;
+    }
+
+}